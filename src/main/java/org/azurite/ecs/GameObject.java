@@ -177,12 +177,14 @@ public class GameObject {
     return zIndex;
   }
 
-  @Deprecated
+  /**
+   * Move the gameObject to another layer. The renderers read the zIndex every frame,
+   * so the gameObject does not have to be removed from the scene and added again.
+   *
+   * @param z the new zIndex
+   */
   public void setZIndex(int z) {
-    // TODO does this work now?
-    parentScene.removeGameObjectFromScene(this);
     zIndex = z;
-    parentScene.addGameObjectToScene(this);
   }
 
   public String name() {
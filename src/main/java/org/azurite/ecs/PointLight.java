@@ -22,6 +22,12 @@ public class PointLight extends Component {
      */
     public float intensity;
 
+    /**
+     * Whether the edges of polygon colliders block this light.
+     * Colliders on the same GameObject as the light never do
+     */
+    public boolean castShadows = false;
+
     /**
      * Constructor which sets color of the light by default to white.
      *
@@ -1,5 +1,6 @@
 package org.azurite.ecs;
 
+import org.azurite.graphics.AlphaHull;
 import org.azurite.graphics.Color;
 import org.azurite.graphics.Sprite;
 import org.azurite.graphics.Texture;
@@ -25,7 +26,10 @@ public class SpriteRenderer extends Component {
 
   private Sprite sprite;
 
-  private Vector2f lastLocation;
+  /**
+   * Position of the gameObject in the last frame
+   */
+  private float lastX, lastY;
   private Vector2f size;
   private float rotation;
   private boolean isDirty; // Dirty flag, tells renderer to redraw if object components have changed
@@ -89,7 +93,9 @@ public class SpriteRenderer extends Component {
    */
   @Override
   public void start() {
-    this.lastLocation = position();
+    float[] pos = gameObject.getPositionData();
+    lastX = pos[0];
+    lastY = pos[1];
     isDirty = true;
   }
 
@@ -100,8 +106,12 @@ public class SpriteRenderer extends Component {
    */
   @Override
   public void update(float dt) {
-    if (!position().equals(this.lastLocation)) markDirty();
-    this.lastLocation = position();
+    float[] pos = gameObject.getPositionData();
+    if (pos[0] != lastX || pos[1] != lastY) {
+      markDirty();
+      lastX = pos[0];
+      lastY = pos[1];
+    }
   }
 
   /**
@@ -129,6 +139,14 @@ public class SpriteRenderer extends Component {
 
   public void setSize(Vector2f size) {
     this.size = size;
+    isDirty = true;
+  }
+
+  /**
+   * @return the polygon around the visible pixels of the sprite, or null if there is none
+   */
+  public AlphaHull getHull() {
+    return sprite.getHull();
   }
 
   /**
@@ -145,6 +163,16 @@ public class SpriteRenderer extends Component {
     return color;
   }
 
+  /**
+   * Get the color packed into a single int as 0xAABBGGRR. Does not allocate, unlike {@link #getColor()}
+   *
+   * @return the packed color
+   * @see Color#pack(float, float, float, float)
+   */
+  public int getPackedColor() {
+    return Color.pack(color.x, color.y, color.z, color.w);
+  }
+
   /**
    * @return type Color in standard RGBA form in the range 0-255
    */
@@ -183,6 +211,7 @@ public class SpriteRenderer extends Component {
    */
   public void setAlpha(float a) {
     color.w = MathUtils.map(a, 0, 255, 0, 1);
+    isDirty = true;
   }
 
   /**
@@ -0,0 +1,163 @@
+package org.azurite.graphics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A convex polygon of 4 to 8 vertices around the pixels of an image that are not fully transparent.
+ * Sprites with large transparent borders can be drawn as this polygon instead of a full quad,
+ * so the transparent texels outside of it are never shaded.
+ * <p>
+ * The polygon is the smallest octagon with horizontal, vertical and diagonal edges containing every such pixel.
+ * It is conservative, no visible pixel is ever cut off. The vertices are stored as fractions of the image,
+ * from its first texel in the direction of increasing texture coordinates, so the hull stays valid when the image
+ * is packed into a {@link TextureAtlas}.
+ *
+ * @see Texture#setAlphaHulls(boolean)
+ */
+public class AlphaHull {
+  /**
+   * The vertices in order around the polygon, as pairs of fractions of the width and height of the image
+   */
+  private final float[] vertices;
+  /**
+   * The area of the polygon as a fraction of the area of the image
+   */
+  private final float area;
+
+  private AlphaHull(float[] vertices, float area) {
+    this.vertices = vertices;
+    this.area = area;
+  }
+
+  /**
+   * Compute the hull of a rectangle of an image
+   *
+   * @param pixels    the pixels of the image, rows in the order of increasing texture coordinates
+   * @param channels  the number of channels per pixel, the alpha is the fourth one
+   * @param rowLength the number of pixels in a row of the image
+   * @param x         first column of the rectangle
+   * @param y         first row of the rectangle
+   * @param width     width of the rectangle in pixels
+   * @param height    height of the rectangle in pixels
+   * @return the hull, or null if the rectangle is fully transparent or nothing can be trimmed
+   */
+  public static AlphaHull compute(ByteBuffer pixels, int channels, int rowLength, int x, int y, int width, int height) {
+    if (channels < 4 || width <= 0 || height <= 0) return null;
+    int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+    // Extents along the diagonals, x + y and x - y
+    int minSum = Integer.MAX_VALUE, maxSum = Integer.MIN_VALUE, minDiff = Integer.MAX_VALUE, maxDiff = Integer.MIN_VALUE;
+
+    for (int row = 0; row < height; row++) {
+      int rowStart = ((y + row) * rowLength + x) * channels + 3;
+      int left = -1, right = -1;
+      for (int column = 0; column < width; column++) {
+        if (pixels.get(rowStart + column * channels) == 0) continue;
+        if (left < 0) left = column;
+        right = column;
+      }
+      if (left < 0) continue;
+
+      // The corners of the visible span of the row, a pixel covers [column, column + 1]
+      minX = Math.min(minX, left);
+      maxX = Math.max(maxX, right + 1);
+      minY = Math.min(minY, row);
+      maxY = Math.max(maxY, row + 1);
+      minSum = Math.min(minSum, left + row);
+      maxSum = Math.max(maxSum, right + 1 + row + 1);
+      minDiff = Math.min(minDiff, left - (row + 1));
+      maxDiff = Math.max(maxDiff, right + 1 - row);
+    }
+    if (minX == Integer.MAX_VALUE) return null;
+
+    int[] octagon = {
+        minSum - minY, minY,
+        maxDiff + minY, minY,
+        maxX, maxX - maxDiff,
+        maxX, maxSum - maxX,
+        maxSum - maxY, maxY,
+        minDiff + maxY, maxY,
+        minX, minX - minDiff,
+        minX, minSum - minX
+    };
+
+    // Diagonals that do not cut a corner leave two vertices in the same place
+    float[] vertices = new float[16];
+    int count = 0;
+    for (int i = 0; i < 8; i++) {
+      int vx = octagon[i * 2], vy = octagon[i * 2 + 1];
+      int px = octagon[(i + 7) % 8 * 2], py = octagon[(i + 7) % 8 * 2 + 1];
+      if (vx == px && vy == py) continue;
+      vertices[count * 2] = vx / (float) width;
+      vertices[count * 2 + 1] = vy / (float) height;
+      count++;
+    }
+
+    float twiceArea = 0;
+    for (int i = 0; i < count; i++) {
+      int j = (i + 1) % count;
+      twiceArea += vertices[i * 2] * vertices[j * 2 + 1] - vertices[j * 2] * vertices[i * 2 + 1];
+    }
+    float area = Math.abs(twiceArea) / 2;
+    if (area >= 1) return null;
+
+    float[] trimmed = new float[count * 2];
+    System.arraycopy(vertices, 0, trimmed, 0, trimmed.length);
+    return new AlphaHull(trimmed, area);
+  }
+
+  /**
+   * @return the number of vertices, between 4 and 8
+   */
+  public int getVertexCount() {
+    return vertices.length / 2;
+  }
+
+  /**
+   * @param i index of a vertex
+   * @return the position of the vertex along the width of the image, from 0 to 1
+   */
+  public float getX(int i) {
+    return vertices[i * 2];
+  }
+
+  /**
+   * @param i index of a vertex
+   * @return the position of the vertex along the height of the image, from 0 to 1
+   */
+  public float getY(int i) {
+    return vertices[i * 2 + 1];
+  }
+
+  /**
+   * @return the number of quads the hull is drawn with, it is split into a fan around its first vertex
+   */
+  public int getQuadCount() {
+    return (getVertexCount() - 1) / 2;
+  }
+
+  /**
+   * The vertices of a quad of the fan, in the vertex order of {@link Primitive#QUAD}. Both triangles of a quad share
+   * its corners 0 and 2, so the center of the fan is corner 2 and quad q covers the triangles between the vertices
+   * 2q + 1, 2q + 2 and 2q + 3 of the hull and the center. The last vertex repeats if the hull has an even number
+   * of vertices.
+   *
+   * @param quad   index of the quad
+   * @param corner corner of the quad, from 0 to 3
+   * @return index of the vertex of the hull at the corner
+   */
+  public int getQuadCorner(int quad, int corner) {
+    return switch (corner) {
+      case 0 -> 2 * quad + 2;
+      case 1 -> Math.min(2 * quad + 3, getVertexCount() - 1);
+      case 2 -> 0;
+      default -> 2 * quad + 1;
+    };
+  }
+
+  /**
+   * @return the area of the hull as a fraction of the area of the image
+   */
+  public float getArea() {
+    return area;
+  }
+}
@@ -4,7 +4,7 @@ import org.azurite.util.MathUtils;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
-import org.lwjgl.opengl.GL11;
+import org.joml.Vector4f;
 
 /**
  * Represents a basic camera. The purpose of a digital camera capturing a
@@ -57,6 +57,19 @@ public class Camera {
    */
   private Matrix4f viewMatrix;
   private Matrix4f inverseViewM;
+  /**
+   * Scratch space for {@link #getViewBounds(Vector4f)}
+   */
+  private final Matrix4f inverseViewProjection = new Matrix4f();
+  private final Vector3f corner = new Vector3f();
+  /**
+   * Position the view matrix was last calculated for
+   */
+  private float viewX = Float.NaN, viewY = Float.NaN;
+  /**
+   * Incremented whenever the projection or view matrix changes
+   */
+  private int revision = 0;
   /**
    * Creates a new Camera with a certain position
    * Projection matrix is set to default: 0 to Window's width from left to right,
@@ -94,50 +107,73 @@ public class Camera {
    * Recalculate Projection Matrix
    */
   public void adjustProjection() {
+    adjustProjection(Window.getWidth(), Window.getHeight());
+  }
+
+  /**
+   * Recalculate Projection Matrix for an area smaller than the window, like a {@link Viewport}
+   *
+   * @param width  width of the area in pixels
+   * @param height height of the area in pixels
+   */
+  public void adjustProjection(int width, int height) {
     projectionMatrix.identity();
     // This should be checked with physicalAspectRatio!! but its fine right now
-    float displayAspectRatio = (float) Window.getWidth() / (float) Window.getHeight();
+    float displayAspectRatio = (float) width / (float) height;
     float pixelAspectRatio = worldSize.x() / worldSize.y();
 
     if (mode == Mode.FREE) {
-      aspectWidth = Window.getWidth();
-      aspectHeight = Window.getHeight();
+      aspectWidth = width;
+      aspectHeight = height;
 
-      GL11.glViewport(0, 0, Window.getWidth(), Window.getHeight());
-      projectionMatrix.ortho(0, Window.getWidth(), Window.getHeight(), 0, 0, 100f);
+      GLState.viewport(0, 0, width, height);
+      projectionMatrix.ortho(0, width, height, 0, 0, 100f);
     } else if (mode == Mode.ASPECT_RATIO) {
 
-      aspectWidth = Window.getWidth();
+      aspectWidth = width;
       aspectHeight = aspectWidth / pixelAspectRatio;
 
-      if (aspectHeight > Window.getHeight()) {
-        aspectHeight = Window.getHeight();
+      if (aspectHeight > height) {
+        aspectHeight = height;
         aspectWidth = aspectHeight * pixelAspectRatio;
       }
 
-      viewportPosX = (int) (((float) Window.getWidth() / 2.0f) - (aspectWidth / 2.0f));
-      viewportPosY = (int) (((float) Window.getHeight() / 2.0f) - (aspectHeight / 2.0f));
+      viewportPosX = (int) (((float) width / 2.0f) - (aspectWidth / 2.0f));
+      viewportPosY = (int) (((float) height / 2.0f) - (aspectHeight / 2.0f));
 
-      GL11.glViewport(viewportPosX, viewportPosY, (int) aspectWidth, (int) aspectHeight);
+      GLState.viewport(viewportPosX, viewportPosY, (int) aspectWidth, (int) aspectHeight);
       projectionMatrix.ortho(0, worldSize.x, worldSize.y, 0, 0, 100f);
     }
 
     projectionMatrix.invert(inverseProjectionM);
+    revision++;
   }
 
   /**
-   * Recalculates and returns the view marix
+   * Returns the view matrix, recalculating it if the camera moved
    */
   public Matrix4f getViewMatrix() {
-    Vector3f cameraFront = new Vector3f(0, 0, -1);
-    Vector3f cameraUp = new Vector3f(0, 1, 0);
-    this.viewMatrix.identity();
-    viewMatrix.lookAt(new Vector3f(position.x, position.y, 20), cameraFront.add(position.x, position.y, 0),
-        cameraUp);
-
+    if (position.x != viewX || position.y != viewY) {
+      viewX = position.x;
+      viewY = position.y;
+      // Looking down the negative z axis from z = 20, with y as up
+      this.viewMatrix.identity();
+      viewMatrix.lookAt(position.x, position.y, 20, position.x, position.y, -1, 0, 1, 0);
+      revision++;
+    }
     return this.viewMatrix;
   }
 
+  /**
+   * The revision changes whenever the projection or view matrix changes, so that copies of them can be updated lazily
+   *
+   * @return the current revision of the matrices
+   */
+  public int getRevision() {
+    getViewMatrix();
+    return revision;
+  }
+
   /**
    * Get the camera's projection matrix
    */
@@ -145,6 +181,27 @@ public class Camera {
     return this.projectionMatrix;
   }
 
+  /**
+   * Get the rectangle of the world that is visible through this camera, by unprojecting the corners of the screen.
+   * Works for every {@link Mode}, since it only depends on the projection and view matrices.
+   *
+   * @param dest vector to store the bounds in, as (minX, minY, maxX, maxY)
+   * @return dest
+   */
+  public Vector4f getViewBounds(Vector4f dest) {
+    projectionMatrix.mul(getViewMatrix(), inverseViewProjection).invert();
+    float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < 4; i++) {
+      inverseViewProjection.transformProject((i & 1) == 0 ? -1 : 1, (i & 2) == 0 ? -1 : 1, 0, corner);
+      minX = Math.min(minX, corner.x);
+      minY = Math.min(minY, corner.y);
+      maxX = Math.max(maxX, corner.x);
+      maxY = Math.max(maxY, corner.y);
+    }
+    return dest.set(minX, minY, maxX, maxY);
+  }
+
   /**
    * Smoothly center the camera on to a transform
    */
@@ -203,7 +260,7 @@ public class Camera {
    * ASPECT_RATIO - It will show the entire image on the screen but will keep the
    * aspect ratio (might create black bars)
    */
-  private enum Mode {
+  public enum Mode {
     FREE,
     ASPECT_RATIO,
   }
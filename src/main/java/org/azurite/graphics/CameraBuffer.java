@@ -0,0 +1,105 @@
+package org.azurite.graphics;
+
+import org.joml.Matrix4f;
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+/**
+ * A std140 uniform buffer holding the matrices of the camera, shared by all shaders.
+ * Shaders declare it as
+ * <pre>
+ * layout (std140) uniform Camera {
+ *     mat4 uProjection;
+ *     mat4 uView;
+ *     vec2 uCameraPosition;
+ * };
+ * </pre>
+ * and every shader containing the block is bound to it when it is compiled.
+ * The buffer is only written when the camera changed, instead of every renderer uploading the matrices every frame.
+ */
+public class CameraBuffer {
+  /**
+   * Uniform buffer binding point of the block
+   */
+  public static final int BINDING = 0;
+  /**
+   * Name of the block in the shaders
+   */
+  public static final String BLOCK_NAME = "Camera";
+  /**
+   * Two mat4 and a vec2, padded to the 16 byte alignment of std140
+   */
+  private static final int FLOATS = 16 + 16 + 4;
+
+  private static final FloatBuffer data = BufferUtils.createFloatBuffer(FLOATS);
+  private static int ubo = -1;
+  private static Camera lastCamera;
+  private static int lastRevision;
+
+  /**
+   * Write the matrices of a camera into the buffer if they changed since the last call.
+   * Called once per frame before rendering.
+   *
+   * @param camera the camera of the current scene
+   */
+  public static void update(Camera camera) {
+    if (ubo == -1) create();
+    int revision = camera.getRevision();
+    if (camera == lastCamera && revision == lastRevision) return;
+    lastCamera = camera;
+    lastRevision = revision;
+
+    camera.getProjectionMatrix().get(0, data);
+    camera.getViewMatrix().get(16, data);
+    data.put(32, camera.getPosition().x).put(33, camera.getPosition().y);
+    GLState.bindBuffer(GL_UNIFORM_BUFFER, ubo);
+    glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+  }
+
+  /**
+   * Write matrices that do not belong to a camera into the buffer, e.g. to render a region of the world into a texture.
+   * The next {@link #update(Camera)} writes the camera again, even if it did not change.
+   *
+   * @param projection the projection matrix
+   * @param view       the view matrix
+   * @param x          x of the camera position
+   * @param y          y of the camera position
+   */
+  public static void set(Matrix4f projection, Matrix4f view, float x, float y) {
+    if (ubo == -1) create();
+    lastCamera = null;
+    projection.get(0, data);
+    view.get(16, data);
+    data.put(32, x).put(33, y);
+    GLState.bindBuffer(GL_UNIFORM_BUFFER, ubo);
+    glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+  }
+
+  private static void create() {
+    ubo = glGenBuffers();
+    GLState.bindBuffer(GL_UNIFORM_BUFFER, ubo);
+    glBufferData(GL_UNIFORM_BUFFER, (long) FLOATS * Float.BYTES, GL_DYNAMIC_DRAW);
+    GLState.bindBufferBase(GL_UNIFORM_BUFFER, BINDING, ubo);
+    lastCamera = null;
+  }
+
+  /**
+   * @return the camera whose matrices are in the buffer, e.g. the camera of the viewport being drawn
+   */
+  public static Camera getCamera() {
+    return lastCamera;
+  }
+
+  /**
+   * Delete the buffer
+   */
+  public static void clean() {
+    if (ubo != -1) GLState.deleteBuffer(ubo);
+    ubo = -1;
+    lastCamera = null;
+  }
+}
@@ -165,6 +165,37 @@ public class Color {
     return new Vector3f(m(r), m(g), m(b));
   }
 
+  /**
+   * Pack a normalized color into a single int as 0xAABBGGRR, which is the memory layout
+   * of four unsigned bytes r, g, b, a on little endian machines
+   *
+   * @param r red, range 0-1
+   * @param g green, range 0-1
+   * @param b blue, range 0-1
+   * @param a alpha, range 0-1
+   * @return the packed color
+   */
+  public static int pack(float r, float g, float b, float a) {
+    return packComponent(r) | packComponent(g) << 8 | packComponent(b) << 16 | packComponent(a) << 24;
+  }
+
+  /**
+   * Pack this color into a single int as 0xAABBGGRR without allocating
+   *
+   * @return the packed color
+   * @see #pack(float, float, float, float)
+   */
+  public int toPacked() {
+    return pack(r / 255f, g / 255f, b / 255f, a / 255f);
+  }
+
+  /**
+   * Map a component from range 0-1 to a byte from 0-255, clamping values outside of the range
+   */
+  private static int packComponent(float c) {
+    return Math.round(Math.min(Math.max(c, 0), 1) * 255) & 0xFF;
+  }
+
   /**
    * Turn a Color with normalised values to a color with values from 0-255
    */
@@ -0,0 +1,216 @@
+package org.azurite.graphics;
+
+import org.azurite.util.Log;
+
+import java.util.Arrays;
+
+import static org.lwjgl.glfw.GLFW.glfwGetTime;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Scales the resolution the world is rendered at to keep the frame time within a budget.
+ * <p>
+ * Every frame the CPU time from the start of the frame until the buffers are swapped is measured, and the GPU time
+ * between two GL_TIMESTAMP queries if timer queries are supported. Timestamps can be taken while the
+ * {@link GpuProfiler} is timing sections, and they are read {@link GpuProfiler#LATENCY} - 1 frames later, so measuring
+ * never stalls the pipeline. Waiting for vsync is not counted, so the controller also sees the headroom of frames
+ * that finish early.
+ * <p>
+ * Once the smoothed frame time exceeds the budget the scale drops right away, in proportion to the missing time,
+ * as the cost of a frame mostly grows with the number of pixels. It is raised again in single steps once frames
+ * are well below the budget. The scale is a multiple of {@link #STEP}, so the framebuffers of the
+ * {@link FramebufferPool} marked as scaled are only reallocated when it changes.
+ * <p>
+ * Only the sprites and the lightmap are scaled. The scene upscales them to the screen and draws UI and text
+ * at the native resolution on top. Dynamic resolution is off by default.
+ */
+public class DynamicResolution {
+  /**
+   * The scale is always a multiple of this
+   */
+  public static final float STEP = 0.05f;
+  /**
+   * Frames to wait after a change before changing the scale again, to see its effect
+   */
+  public static final int SETTLE_FRAMES = 20;
+  /**
+   * The scale drops if the smoothed frame time is above this share of the budget
+   */
+  private static final float DROP_AT = 0.95f;
+  /**
+   * The scale rises if the smoothed frame time is below this share of the budget
+   */
+  private static final float RAISE_AT = 0.75f;
+  /**
+   * Weight of a new frame in the smoothed frame time
+   */
+  private static final float SMOOTHING = 0.1f;
+
+  private static boolean enabled = false;
+  private static float minScale = 0.5f, maxScale = 1.0f;
+  private static float scale = 1.0f;
+  private static float budget = 1000.0f / 60;
+  private static float frameTime = -1;
+  private static int settle = 0;
+  private static int changes = 0;
+
+  private static double cpuBegin;
+  private static float cpuTime, gpuTime;
+  private static int[] queries;
+  private static final boolean[] pending = new boolean[GpuProfiler.LATENCY];
+  private static int frame = 0;
+
+  /**
+   * Switch dynamic resolution on or off. When switched off the world is rendered at the native resolution
+   *
+   * @param enabled whether the scale follows the frame time
+   */
+  public static void setEnabled(boolean enabled) {
+    DynamicResolution.enabled = enabled;
+    frameTime = -1;
+    settle = 0;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Set the range the scale is kept in. The scale starts at the upper bound
+   *
+   * @param min the smallest scale, greater than 0
+   * @param max the largest scale, at most 1
+   */
+  public static void setBounds(float min, float max) {
+    assert min > 0 && min <= max && max <= 1 : "[ERROR] Resolution scale bounds must satisfy 0 < min <= max <= 1";
+    minScale = quantize(min);
+    maxScale = quantize(max);
+    scale = maxScale;
+  }
+
+  /**
+   * Set the frame time the controller aims for, e.g. the refresh interval of the monitor
+   *
+   * @param milliseconds the frame time budget in milliseconds
+   */
+  public static void setBudget(float milliseconds) {
+    assert milliseconds > 0 : "[ERROR] The frame time budget must be positive";
+    budget = milliseconds;
+  }
+
+  public static float getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return the factor the width and height of scaled framebuffers are multiplied with, 1 if dynamic resolution is off
+   */
+  public static float getScale() {
+    return enabled ? scale : 1.0f;
+  }
+
+  /**
+   * @return the smoothed frame time in milliseconds the scale was last chosen for
+   */
+  public static float getFrameTime() {
+    return Math.max(frameTime, 0);
+  }
+
+  /**
+   * @return the number of times the scale changed
+   */
+  public static int getChangeCount() {
+    return changes;
+  }
+
+  /**
+   * Start measuring a frame and read the GPU time of an earlier one. Called by the window every frame.
+   */
+  public static void beginFrame() {
+    if (!enabled) return;
+    cpuBegin = glfwGetTime();
+    if (!GpuProfiler.isSupported()) return;
+    if (queries == null) {
+      queries = new int[GpuProfiler.LATENCY * 2];
+      glGenQueries(queries);
+    }
+    frame = (frame + 1) % GpuProfiler.LATENCY;
+    int slot = frame * 2;
+    // The oldest slot is reused for this frame, so its result is read now or given up
+    if (pending[frame] && glGetQueryObjecti(queries[slot + 1], GL_QUERY_RESULT_AVAILABLE) == GL_TRUE) {
+      long begin = glGetQueryObjecti64(queries[slot], GL_QUERY_RESULT);
+      long end = glGetQueryObjecti64(queries[slot + 1], GL_QUERY_RESULT);
+      gpuTime = (end - begin) / 1_000_000.0f;
+    }
+    glQueryCounter(queries[slot], GL_TIMESTAMP);
+    pending[frame] = false;
+  }
+
+  /**
+   * Stop measuring the frame and choose the scale of the next one. Called by the window before swapping the buffers.
+   */
+  public static void endFrame() {
+    if (!enabled) return;
+    cpuTime = (float) ((glfwGetTime() - cpuBegin) * 1000);
+    if (queries != null) {
+      glQueryCounter(queries[frame * 2 + 1], GL_TIMESTAMP);
+      pending[frame] = true;
+    }
+    update(cpuTime, gpuTime);
+  }
+
+  /**
+   * Choose the scale for a measured frame. CPU and GPU work in parallel, so the slower of the two decides
+   *
+   * @param cpuMilliseconds CPU time of the frame
+   * @param gpuMilliseconds GPU time of the frame, 0 if unknown
+   */
+  public static void update(float cpuMilliseconds, float gpuMilliseconds) {
+    float time = Math.max(cpuMilliseconds, gpuMilliseconds);
+    frameTime = frameTime < 0 ? time : frameTime + (time - frameTime) * SMOOTHING;
+    if (settle > 0) {
+      settle--;
+      return;
+    }
+
+    float next = scale;
+    if (frameTime > budget * DROP_AT) {
+      // The area and with it most of the cost shrinks with the square of the scale
+      next = Math.min(quantize(scale * (float) Math.sqrt(budget * DROP_AT / frameTime)), scale - STEP);
+    } else if (frameTime < budget * RAISE_AT) {
+      next = scale + STEP;
+    }
+    next = Math.max(minScale, Math.min(maxScale, quantize(next)));
+    if (next != scale) {
+      Log.logger.debug("resolution scale " + scale + " -> " + next + " at " + frameTime + " ms");
+      scale = next;
+      changes++;
+      settle = SETTLE_FRAMES;
+      // The old frame times were measured at the old scale
+      frameTime = -1;
+    }
+  }
+
+  private static float quantize(float value) {
+    return Math.round(value / STEP) * STEP;
+  }
+
+  /**
+   * @return the state of the controller in one line, for displaying as an overlay
+   */
+  public static String report() {
+    if (!enabled) return "";
+    return String.format("Resolution %d%% %.2f ms / %.2f ms (cpu %.2f gpu %.2f)%n",
+        Math.round(scale * 100), getFrameTime(), budget, cpuTime, gpuTime);
+  }
+
+  /**
+   * Delete the queries
+   */
+  public static void clean() {
+    if (queries != null) glDeleteQueries(queries);
+    queries = null;
+    Arrays.fill(pending, false);
+  }
+}
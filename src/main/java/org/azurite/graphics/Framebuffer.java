@@ -160,6 +160,18 @@ public class Framebuffer {
         new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8)), true, false);
   }
 
+  /**
+   * Factory method to create an instance the size of the screen with a color attachment
+   * and a depth and stencil attachment, e.g. for masking shadows
+   *
+   * @return Framebuffer
+   */
+  public static Framebuffer createWithColorAndStencilAttachment() {
+    return new Framebuffer(Window.getWidth(), Window.getHeight(),
+        new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8),
+            new TextureSpec(TextureSpec.TextureFormat.DEPTH24STENCIL8)), true, false);
+  }
+
   /**
    * Factory method to create an instance that is half the size of the screen and
    * has one simple color attachment
@@ -167,13 +179,13 @@ public class Framebuffer {
    * @return Framebuffer
    */
   public static Framebuffer createHalfResWithColorAttachment() {
-    return new Framebuffer(Window.getWidth() / 2, Window.getHeight() / 4,
+    return new Framebuffer(Window.getWidth() / 2, Window.getHeight() / 2,
         new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8)), false, true);
   }
 
   /**
    * Resize all Framebuffers created via the createWithColorAttachment() or
-   * createHalfResWithColorAttachment() methods
+   * createHalfResWithColorAttachment() methods. Framebuffers of the {@link FramebufferPool} are resized when they are used
    */
 
   public static void resizeAll(EventData.WindowResizeEventData data) {
@@ -192,13 +204,13 @@ public class Framebuffer {
    * Unbinds the framebuffer i.e. binds the default framebuffer
    */
   public static void unbind() {
-    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
     // int[] w = new int[4];
     // int[] h = new int[4];
     // glfwGetFramebufferSize(Window.glfwWindow(), w, h);
     // int width = w[0];
     // int height = h[0];
-    glViewport(Camera.instance.getViewportPosX(), Camera.instance.getViewportPosY(),
+    GLState.viewport(Camera.instance.getViewportPosX(), Camera.instance.getViewportPosY(),
         (int) Camera.instance.getViewportSizeX(), (int) Camera.instance.getViewportSizeY());
   }
 
@@ -279,7 +291,7 @@ public class Framebuffer {
       delete();
 
     this.id = glGenFramebuffers();
-    glBindFramebuffer(GL_FRAMEBUFFER, this.id);
+    GLState.bindFramebuffer(GL_FRAMEBUFFER, this.id);
 
     // If there are any color attachments requested, create them all
     if (colorAttachmentSpecs.size() > 0) {
@@ -309,7 +321,7 @@ public class Framebuffer {
     }
 
     // Unbind this fbo
-    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    GLState.bindFramebuffer(GL_FRAMEBUFFER, 0);
   }
 
   /**
@@ -329,16 +341,16 @@ public class Framebuffer {
    * Binds the framebuffer
    */
   public void bind() {
-    glBindFramebuffer(GL_FRAMEBUFFER, this.id);
+    GLState.bindFramebuffer(GL_FRAMEBUFFER, this.id);
     if (!isDefault())
-      glViewport(0, 0, this.width, this.height);
+      GLState.viewport(0, 0, this.width, this.height);
     else {
       // int[] w = new int[4];
       // int[] h = new int[4];
       // glfwGetFramebufferSize(Window.glfwWindow(), w, h);
       // int width = w[0];
       // int height = h[0];
-      glViewport(Camera.instance.getViewportPosX(), Camera.instance.getViewportPosY(),
+      GLState.viewport(Camera.instance.getViewportPosX(), Camera.instance.getViewportPosY(),
           (int) Camera.instance.getViewportSizeX(), (int) Camera.instance.getViewportSizeY());
     }
   }
@@ -350,7 +362,28 @@ public class Framebuffer {
     colorAttachmentTextures.forEach(Texture::delete);
     if (depthAttachmentTexture != null)
       depthAttachmentTexture.delete();
-    glDeleteFramebuffers(this.id);
+    GLState.deleteFramebuffer(this.id);
+  }
+
+  /**
+   * Gives the framebuffer back to the {@link FramebufferPool} if it came from there. Otherwise deletes the framebuffer
+   * and removes it from the registers, so it is neither resized nor deleted again.
+   * Used when the owner of a framebuffer no longer needs it, e.g. because a {@link org.azurite.graphics.renderer.RenderGraph}
+   * provides the framebuffer instead.
+   */
+  public void release() {
+    if (isDefault() || FramebufferPool.release(this)) return;
+    destroy();
+  }
+
+  /**
+   * Deletes the framebuffer and removes it from the registers
+   */
+  void destroy() {
+    fbos.remove(this);
+    screenSize.remove(this);
+    halfScreenSize.remove(this);
+    delete();
   }
 
   /**
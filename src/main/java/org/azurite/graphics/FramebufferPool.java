@@ -0,0 +1,251 @@
+package org.azurite.graphics;
+
+import org.azurite.util.specs.FramebufferSpec;
+import org.azurite.util.specs.TextureSpec;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A pool of framebuffers whose size is a fraction of the size of the screen, keyed by that fraction and
+ * their {@link FramebufferSpec}. Most users ask for the screen divided by a number, viewports for any fraction.
+ * Post processing steps, renderers and the render graph acquire their targets here and release them when
+ * they are done, so targets of the same kind are shared instead of every user holding its own.
+ * <p>
+ * Pooled framebuffers are not resized with the window. A framebuffer is only reallocated when it is acquired,
+ * or checked with {@link #fit(Framebuffer)}, while its size does not match the screen anymore,
+ * so sizes nobody uses cost nothing. Framebuffers that stay unused for {@link #IDLE_FRAMES} frames are deleted.
+ */
+public class FramebufferPool {
+  /**
+   * Number of frames a released framebuffer is kept for reuse
+   */
+  public static final int IDLE_FRAMES = 120;
+  /**
+   * A single color attachment
+   */
+  public static final FramebufferSpec COLOR = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8));
+  /**
+   * A color attachment and a depth and stencil attachment
+   */
+  public static final FramebufferSpec COLOR_STENCIL = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8),
+      new TextureSpec(TextureSpec.TextureFormat.DEPTH24STENCIL8));
+
+  private static final Map<Key, ArrayDeque<Entry>> available = new HashMap<>();
+  private static final Map<Framebuffer, Entry> entries = new IdentityHashMap<>();
+  private static int frame = 0;
+  private static int hits = 0, misses = 0;
+
+  /**
+   * Get a framebuffer with one color attachment the size of the screen divided by a number
+   *
+   * @param divisor the number the width and height of the screen are divided by
+   * @return a framebuffer, owned by the caller until it is released
+   */
+  public static Framebuffer acquire(int divisor) {
+    return acquire(divisor, COLOR);
+  }
+
+  /**
+   * Get a framebuffer the size of the screen divided by a number. The contents are undefined
+   *
+   * @param divisor the number the width and height of the screen are divided by
+   * @param spec    the attachments of the framebuffer
+   * @return a framebuffer, owned by the caller until it is released
+   */
+  public static Framebuffer acquire(int divisor, FramebufferSpec spec) {
+    return acquire(divisor, spec, false);
+  }
+
+  /**
+   * Get a framebuffer the size of the screen divided by a number, optionally scaled by {@link DynamicResolution}.
+   * The contents are undefined
+   *
+   * @param divisor the number the width and height of the screen are divided by
+   * @param spec    the attachments of the framebuffer
+   * @param scaled  whether the size follows the dynamic resolution scale
+   * @return a framebuffer, owned by the caller until it is released
+   */
+  public static Framebuffer acquire(int divisor, FramebufferSpec spec, boolean scaled) {
+    assert divisor >= 1 : "[ERROR] Framebuffers can not be larger than the screen";
+    return acquire(1.0f / divisor, 1.0f / divisor, spec, scaled);
+  }
+
+  /**
+   * Get a framebuffer covering a part of the screen, like a {@link Viewport}. The contents are undefined
+   *
+   * @param width  the width as a fraction of the width of the screen
+   * @param height the height as a fraction of the height of the screen
+   * @param spec   the attachments of the framebuffer
+   * @param scaled whether the size follows the dynamic resolution scale
+   * @return a framebuffer, owned by the caller until it is released
+   */
+  public static Framebuffer acquire(float width, float height, FramebufferSpec spec, boolean scaled) {
+    assert width > 0 && width <= 1 && height > 0 && height <= 1 : "[ERROR] Framebuffers can not be larger than the screen";
+    Key key = new Key(width, height, spec, scaled);
+    ArrayDeque<Entry> free = available.get(key);
+    Entry entry = free == null ? null : free.pollLast();
+    if (entry != null) {
+      hits++;
+      fit(entry);
+    } else {
+      misses++;
+      entry = new Entry(key, new Framebuffer(width(key), height(key), spec));
+      entries.put(entry.framebuffer, entry);
+    }
+    entry.free = false;
+    return entry.framebuffer;
+  }
+
+  /**
+   * Give a framebuffer back to the pool. Called by {@link Framebuffer#release()}
+   *
+   * @param framebuffer the framebuffer
+   * @return whether the framebuffer belongs to the pool
+   */
+  public static boolean release(Framebuffer framebuffer) {
+    Entry entry = entries.get(framebuffer);
+    if (entry == null) return false;
+    if (entry.free) return true;
+    entry.free = true;
+    entry.releasedFrame = frame;
+    available.computeIfAbsent(entry.key, k -> new ArrayDeque<>()).addLast(entry);
+    return true;
+  }
+
+  /**
+   * Reallocate a pooled framebuffer that is kept across frames if the screen, or the scale of a scaled framebuffer,
+   * changed since it was created
+   *
+   * @param framebuffer the framebuffer
+   */
+  public static void fit(Framebuffer framebuffer) {
+    Entry entry = entries.get(framebuffer);
+    if (entry != null) fit(entry);
+  }
+
+  private static void fit(Entry entry) {
+    int width = width(entry.key), height = height(entry.key);
+    if (entry.framebuffer.getWidth() != width || entry.framebuffer.getHeight() != height)
+      entry.framebuffer.resize(width, height);
+  }
+
+  private static int width(Key key) {
+    return Math.max((int) (scale(Window.getWidth(), key) * key.width), 1);
+  }
+
+  private static int height(Key key) {
+    return Math.max((int) (scale(Window.getHeight(), key) * key.height), 1);
+  }
+
+  private static int scale(int size, Key key) {
+    return key.scaled ? Math.round(size * DynamicResolution.getScale()) : size;
+  }
+
+  /**
+   * Delete the framebuffers that were not used for {@link #IDLE_FRAMES} frames. Called by the window every frame.
+   */
+  public static void endFrame() {
+    frame++;
+    for (ArrayDeque<Entry> free : available.values()) {
+      while (!free.isEmpty() && frame - free.peekFirst().releasedFrame > IDLE_FRAMES) {
+        Entry entry = free.pollFirst();
+        entries.remove(entry.framebuffer);
+        entry.framebuffer.destroy();
+      }
+    }
+  }
+
+  /**
+   * @return the number of acquisitions served by a pooled framebuffer
+   */
+  public static int getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of acquisitions that had to create a framebuffer
+   */
+  public static int getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of framebuffers owned by the pool, in use or not
+   */
+  public static int getPooledCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the GPU memory taken by the attachments of all pooled framebuffers, in bytes
+   */
+  public static long getResidentBytes() {
+    long bytes = 0;
+    for (Entry entry : entries.values()) {
+      int attachments = 0;
+      for (TextureSpec t : entry.key.spec.attachments)
+        if (t.format != TextureSpec.TextureFormat.NONE) attachments++;
+      // Every supported format takes four bytes per texel
+      bytes += (long) entry.framebuffer.getWidth() * entry.framebuffer.getHeight() * 4 * attachments;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the statistics of the pool in one line, for displaying as an overlay
+   */
+  public static String report() {
+    return String.format("Framebuffers %d %.1f MB %d hits %d misses", getPooledCount(), getResidentBytes() / 1048576f, hits, misses);
+  }
+
+  /**
+   * Forget all framebuffers. They are deleted by {@link Framebuffer#clean()}
+   */
+  public static void clean() {
+    available.clear();
+    entries.clear();
+  }
+
+  private static final class Key {
+    /**
+     * Fractions of the screen size. The reciprocals of powers of two are exact, so divided sizes round down
+     * like an integer division
+     */
+    private final float width, height;
+    private final FramebufferSpec spec;
+    private final boolean scaled;
+
+    private Key(float width, float height, FramebufferSpec spec, boolean scaled) {
+      this.width = width;
+      this.height = height;
+      this.spec = spec;
+      this.scaled = scaled;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key k && width == k.width && height == k.height && scaled == k.scaled && spec.equals(k.spec);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = Float.hashCode(width) * 31 + Float.hashCode(height);
+      return (hash * 31 + spec.hashCode()) * 2 + (scaled ? 1 : 0);
+    }
+  }
+
+  private static final class Entry {
+    private final Key key;
+    private final Framebuffer framebuffer;
+    private boolean free = false;
+    private int releasedFrame;
+
+    private Entry(Key key, Framebuffer framebuffer) {
+      this.key = key;
+      this.framebuffer = framebuffer;
+    }
+  }
+}
@@ -0,0 +1,354 @@
+package org.azurite.graphics;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL14.glBlendEquation;
+import static org.lwjgl.opengl.GL14.glBlendFuncSeparate;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glUseProgram;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+
+/**
+ * Remembers the GL state the engine sets and skips calls that would not change it.
+ * <p>
+ * Covers the bound program, vertex array, buffers, framebuffers and the texture of every unit, as well as blending,
+ * the viewport and the clear color. All engine code binds and sets these through this class, code that talks to GL
+ * directly has to call {@link #invalidate()} afterwards. Deleting a bound object unbinds it in GL, so objects are
+ * deleted through this class as well, otherwise a new object reusing the name would not be bound.
+ * <p>
+ * The element array buffer belongs to the bound vertex array and is never skipped.
+ * The calls issued and skipped are counted per frame, see {@link #report()}.
+ */
+public class GLState {
+  /**
+   * Texture units whose bindings are remembered, bindings to higher units are always issued
+   */
+  private static final int UNITS = 48;
+  /**
+   * Value of state that is not known, the next call setting it is always issued
+   */
+  private static final int UNKNOWN = -1;
+
+  private static int program = UNKNOWN;
+  private static int vertexArray = UNKNOWN;
+  private static int arrayBuffer = UNKNOWN, uniformBuffer = UNKNOWN, indirectBuffer = UNKNOWN;
+  private static int drawFramebuffer = UNKNOWN, readFramebuffer = UNKNOWN;
+  private static int activeUnit = UNKNOWN;
+  private static final int[] textures2D = new int[UNITS];
+  private static final int[] textureArrays = new int[UNITS];
+  private static int blending = UNKNOWN;
+  private static final int[] blendFunc = new int[4];
+  private static int blendEquation = UNKNOWN;
+  private static final int[] viewport = new int[4];
+  private static final float[] clearColor = new float[4];
+
+  private static int issued = 0, skipped = 0;
+  private static int lastIssued = 0, lastSkipped = 0;
+
+  static {
+    invalidate();
+  }
+
+  /**
+   * Forget all remembered state, so the next call setting any of it is issued
+   */
+  public static void invalidate() {
+    program = vertexArray = arrayBuffer = uniformBuffer = indirectBuffer = UNKNOWN;
+    drawFramebuffer = readFramebuffer = activeUnit = UNKNOWN;
+    Arrays.fill(textures2D, UNKNOWN);
+    Arrays.fill(textureArrays, UNKNOWN);
+    blending = blendEquation = UNKNOWN;
+    Arrays.fill(blendFunc, UNKNOWN);
+    Arrays.fill(viewport, UNKNOWN);
+    Arrays.fill(clearColor, Float.NaN);
+  }
+
+  /**
+   * Start counting a new frame. Called by the window every frame.
+   */
+  public static void beginFrame() {
+    lastIssued = issued;
+    lastSkipped = skipped;
+    issued = 0;
+    skipped = 0;
+  }
+
+  /**
+   * Count a call
+   *
+   * @param changed whether the call changes state and has to be issued
+   * @return changed
+   */
+  private static boolean issue(boolean changed) {
+    if (changed) issued++;
+    else skipped++;
+    return changed;
+  }
+
+  /**
+   * Bind a shader program
+   *
+   * @param id the program, 0 for none
+   */
+  public static void useProgram(int id) {
+    if (issue(program != id)) {
+      glUseProgram(id);
+      program = id;
+    }
+  }
+
+  /**
+   * Bind a vertex array
+   *
+   * @param id the vertex array, 0 for none
+   */
+  public static void bindVertexArray(int id) {
+    if (issue(vertexArray != id)) {
+      glBindVertexArray(id);
+      vertexArray = id;
+    }
+  }
+
+  /**
+   * Bind a buffer to a target. The array, uniform and draw indirect buffer bindings are remembered
+   *
+   * @param target the target, like GL_ARRAY_BUFFER
+   * @param id     the buffer, 0 for none
+   */
+  public static void bindBuffer(int target, int id) {
+    if (target == GL_ARRAY_BUFFER) {
+      if (!issue(arrayBuffer != id)) return;
+      arrayBuffer = id;
+    } else if (target == GL_UNIFORM_BUFFER) {
+      if (!issue(uniformBuffer != id)) return;
+      uniformBuffer = id;
+    } else if (target == GL_DRAW_INDIRECT_BUFFER) {
+      if (!issue(indirectBuffer != id)) return;
+      indirectBuffer = id;
+    } else {
+      issue(true);
+    }
+    glBindBuffer(target, id);
+  }
+
+  /**
+   * Bind a buffer to an indexed binding point, which binds it to the target as well
+   *
+   * @param target the target, like GL_UNIFORM_BUFFER
+   * @param index  the binding point
+   * @param id     the buffer
+   */
+  public static void bindBufferBase(int target, int index, int id) {
+    issue(true);
+    glBindBufferBase(target, index, id);
+    if (target == GL_UNIFORM_BUFFER) uniformBuffer = id;
+  }
+
+  /**
+   * Bind a framebuffer
+   *
+   * @param target GL_FRAMEBUFFER, GL_DRAW_FRAMEBUFFER or GL_READ_FRAMEBUFFER
+   * @param id     the framebuffer, 0 for the default framebuffer
+   */
+  public static void bindFramebuffer(int target, int id) {
+    boolean draw = target != GL_READ_FRAMEBUFFER, read = target != GL_DRAW_FRAMEBUFFER;
+    if (issue(draw && drawFramebuffer != id || read && readFramebuffer != id)) {
+      glBindFramebuffer(target, id);
+      if (draw) drawFramebuffer = id;
+      if (read) readFramebuffer = id;
+    }
+  }
+
+  /**
+   * Select the texture unit following texture bindings go to
+   *
+   * @param unit the unit, starting at 0
+   */
+  public static void activeTexture(int unit) {
+    if (issue(activeUnit != unit)) {
+      glActiveTexture(GL_TEXTURE0 + unit);
+      activeUnit = unit;
+    }
+  }
+
+  /**
+   * Bind a texture to the active texture unit
+   *
+   * @param target GL_TEXTURE_2D or GL_TEXTURE_2D_ARRAY
+   * @param id     the texture, 0 for none
+   */
+  public static void bindTexture(int target, int id) {
+    int[] bound = target == GL_TEXTURE_2D ? textures2D : target == GL_TEXTURE_2D_ARRAY ? textureArrays : null;
+    boolean known = bound != null && activeUnit >= 0 && activeUnit < UNITS;
+    if (issue(!known || bound[activeUnit] != id)) {
+      glBindTexture(target, id);
+      if (known) bound[activeUnit] = id;
+    }
+  }
+
+  /**
+   * Bind a texture to a texture unit
+   *
+   * @param unit   the unit, starting at 0
+   * @param target GL_TEXTURE_2D or GL_TEXTURE_2D_ARRAY
+   * @param id     the texture, 0 for none
+   */
+  public static void bindTexture(int unit, int target, int id) {
+    int[] bound = target == GL_TEXTURE_2D ? textures2D : target == GL_TEXTURE_2D_ARRAY ? textureArrays : null;
+    // Switching the unit is only worth it if the binding changes
+    if (bound != null && unit < UNITS && bound[unit] == id) {
+      issue(false);
+      return;
+    }
+    activeTexture(unit);
+    bindTexture(target, id);
+  }
+
+  /**
+   * Switch blending on or off
+   *
+   * @param enabled whether blending should be on
+   */
+  public static void setBlending(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (issue(blending != value)) {
+      if (enabled) glEnable(GL_BLEND);
+      else glDisable(GL_BLEND);
+      blending = value;
+    }
+  }
+
+  /**
+   * Set the blend factors for color and alpha
+   *
+   * @param source      the source factor
+   * @param destination the destination factor
+   */
+  public static void blendFunc(int source, int destination) {
+    blendFuncSeparate(source, destination, source, destination);
+  }
+
+  /**
+   * Set the blend factors for color and alpha separately
+   */
+  public static void blendFuncSeparate(int sourceRGB, int destinationRGB, int sourceAlpha, int destinationAlpha) {
+    if (issue(blendFunc[0] != sourceRGB || blendFunc[1] != destinationRGB
+        || blendFunc[2] != sourceAlpha || blendFunc[3] != destinationAlpha)) {
+      glBlendFuncSeparate(sourceRGB, destinationRGB, sourceAlpha, destinationAlpha);
+      blendFunc[0] = sourceRGB;
+      blendFunc[1] = destinationRGB;
+      blendFunc[2] = sourceAlpha;
+      blendFunc[3] = destinationAlpha;
+    }
+  }
+
+  /**
+   * Set the equation combining the source and the destination
+   *
+   * @param mode the equation, like GL_FUNC_ADD
+   */
+  public static void blendEquation(int mode) {
+    if (issue(blendEquation != mode)) {
+      glBlendEquation(mode);
+      blendEquation = mode;
+    }
+  }
+
+  /**
+   * Set the viewport
+   */
+  public static void viewport(int x, int y, int width, int height) {
+    if (issue(viewport[0] != x || viewport[1] != y || viewport[2] != width || viewport[3] != height)) {
+      glViewport(x, y, width, height);
+      viewport[0] = x;
+      viewport[1] = y;
+      viewport[2] = width;
+      viewport[3] = height;
+    }
+  }
+
+  /**
+   * Set the color the color buffer is cleared with
+   */
+  public static void clearColor(float r, float g, float b, float a) {
+    if (issue(clearColor[0] != r || clearColor[1] != g || clearColor[2] != b || clearColor[3] != a)) {
+      glClearColor(r, g, b, a);
+      clearColor[0] = r;
+      clearColor[1] = g;
+      clearColor[2] = b;
+      clearColor[3] = a;
+    }
+  }
+
+  /**
+   * Delete a texture, forgetting its bindings
+   *
+   * @param id the texture
+   */
+  public static void deleteTexture(int id) {
+    for (int i = 0; i < UNITS; i++) {
+      if (textures2D[i] == id) textures2D[i] = 0;
+      if (textureArrays[i] == id) textureArrays[i] = 0;
+    }
+    glDeleteTextures(id);
+  }
+
+  /**
+   * Delete a buffer, forgetting its bindings
+   *
+   * @param id the buffer
+   */
+  public static void deleteBuffer(int id) {
+    if (arrayBuffer == id) arrayBuffer = 0;
+    if (uniformBuffer == id) uniformBuffer = 0;
+    if (indirectBuffer == id) indirectBuffer = 0;
+    glDeleteBuffers(id);
+  }
+
+  /**
+   * Delete a vertex array, forgetting its binding
+   *
+   * @param id the vertex array
+   */
+  public static void deleteVertexArray(int id) {
+    if (vertexArray == id) vertexArray = 0;
+    glDeleteVertexArrays(id);
+  }
+
+  /**
+   * Delete a framebuffer, forgetting its bindings
+   *
+   * @param id the framebuffer
+   */
+  public static void deleteFramebuffer(int id) {
+    if (drawFramebuffer == id) drawFramebuffer = 0;
+    if (readFramebuffer == id) readFramebuffer = 0;
+    glDeleteFramebuffers(id);
+  }
+
+  /**
+   * @return the number of state changing calls issued in the last frame
+   */
+  public static int getIssued() {
+    return lastIssued;
+  }
+
+  /**
+   * @return the number of calls skipped in the last frame, because they would not have changed the state
+   */
+  public static int getSkipped() {
+    return lastSkipped;
+  }
+
+  /**
+   * @return a line with the calls issued and skipped in the last frame, for the profile overlay of a scene
+   */
+  public static String report() {
+    return String.format("GL state %d calls %d skipped%n", lastIssued, lastSkipped);
+  }
+}
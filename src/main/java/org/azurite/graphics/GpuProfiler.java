@@ -0,0 +1,235 @@
+package org.azurite.graphics;
+
+import org.azurite.util.Log;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+
+/**
+ * Measures the GPU time of renderers and post processing steps with GL_TIME_ELAPSED queries.
+ * <p>
+ * Every section owns a small ring of queries. A query is only read once the GPU reports its result as available,
+ * usually {@link #LATENCY} - 1 frames later, so profiling never stalls the pipeline.
+ * Time queries can not be nested, so a section started while another one is running is not timed,
+ * and the time of a group like a {@link org.azurite.graphics.postprocess.BloomEffect} is the sum of its steps.
+ * <p>
+ * Profiling is off by default, it is switched on together with the debug mode of a scene.
+ */
+public class GpuProfiler {
+  /**
+   * Number of frames a query may be in flight
+   */
+  public static final int LATENCY = 3;
+
+  private static final Map<String, Section> sections = new LinkedHashMap<>();
+  private static final StringBuilder groups = new StringBuilder();
+  private static boolean enabled = false;
+  private static Boolean supported;
+  private static Section active;
+  private static int frame = 0;
+
+  /**
+   * Switch profiling on or off
+   *
+   * @param enabled whether the sections should be timed
+   */
+  public static void setEnabled(boolean enabled) {
+    if (enabled && !isSupported()) {
+      Log.logger.warn("GPU profiling requires timer queries, which are not supported", 1);
+      return;
+    }
+    GpuProfiler.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return whether the context supports GL_TIME_ELAPSED queries
+   */
+  public static boolean isSupported() {
+    if (supported == null) {
+      GLCapabilities caps = GL.getCapabilities();
+      supported = caps.OpenGL33 || caps.GL_ARB_timer_query;
+    }
+    return supported;
+  }
+
+  /**
+   * Start a new frame and collect the results of queries that have finished. Called by the window every frame.
+   */
+  public static void beginFrame() {
+    if (!enabled) return;
+    frame++;
+    for (Section s : sections.values()) s.collect();
+  }
+
+  /**
+   * Prefix the names of the following sections with a group name, e.g. for the steps of a pipeline
+   *
+   * @param name name of the group
+   */
+  public static void pushGroup(String name) {
+    groups.append(name).append('/');
+  }
+
+  /**
+   * End the innermost group
+   */
+  public static void popGroup() {
+    int end = groups.length() - 1;
+    int start = groups.lastIndexOf("/", end - 1) + 1;
+    groups.setLength(start);
+  }
+
+  /**
+   * Start timing a section. Does nothing if profiling is off, another section is running or
+   * the section was already timed this frame.
+   *
+   * @param name name of the section, prefixed with the current groups
+   * @return whether this call started timing, only then {@link #end(int, int)} should be called for it
+   */
+  public static boolean begin(String name) {
+    if (!enabled || active != null) return false;
+    String fullName = groups.length() == 0 ? name : groups + name;
+    Section s = sections.computeIfAbsent(fullName, Section::new);
+    if (!s.begin()) return false;
+    active = s;
+    return true;
+  }
+
+  /**
+   * Stop timing the running section
+   *
+   * @param drawCalls number of draw calls issued in the section
+   * @param vertices  number of vertices drawn in the section
+   */
+  public static void end(int drawCalls, int vertices) {
+    if (active == null) return;
+    active.end(drawCalls, vertices);
+    active = null;
+  }
+
+  /**
+   * Get the GPU time of a section, or the sum of the sections in a group
+   *
+   * @param name full name of the section or group
+   * @return the GPU time in milliseconds of the latest measured frame
+   */
+  public static float getGpuTime(String name) {
+    Section s = sections.get(name);
+    if (s != null) return s.gpuTime;
+    float sum = 0;
+    for (Section child : sections.values())
+      if (child.name.startsWith(name + "/")) sum += child.gpuTime;
+    return sum;
+  }
+
+  /**
+   * @param name full name of the section
+   * @return the number of draw calls of the section in its last frame
+   */
+  public static int getDrawCalls(String name) {
+    Section s = sections.get(name);
+    return s == null ? 0 : s.drawCalls;
+  }
+
+  /**
+   * @param name full name of the section
+   * @return the number of vertices of the section in its last frame
+   */
+  public static int getVertexCount(String name) {
+    Section s = sections.get(name);
+    return s == null ? 0 : s.vertices;
+  }
+
+  /**
+   * @return the names of all sections, in the order they were first timed
+   */
+  public static List<String> getSections() {
+    return new ArrayList<>(sections.keySet());
+  }
+
+  /**
+   * @return the summed GPU time of all sections in milliseconds
+   */
+  public static float getTotalGpuTime() {
+    float sum = 0;
+    for (Section s : sections.values()) sum += s.gpuTime;
+    return sum;
+  }
+
+  /**
+   * @return one line per section with its GPU time, draw calls and vertices, for displaying as an overlay
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("GPU %.2f ms%n", getTotalGpuTime()));
+    for (Section s : sections.values()) {
+      if (frame - s.lastFrame > LATENCY) continue;
+      sb.append(String.format("%s %.2f ms %d calls %d verts%n", s.name, s.gpuTime, s.drawCalls, s.vertices));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Delete all queries
+   */
+  public static void clean() {
+    for (Section s : sections.values()) glDeleteQueries(s.queries);
+    sections.clear();
+    active = null;
+  }
+
+  private static class Section {
+    private final String name;
+    private final int[] queries = new int[LATENCY];
+    private final boolean[] pending = new boolean[LATENCY];
+    private float gpuTime = 0;
+    private int drawCalls, vertices;
+    private int lastFrame = -1;
+
+    private Section(String name) {
+      this.name = name;
+      glGenQueries(queries);
+    }
+
+    /**
+     * Read every finished query from the oldest to the newest, keeping the most recent result
+     */
+    private void collect() {
+      for (int i = LATENCY; i >= 1; i--) {
+        int slot = Math.floorMod(frame - i, LATENCY);
+        if (!pending[slot]) continue;
+        if (glGetQueryObjecti(queries[slot], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE) continue;
+        gpuTime = glGetQueryObjecti64(queries[slot], GL_QUERY_RESULT) / 1_000_000f;
+        pending[slot] = false;
+      }
+    }
+
+    private boolean begin() {
+      int slot = frame % LATENCY;
+      // Timed already this frame, or the GPU is still behind by more than the ring can hold
+      if (lastFrame == frame || pending[slot]) return false;
+      glBeginQuery(GL_TIME_ELAPSED, queries[slot]);
+      return true;
+    }
+
+    private void end(int drawCalls, int vertices) {
+      glEndQuery(GL_TIME_ELAPSED);
+      pending[frame % LATENCY] = true;
+      lastFrame = frame;
+      this.drawCalls = drawCalls;
+      this.vertices = vertices;
+    }
+  }
+}
@@ -23,7 +23,7 @@ public class Graphics {
     g = map(g, 0, 255, 0, 1);
     b = map(b, 0, 255, 0, 1);
 
-    glClearColor(r, g, b, 1);
+    GLState.clearColor(r, g, b, 1);
     glClear(GL_COLOR_BUFFER_BIT);
   }
 
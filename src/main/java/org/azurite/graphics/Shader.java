@@ -7,12 +7,17 @@ import org.lwjgl.BufferUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import static org.lwjgl.opengl.GL11.GL_FALSE;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
 
 public class Shader {
   /**
@@ -27,13 +32,21 @@ public class Shader {
   // Setup shaders
   private final HashMap<String, Integer> uniformLocations;
   /**
-   * The Shader Program's ID
+   * Reused for uploading matrices, so that uploads do not allocate
    */
-  private int shaderProgramID;
+  private final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
   /**
-   * Is this shader currently bound
+   * Last values uploaded to each uniform location, up to four ints or float bits per location,
+   * so that uploading an unchanged value does not call glUniform again
+   */
+  private int[] shadow = new int[0];
+  private boolean[] shadowed = new boolean[0];
+  private Matrix4f[] shadowMatrices = new Matrix4f[0];
+  private int[][] shadowArrays = new int[0][];
+  /**
+   * The Shader Program's ID
    */
-  private boolean beingUsed = false;
+  private int shaderProgramID;
   /**
    * Vertex Shader code
    */
@@ -154,36 +167,98 @@ public class Shader {
       Log.logger.error(glGetProgramInfoLog(shaderProgramID, length), false);
       assert false : "";
     }
+
+    int cameraBlock = glGetUniformBlockIndex(shaderProgramID, CameraBuffer.BLOCK_NAME);
+    if (cameraBlock != GL_INVALID_INDEX) glUniformBlockBinding(shaderProgramID, cameraBlock, CameraBuffer.BINDING);
+    resolveUniforms();
+  }
+
+  /**
+   * Look up the locations of all active uniforms once, and size the shadow cache for them.
+   * Arrays are registered both as "name[0]" and "name".
+   */
+  private void resolveUniforms() {
+    int count = glGetProgrami(shaderProgramID, GL_ACTIVE_UNIFORMS);
+    IntBuffer size = BufferUtils.createIntBuffer(1);
+    IntBuffer type = BufferUtils.createIntBuffer(1);
+    int maxLocation = -1;
+    for (int i = 0; i < count; i++) {
+      String name = glGetActiveUniform(shaderProgramID, i, size, type);
+      int location = glGetUniformLocation(shaderProgramID, name);
+      // Members of uniform blocks have no location
+      if (location == -1) continue;
+      uniformLocations.put(name, location);
+      if (name.endsWith("[0]")) uniformLocations.put(name.substring(0, name.length() - 3), location);
+      maxLocation = java.lang.Math.max(maxLocation, location + java.lang.Math.max(size.get(0), 1) - 1);
+    }
+    growShadow(maxLocation + 1);
+  }
+
+  private void growShadow(int locations) {
+    if (locations <= shadowed.length) return;
+    shadow = Arrays.copyOf(shadow, locations * 4);
+    shadowed = Arrays.copyOf(shadowed, locations);
+    shadowMatrices = Arrays.copyOf(shadowMatrices, locations);
+    shadowArrays = Arrays.copyOf(shadowArrays, locations);
+  }
+
+  /**
+   * Check a value against the shadow cache and remember it
+   *
+   * @return whether the value is already set, so the upload can be skipped
+   */
+  private boolean unchanged(int location, int a, int b, int c, int d) {
+    if (location < 0) return true;
+    growShadow(location + 1);
+    int i = location * 4;
+    if (shadowed[location] && shadow[i] == a && shadow[i + 1] == b && shadow[i + 2] == c && shadow[i + 3] == d)
+      return true;
+    shadowed[location] = true;
+    shadow[i] = a;
+    shadow[i + 1] = b;
+    shadow[i + 2] = c;
+    shadow[i + 3] = d;
+    return false;
+  }
+
+  private boolean unchanged(int location, float a, float b, float c, float d) {
+    return unchanged(location, Float.floatToRawIntBits(a), Float.floatToRawIntBits(b),
+        Float.floatToRawIntBits(c), Float.floatToRawIntBits(d));
   }
 
   /**
    * Bind the shader program
    */
   public void attach() {
-    if (!beingUsed) {
-      // bind shader program
-      glUseProgram(shaderProgramID);
-      beingUsed = true;
-    }
+    GLState.useProgram(shaderProgramID);
   }
 
   /**
    * Unbind the shader program
    */
   public void detach() {
-    glUseProgram(0);
-    beingUsed = false;
+    GLState.useProgram(0);
   }
 
   private int getLocation(String name) {
-    int location = uniformLocations.getOrDefault(name, -1);
-    if (location == -1) {
+    Integer location = uniformLocations.get(name);
+    if (location == null) {
       location = glGetUniformLocation(shaderProgramID, name);
       uniformLocations.put(name, location);
     }
     return location;
   }
 
+  /**
+   * Get the location of a uniform once, to upload to it without looking up its name every frame
+   *
+   * @param name name of the uniform
+   * @return the location of the uniform, -1 if the shader does not use it
+   */
+  public int getUniformLocation(String name) {
+    return getLocation(name);
+  }
+
   /**
    * Upload a 4x4 Matrix to the gpu
    *
@@ -191,11 +266,26 @@ public class Shader {
    * @param mat4    the matrix to be uploaded
    */
   public void uploadMat4f(String varName, Matrix4f mat4) {
-    int varLocation = getLocation(varName);
+    uploadMat4f(getLocation(varName), mat4);
+  }
+
+  /**
+   * Upload a 4x4 Matrix to the gpu
+   *
+   * @param location location of the uniform
+   * @param mat4     the matrix to be uploaded
+   * @see #getUniformLocation(String)
+   */
+  public void uploadMat4f(int location, Matrix4f mat4) {
+    if (location < 0) return;
+    growShadow(location + 1);
+    if (mat4.equals(shadowMatrices[location])) return;
+    if (shadowMatrices[location] == null) shadowMatrices[location] = new Matrix4f();
+    shadowMatrices[location].set(mat4);
+
     attach(); // make sure the shader is being used
-    FloatBuffer matBuffer = BufferUtils.createFloatBuffer(16);
-    mat4.get(matBuffer);
-    glUniformMatrix4fv(varLocation, false, matBuffer);
+    mat4.get(matrixBuffer);
+    glUniformMatrix4fv(location, false, matrixBuffer);
   }
 
   /**
@@ -207,9 +297,10 @@ public class Shader {
   public void uploadMat3f(String varName, Matrix3f mat3) {
     int varLocation = getLocation(varName);
     attach();
-    FloatBuffer matBuffer = BufferUtils.createFloatBuffer(9);
-    mat3.get(matBuffer);
-    glUniformMatrix3fv(varLocation, false, matBuffer);
+    matrixBuffer.limit(9);
+    mat3.get(matrixBuffer);
+    glUniformMatrix3fv(varLocation, false, matrixBuffer);
+    matrixBuffer.clear();
   }
 
   /**
@@ -219,9 +310,19 @@ public class Shader {
    * @param vec     the vector to be uploaded
    */
   public void uploadVec4f(String varName, Vector4f vec) {
-    int varLocation = getLocation(varName);
+    uploadVec4f(getLocation(varName), vec);
+  }
+
+  /**
+   * Upload a 4-d Vector to the gpu
+   *
+   * @param location location of the uniform
+   * @param vec      the vector to be uploaded
+   */
+  public void uploadVec4f(int location, Vector4f vec) {
+    if (unchanged(location, vec.x, vec.y, vec.z, vec.w)) return;
     attach(); // make sure the shader is being used
-    glUniform4f(varLocation, vec.x, vec.y, vec.z, vec.w);
+    glUniform4f(location, vec.x, vec.y, vec.z, vec.w);
   }
 
   /**
@@ -249,9 +350,19 @@ public class Shader {
    * @param vec     the vector to be uploaded
    */
   public void uploadVec2f(String varName, Vector2f vec) {
-    int varLocation = getLocation(varName);
+    uploadVec2f(getLocation(varName), vec);
+  }
+
+  /**
+   * Upload a 2-d Vector to the gpu
+   *
+   * @param location location of the uniform
+   * @param vec      the vector to be uploaded
+   */
+  public void uploadVec2f(int location, Vector2f vec) {
+    if (unchanged(location, vec.x, vec.y, 0, 0)) return;
     attach();
-    glUniform2f(varLocation, vec.x, vec.y);
+    glUniform2f(location, vec.x, vec.y);
   }
 
   /**
@@ -278,9 +389,19 @@ public class Shader {
    * @param val     the float value to be uploaded
    */
   public void uploadFloat(String varName, float val) {
-    int varLocation = getLocation(varName);
+    uploadFloat(getLocation(varName), val);
+  }
+
+  /**
+   * Upload a float to the gpu
+   *
+   * @param location location of the uniform
+   * @param val      the float value to be uploaded
+   */
+  public void uploadFloat(int location, float val) {
+    if (unchanged(location, val, 0, 0, 0)) return;
     attach(); // make sure the shader is being used
-    glUniform1f(varLocation, val);
+    glUniform1f(location, val);
   }
 
   /**
@@ -302,9 +423,19 @@ public class Shader {
    * @param val     the int value to be uploaded
    */
   public void uploadInt(String varName, int val) {
-    int varLocation = getLocation(varName);
+    uploadInt(getLocation(varName), val);
+  }
+
+  /**
+   * Upload an int to the gpu
+   *
+   * @param location location of the uniform
+   * @param val      the int value to be uploaded
+   */
+  public void uploadInt(int location, int val) {
+    if (unchanged(location, val, 0, 0, 0)) return;
     attach(); // make sure the shader is being used
-    glUniform1i(varLocation, val);
+    glUniform1i(location, val);
   }
 
   /**
@@ -314,10 +445,7 @@ public class Shader {
    * @param slot    the texture slot to which the texture is bound
    */
   public void uploadTexture(String varName, int slot) {
-    int varLocation = getLocation(varName);
-    attach(); // make sure the shader is being used
-    glActiveTexture(varLocation);
-    glUniform1i(varLocation, slot);
+    uploadInt(getLocation(varName), slot);
   }
 
   /**
@@ -327,8 +455,21 @@ public class Shader {
    * @param array   the array to be uploaded
    */
   public void uploadIntArray(String varName, int[] array) {
-    int varLocation = getLocation(varName);
+    uploadIntArray(getLocation(varName), array);
+  }
+
+  /**
+   * Upload a int array to the gpu
+   *
+   * @param location location of the first element of the uniform
+   * @param array    the array to be uploaded
+   */
+  public void uploadIntArray(int location, int[] array) {
+    if (location < 0) return;
+    growShadow(location + 1);
+    if (Arrays.equals(shadowArrays[location], array)) return;
+    shadowArrays[location] = array.clone();
     attach();
-    glUniform1iv(varLocation, array);
+    glUniform1iv(location, array);
   }
 }
@@ -2,6 +2,8 @@ package org.azurite.graphics;
 
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
 
 /**
  * Represents a datatype in GLSL
@@ -16,10 +18,23 @@ public enum ShaderDatatype {
     FLOAT3(3, 3 * Float.BYTES, GL_FLOAT),
     FLOAT4(4, 4 * Float.BYTES, GL_FLOAT),
     MAT3(9, 3 * 3 * Float.BYTES, GL_FLOAT),
-    MAT4(16, 4 * 4 * Float.BYTES, GL_FLOAT);
+    MAT4(16, 4 * 4 * Float.BYTES, GL_FLOAT),
+    /**
+     * Four bytes mapped to 0-1 in the shader, e.g. a packed RGBA color. Takes the space of a single float
+     */
+    UBYTE4_NORM(4, 4, GL_UNSIGNED_BYTE, true),
+    /**
+     * Two unsigned shorts mapped to 0-1 in the shader, e.g. texture coordinates. Takes the space of a single float
+     */
+    USHORT2_NORM(2, 2 * Short.BYTES, GL_UNSIGNED_SHORT, true),
+    /**
+     * A single unsigned byte read as a float from 0-255, e.g. a texture index.
+     * Padded to four bytes, so that the following attributes stay aligned
+     */
+    UBYTE_PADDED(1, 4, GL_UNSIGNED_BYTE);
 
     /**
-     * Number of FLOATS or INTS
+     * Number of components (FLOATS, INTS, SHORTS or BYTES)
      */
     public final int count;
     /**
@@ -30,10 +45,19 @@ public enum ShaderDatatype {
      * OpenGL expected type
      */
     public final int openglType;
+    /**
+     * Are integer components mapped to 0-1 when they are read by the shader
+     */
+    public final boolean normalized;
 
     ShaderDatatype(int count, int bytes, int openglType) {
+        this(count, bytes, openglType, false);
+    }
+
+    ShaderDatatype(int count, int bytes, int openglType, boolean normalized) {
         this.count = count;
         this.size = bytes;
         this.openglType = openglType;
+        this.normalized = normalized;
     }
 }
@@ -0,0 +1,159 @@
+package org.azurite.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs rectangles into an area using the bottom-left skyline heuristic.
+ * The skyline is the outline of the top edges of all packed rectangles. A new rectangle is put
+ * where its top edge ends up lowest, preferring the left-most position on ties.
+ * Used by the {@link TextureAtlas} to place images on its pages.
+ */
+public class SkylinePacker {
+  /**
+   * Segments of the skyline from left to right, each one as {x, y, width}
+   */
+  private final List<int[]> skyline = new ArrayList<>();
+  private int width, height;
+  /**
+   * Area covered by packed rectangles
+   */
+  private long usedArea = 0;
+
+  /**
+   * @param width  width of the area to pack into
+   * @param height height of the area to pack into
+   */
+  public SkylinePacker(int width, int height) {
+    this.width = width;
+    this.height = height;
+    skyline.add(new int[]{0, 0, width});
+  }
+
+  /**
+   * Find a place for a rectangle and occupy it
+   *
+   * @param w width of the rectangle
+   * @param h height of the rectangle
+   * @return the position {x, y} of the rectangle, or null if it does not fit
+   */
+  public int[] insert(int w, int h) {
+    if (w <= 0 || h <= 0) return null;
+
+    int bestIndex = -1;
+    int bestY = 0;
+    int bestTop = Integer.MAX_VALUE;
+    for (int i = 0; i < skyline.size(); i++) {
+      int y = fit(i, w, h);
+      if (y >= 0 && y + h < bestTop) {
+        bestIndex = i;
+        bestY = y;
+        bestTop = y + h;
+      }
+    }
+    if (bestIndex == -1) return null;
+
+    int x = skyline.get(bestIndex)[0];
+    addSegment(bestIndex, x, bestTop, w);
+    usedArea += (long) w * h;
+    return new int[]{x, bestY};
+  }
+
+  /**
+   * Check if a rectangle fits with its left edge at the start of a segment
+   *
+   * @return the y the rectangle would rest on, or -1 if it does not fit
+   */
+  private int fit(int index, int w, int h) {
+    int x = skyline.get(index)[0];
+    if (x + w > width) return -1;
+
+    int y = 0;
+    int remaining = w;
+    for (int i = index; remaining > 0; i++) {
+      int[] segment = skyline.get(i);
+      y = Math.max(y, segment[1]);
+      if (y + h > height) return -1;
+      remaining -= segment[2];
+    }
+    return y;
+  }
+
+  /**
+   * Put a new segment into the skyline, shrinking or removing the segments it covers
+   */
+  private void addSegment(int index, int x, int y, int w) {
+    skyline.add(index, new int[]{x, y, w});
+
+    int end = x + w;
+    int i = index + 1;
+    while (i < skyline.size()) {
+      int[] segment = skyline.get(i);
+      if (segment[0] >= end) break;
+
+      int overlap = end - segment[0];
+      if (overlap >= segment[2]) {
+        skyline.remove(i);
+      } else {
+        segment[0] += overlap;
+        segment[2] -= overlap;
+        break;
+      }
+    }
+    merge();
+  }
+
+  /**
+   * Merge neighbouring segments of the same height
+   */
+  private void merge() {
+    for (int i = 0; i < skyline.size() - 1; ) {
+      int[] a = skyline.get(i);
+      int[] b = skyline.get(i + 1);
+      if (a[1] == b[1]) {
+        a[2] += b[2];
+        skyline.remove(i + 1);
+      } else {
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Enlarge the area. Packed rectangles keep their positions.
+   *
+   * @param newWidth  the new width, not smaller than the current one
+   * @param newHeight the new height, not smaller than the current one
+   */
+  public void grow(int newWidth, int newHeight) {
+    assert newWidth >= width && newHeight >= height : "[ERROR] SkylinePacker can not shrink";
+    if (newWidth > width) {
+      skyline.add(new int[]{width, 0, newWidth - width});
+      merge();
+    }
+    width = newWidth;
+    height = newHeight;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return the fraction of the area covered by packed rectangles, from 0 to 1
+   */
+  public float getOccupancy() {
+    return (float) usedArea / ((long) width * height);
+  }
+
+  /**
+   * @return the area covered by packed rectangles
+   */
+  public long getUsedArea() {
+    return usedArea;
+  }
+}
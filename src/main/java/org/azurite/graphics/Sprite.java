@@ -26,6 +26,11 @@ public class Sprite {
             new Vector2f(1, 0)
     };
 
+    /**
+     * Polygon around the visible pixels of this sprite, null to draw the whole quad
+     */
+    private AlphaHull hull;
+
     /**
      * Construct a Sprite using custom texture coordinates (uv).
      *
@@ -45,6 +50,7 @@ public class Sprite {
     public Sprite(Texture texture) {
         this.texture = texture;
         this.textureCoordinates = defaultTextureCoordinates;
+        if (texture != null) this.hull = texture.getHull();
     }
 
     /**
@@ -68,6 +74,33 @@ public class Sprite {
         return this.textureCoordinates;
     }
 
+    /**
+     * Set this sprite's texture coordinates
+     *
+     * @param uv the new texture coordinates, one for each corner of the quad
+     */
+    public void setTextureCoordinates(Vector2f[] uv) {
+        this.textureCoordinates = uv;
+    }
+
+    /**
+     * Get the polygon around the visible pixels of this sprite
+     *
+     * @return the hull, relative to the part of the texture the sprite shows, or null if there is none
+     */
+    public AlphaHull getHull() {
+        return hull;
+    }
+
+    /**
+     * Set the polygon around the visible pixels of this sprite
+     *
+     * @param hull the hull, relative to the part of the texture the sprite shows, or null to draw the whole quad
+     */
+    public void setHull(AlphaHull hull) {
+        this.hull = hull;
+    }
+
     /**
      * Get the texture id of this sprite
      */
@@ -1,7 +1,9 @@
 package org.azurite.graphics;
 
 import org.joml.Vector2f;
+import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,6 +14,7 @@ public class Spritesheet {
 
     /**
      * Takes a texture, sprite width, height, number of sprites and the pixel spacing between sprites (if applicable), and adds each sprite in the sheet to a List.
+     * If {@link Texture#usesAlphaHulls()}, every sprite gets an {@link AlphaHull} of its own.
      *
      * @param texture
      * @param spriteWidth
@@ -25,6 +28,8 @@ public class Spritesheet {
         this.texture = texture;
         int currentX = 0;
         int currentY = texture.getHeight() - spriteHeight;
+        // Read back once for all sprites, images without transparency have nothing to trim
+        ByteBuffer pixels = Texture.usesAlphaHulls() && texture.getOpacity() != Texture.Opacity.OPAQUE ? texture.readPixels() : null;
         for (int i = 0; i < numSprites; i++) {
             float topY = (currentY + spriteHeight) / (float) texture.getHeight();
             float rightX = (currentX + spriteWidth) / (float) texture.getWidth();
@@ -38,6 +43,8 @@ public class Spritesheet {
                     new Vector2f(leftX, bottomY)
             };
             Sprite sprite = new Sprite(this.texture, texCoords);
+            if (pixels != null && currentY >= 0 && currentX + spriteWidth <= texture.getWidth())
+                sprite.setHull(AlphaHull.compute(pixels, 4, texture.getWidth(), currentX, currentY, spriteWidth, spriteHeight));
             this.sprites.add(sprite);
 
             currentX += spriteWidth + spacing;
@@ -46,6 +53,7 @@ public class Spritesheet {
                 currentY -= spriteHeight + spacing;
             }
         }
+        if (pixels != null) MemoryUtil.memFree(pixels);
     }
 
     /**
@@ -67,6 +75,13 @@ public class Spritesheet {
         return this.sprites.get(index);
     }
 
+    /**
+     * @return the texture the sprites were cut from
+     */
+    public Texture getTexture() {
+        return texture;
+    }
+
     /**
      * @return entire list of sprites contained in Spritesheet
      */
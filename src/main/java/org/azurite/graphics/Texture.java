@@ -6,6 +6,7 @@ import org.azurite.util.Log;
 import org.azurite.util.specs.TextureSpec;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -17,8 +18,8 @@ import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.GL_TEXTURE_WRAP_R;
-import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL30.GL_DEPTH_STENCIL;
+import static org.lwjgl.opengl.GL30.GL_UNSIGNED_INT_24_8;
 import static org.lwjgl.stb.STBImage.*;
 
 /**
@@ -45,6 +46,22 @@ public class Texture {
    */
   private int width, height;
 
+  /**
+   * How the texels of the texture cover what is behind them. Known for images, textures created otherwise
+   * are treated as translucent
+   */
+  private Opacity opacity = Opacity.TRANSLUCENT;
+
+  /**
+   * Are hulls computed for images loaded from now on
+   */
+  private static boolean alphaHulls = false;
+
+  /**
+   * Polygon around the visible pixels of the image, null if not computed or nothing can be trimmed
+   */
+  private AlphaHull hull;
+
   /**
    * Wrap the given id into a texture object
    *
@@ -83,9 +100,16 @@ public class Texture {
 
   public Texture(int width, int height, TextureSpec spec) {
     filePath = "==== Created ====";
+    this.width = width;
+    this.height = height;
     textureID = glGenTextures();
-    glBindTexture(GL_TEXTURE_2D, textureID);
-    glTexImage2D(GL_TEXTURE_2D, 0, spec.format.internalFormat, width, height, 0, spec.format.format, spec.format.datatype, 0);
+    GLState.bindTexture(GL_TEXTURE_2D, textureID);
+    if (spec.format.isDepth) {
+      // The format of depth specs is their attachment point, the texel format is always packed depth and stencil
+      glTexImage2D(GL_TEXTURE_2D, 0, spec.format.internalFormat, width, height, 0, GL_DEPTH_STENCIL, GL_UNSIGNED_INT_24_8, 0);
+    } else {
+      glTexImage2D(GL_TEXTURE_2D, 0, spec.format.internalFormat, width, height, 0, spec.format.format, spec.format.datatype, 0);
+    }
 
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, spec.minificationFilter.glType);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, spec.magnificationFilter.glType);
@@ -104,7 +128,7 @@ public class Texture {
    * @param height height of the texture
    */
   public static void toFile(String file, int id, int width, int height) {
-    glBindTexture(GL_TEXTURE_2D, id);
+    GLState.bindTexture(GL_TEXTURE_2D, id);
     ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4);
     BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 
@@ -173,6 +197,9 @@ public class Texture {
         Log.logger.error("Graphics.Texture - Unknown number of channels \"" + channels.get(0) + "\".");
         throw new RuntimeException("[ERROR] Graphics.Texture - Unknown number of channels \"" + channels.get(0) + "\".");
       }
+      opacity = classify(byteBufferOfImage, this.width * this.height, channels.get(0));
+      if (alphaHulls && opacity != Opacity.OPAQUE)
+        hull = AlphaHull.compute(byteBufferOfImage, channels.get(0), this.width, 0, 0, this.width, this.height);
     } else {
       Log.logger.error("Graphics.Texture - Could not load image \"" + filePath + "\".");
       throw new RuntimeException("[ERROR] Graphics.Texture - Could not load image \"" + filePath + "\".");
@@ -180,10 +207,29 @@ public class Texture {
     stbi_image_free(byteBufferOfImage);
   }
 
+  /**
+   * Find out how the pixels of an image cover what is behind them
+   *
+   * @param pixels   the pixels, with the channels of every pixel in a row
+   * @param count    the number of pixels
+   * @param channels the number of channels, the alpha is the fourth one
+   * @return the opacity of the image
+   */
+  static Opacity classify(ByteBuffer pixels, int count, int channels) {
+    if (channels < 4) return Opacity.OPAQUE;
+    Opacity opacity = Opacity.OPAQUE;
+    for (int i = 0; i < count; i++) {
+      int alpha = pixels.get(i * channels + 3) & 0xFF;
+      if (alpha == 0) opacity = Opacity.ALPHA_TESTED;
+      else if (alpha != 255) return Opacity.TRANSLUCENT;
+    }
+    return opacity;
+  }
+
   private void initTexturesOnGpu() {
     // generate texture on GPU
     textureID = glGenTextures();
-    glBindTexture(GL_TEXTURE_2D, textureID);
+    GLState.bindTexture(GL_TEXTURE_2D, textureID);
 
     // Set texture parameters
     // tile image in both directions
@@ -272,7 +318,7 @@ public class Texture {
    * Bind this texture to the currently active texture slot
    */
   public void bind() {
-    glBindTexture(GL_TEXTURE_2D, textureID);
+    GLState.bindTexture(GL_TEXTURE_2D, textureID);
   }
 
   /**
@@ -281,15 +327,64 @@ public class Texture {
    * @param unit the texture unit to bind this texture to
    */
   public void bindToSlot(int unit) {
-    glActiveTexture(GL_TEXTURE0 + unit);
-    glBindTexture(GL_TEXTURE_2D, textureID);
+    GLState.bindTexture(unit, GL_TEXTURE_2D, textureID);
   }
 
   /**
    * Unbind the texture
    */
   public void unbind() {
-    glBindTexture(GL_TEXTURE_2D, 0);
+    GLState.bindTexture(GL_TEXTURE_2D, 0);
+  }
+
+  /**
+   * Compute an {@link AlphaHull} for every image loaded from now on, and for the sprites of spritesheets
+   * cut from such images. Renderers can then draw sprites with large transparent borders as a tighter polygon.
+   * The hulls are computed once while loading. Off by default.
+   *
+   * @param enabled whether hulls should be computed
+   * @see org.azurite.graphics.renderer.DefaultRenderer#setAlphaTrimming(boolean)
+   */
+  public static void setAlphaHulls(boolean enabled) {
+    alphaHulls = enabled;
+  }
+
+  public static boolean usesAlphaHulls() {
+    return alphaHulls;
+  }
+
+  /**
+   * @return the polygon around the visible pixels of the whole image, or null if it was not computed
+   * or nothing can be trimmed
+   */
+  public AlphaHull getHull() {
+    return hull;
+  }
+
+  /**
+   * Read the pixels of the texture back from the GPU
+   *
+   * @return the pixels as RGBA bytes, rows in the order of increasing texture coordinates.
+   * Has to be freed with {@link MemoryUtil#memFree(java.nio.Buffer)}
+   */
+  public ByteBuffer readPixels() {
+    ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 4);
+    glPixelStorei(GL_PACK_ALIGNMENT, 1);
+    bind();
+    glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    glPixelStorei(GL_PACK_ALIGNMENT, 4);
+    return pixels;
+  }
+
+  /**
+   * @return how the texels of this texture cover what is behind them
+   */
+  public Opacity getOpacity() {
+    return opacity;
+  }
+
+  void setOpacity(Opacity opacity) {
+    this.opacity = opacity;
   }
 
   /**
@@ -342,7 +437,7 @@ public class Texture {
   }
 
   public void delete() {
-    glDeleteTextures(textureID);
+    GLState.deleteTexture(textureID);
   }
 
   /**
@@ -369,4 +464,22 @@ public class Texture {
     }
     return image;
   }
+
+  /**
+   * How the texels of a texture cover what is behind them. Ordered from most to least opaque.
+   */
+  public enum Opacity {
+    /**
+     * Every texel is fully opaque
+     */
+    OPAQUE,
+    /**
+     * Every texel is either fully opaque or fully transparent
+     */
+    ALPHA_TESTED,
+    /**
+     * Some texels are partly transparent and have to be blended
+     */
+    TRANSLUCENT
+  }
 }
@@ -0,0 +1,145 @@
+package org.azurite.graphics;
+
+import org.azurite.util.Log;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL12.glTexSubImage3D;
+import static org.lwjgl.opengl.GL30.GL_MAX_ARRAY_TEXTURE_LAYERS;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+
+/**
+ * A GL_TEXTURE_2D_ARRAY holding copies of textures that all have the same size, one per layer.
+ * A batch binds a single array and addresses its textures by layer, so it is not limited by the texture slots.
+ * <p>
+ * Textures are copied into a layer the first time they are requested, so only textures whose pixels never change,
+ * like images loaded from files, should be added. The number of layers doubles on demand up to the maximum.
+ */
+public class TextureArray {
+  private final int width, height;
+  private int maxLayers;
+  private int capacity;
+  private int textureID;
+
+  private final Map<Texture, Integer> layers = new HashMap<>();
+
+  /**
+   * @param width     width of every layer
+   * @param height    height of every layer
+   * @param maxLayers maximum number of layers, limited by the GPU
+   */
+  public TextureArray(int width, int height, int maxLayers) {
+    this.width = width;
+    this.height = height;
+    this.maxLayers = Math.min(maxLayers, glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS));
+    this.capacity = Math.min(16, this.maxLayers);
+    this.textureID = allocate(capacity);
+  }
+
+  /**
+   * Check if a texture can be put into an array. Only textures loaded from an image have pixels that never change.
+   *
+   * @param texture the texture
+   * @return whether the texture can be copied into an array layer
+   */
+  public static boolean accepts(Texture texture) {
+    String path = texture.getFilePath();
+    return texture.getWidth() > 0 && texture.getHeight() > 0 && path != null && !path.startsWith("====");
+  }
+
+  /**
+   * Create the storage of the array with all layers cleared
+   */
+  private int allocate(int layerCount) {
+    int id = glGenTextures();
+    GLState.bindTexture(GL_TEXTURE_2D_ARRAY, id);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+    glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, width, height, layerCount, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+    return id;
+  }
+
+  /**
+   * Get the layer of a texture, copying it into the array if it is not in there yet
+   *
+   * @param texture the texture
+   * @return the layer of the texture, or -1 if it has a different size or the array is full
+   */
+  public int getLayer(Texture texture) {
+    Integer layer = layers.get(texture);
+    if (layer != null) return layer;
+    if (texture.getWidth() != width || texture.getHeight() != height) return -1;
+
+    int next = layers.size();
+    if (next >= capacity) {
+      if (capacity >= maxLayers) return -1;
+      grow(Math.min(capacity * 2, maxLayers));
+    }
+
+    ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 4);
+    glPixelStorei(GL_PACK_ALIGNMENT, 1);
+    texture.bind();
+    glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    glPixelStorei(GL_PACK_ALIGNMENT, 4);
+
+    GLState.bindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+    glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, next, width, height, 1, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    MemoryUtil.memFree(pixels);
+
+    layers.put(texture, next);
+    return next;
+  }
+
+  /**
+   * Reallocate the array with more layers, keeping the existing ones
+   */
+  private void grow(int newCapacity) {
+    ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 4 * capacity);
+    GLState.bindTexture(GL_TEXTURE_2D_ARRAY, textureID);
+    glGetTexImage(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    GLState.deleteTexture(textureID);
+
+    textureID = allocate(newCapacity);
+    glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, width, height, capacity, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    MemoryUtil.memFree(pixels);
+    Log.logger.debug("texture array " + width + "x" + height + " grown to " + newCapacity + " layers");
+    capacity = newCapacity;
+  }
+
+  /**
+   * Bind this array to a specific texture slot
+   *
+   * @param unit the texture unit to bind this array to
+   */
+  public void bindToSlot(int unit) {
+    GLState.bindTexture(unit, GL_TEXTURE_2D_ARRAY, textureID);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return the number of textures in the array
+   */
+  public int getLayerCount() {
+    return layers.size();
+  }
+
+  public void delete() {
+    GLState.deleteTexture(textureID);
+    layers.clear();
+  }
+}
@@ -0,0 +1,357 @@
+package org.azurite.graphics;
+
+import org.azurite.graphics.renderer.RenderBatch;
+import org.azurite.util.Log;
+import org.joml.Vector2f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+
+/**
+ * Packs small textures and spritesheets into shared atlas pages, so that sprites using different images
+ * can be drawn by the same batch. A batch can only hold {@link RenderBatch#MAX_TEXTURES} textures,
+ * every additional texture splits the batch and costs another draw call.
+ * <p>
+ * Images are placed with a {@link SkylinePacker} and surrounded by transparent padding.
+ * Sprites handed out by the atlas, or belonging to a packed spritesheet, get the page as their texture and
+ * their texture coordinates remapped into the page. Pages start small and double in size on demand up to the
+ * maximum page size, after which new pages are added. Growing a page remaps the coordinates of its sprites again.
+ * <p>
+ * Packed sprites can not rely on texture wrapping, their coordinates have to stay within 0-1 of the source image.
+ *
+ * @see org.azurite.util.Assets#getAtlasSprite(String, boolean)
+ */
+public class TextureAtlas {
+  /**
+   * Incremented every time the texture coordinates of already packed sprites change
+   */
+  private static int revision = 0;
+
+  private final int initialPageSize;
+  private final int padding;
+  private final int maxSourceSize;
+  private int maxPageSize;
+
+  private final List<Page> pages = new ArrayList<>();
+  private final Map<Texture, Entry> entries = new HashMap<>();
+
+  /**
+   * @param initialPageSize size of a new page in pixels
+   * @param maxPageSize     size up to which a page grows, limited by the maximum texture size of the GPU
+   * @param maxSourceSize   textures larger than this in either dimension are not packed. Spritesheets are packed if they fit on a page
+   * @param padding         transparent pixels around every packed image
+   */
+  public TextureAtlas(int initialPageSize, int maxPageSize, int maxSourceSize, int padding) {
+    this.initialPageSize = initialPageSize;
+    this.maxPageSize = maxPageSize;
+    this.maxSourceSize = maxSourceSize;
+    this.padding = padding;
+  }
+
+  public TextureAtlas() {
+    this(512, 4096, 256, 1);
+  }
+
+  /**
+   * The revision is incremented whenever the texture coordinates of sprites that were already handed out change,
+   * so that renderers which keep sprites across frames know they have to rewrite them.
+   *
+   * @return the current revision of all atlases
+   */
+  public static int getRevision() {
+    return revision;
+  }
+
+  /**
+   * Get a sprite showing the whole texture from the atlas. The texture is packed the first time it is requested.
+   * Textures that are too large or have no known size get a regular sprite.
+   *
+   * @param texture the source texture
+   * @return a new sprite for the texture
+   */
+  public Sprite getSprite(Texture texture) {
+    return getSprite(new Sprite(texture));
+  }
+
+  /**
+   * Move a sprite into the atlas, packing its texture if required.
+   * The texture and texture coordinates of the sprite are replaced.
+   *
+   * @param sprite the sprite to be moved into the atlas
+   * @return the same sprite
+   */
+  public Sprite getSprite(Sprite sprite) {
+    Texture texture = sprite.getTexture();
+    if (texture == null || texture.getWidth() > maxSourceSize || texture.getHeight() > maxSourceSize)
+      return sprite;
+
+    Entry entry = pack(texture);
+    if (entry != null) entry.attach(sprite);
+    return sprite;
+  }
+
+  /**
+   * Pack the texture of a spritesheet and move all its sprites into the atlas
+   *
+   * @param spritesheet the spritesheet
+   * @return the same spritesheet
+   */
+  public Spritesheet add(Spritesheet spritesheet) {
+    Entry entry = pack(spritesheet.getTexture());
+    if (entry == null) return spritesheet;
+
+    for (Sprite sprite : spritesheet.getSprites()) {
+      if (sprite.getTexture() == spritesheet.getTexture())
+        entry.attach(sprite);
+    }
+    return spritesheet;
+  }
+
+  /**
+   * @param texture the source texture
+   * @return if the texture has been packed into this atlas
+   */
+  public boolean contains(Texture texture) {
+    return entries.containsKey(texture);
+  }
+
+  /**
+   * Find or create the entry of a texture
+   *
+   * @return the entry, or null if the texture can not be packed
+   */
+  private Entry pack(Texture texture) {
+    Entry entry = entries.get(texture);
+    if (entry != null) return entry;
+    for (Page p : pages)
+      if (p.texture == texture) return null;
+
+    if (texture.getWidth() <= 0 || texture.getHeight() <= 0) return null;
+    if (pages.isEmpty()) maxPageSize = Math.min(maxPageSize, glGetInteger(GL_MAX_TEXTURE_SIZE));
+
+    int w = texture.getWidth() + 2 * padding;
+    int h = texture.getHeight() + 2 * padding;
+    if (w > maxPageSize || h > maxPageSize) return null;
+
+    int[] position = null;
+    Page page = null;
+    for (Page p : pages) {
+      position = p.packer.insert(w, h);
+      if (position != null) {
+        page = p;
+        break;
+      }
+    }
+    // Grow the most recent page before adding another one
+    while (position == null && !pages.isEmpty()) {
+      Page last = pages.get(pages.size() - 1);
+      if (last.size >= maxPageSize) break;
+      last.grow(Math.min(last.size * 2, maxPageSize));
+      position = last.packer.insert(w, h);
+      page = last;
+    }
+    if (position == null) {
+      int size = initialPageSize;
+      while (size < w || size < h) size *= 2;
+      page = new Page(Math.min(size, maxPageSize));
+      pages.add(page);
+      position = page.packer.insert(w, h);
+    }
+
+    entry = new Entry(page, position[0] + padding, position[1] + padding, texture.getWidth(), texture.getHeight());
+    page.copyInto(texture, entry);
+    if (texture.getOpacity().compareTo(page.texture.getOpacity()) > 0) page.texture.setOpacity(texture.getOpacity());
+    page.entries.add(entry);
+    entries.put(texture, entry);
+    return entry;
+  }
+
+  /**
+   * @return the number of pages
+   */
+  public int getPageCount() {
+    return pages.size();
+  }
+
+  /**
+   * @param index index of the page
+   * @return the texture of a page
+   */
+  public Texture getPage(int index) {
+    return pages.get(index).texture;
+  }
+
+  /**
+   * @return the number of textures and spritesheets packed into this atlas
+   */
+  public int getPackedTextureCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the fraction of the page area covered by packed images, from 0 to 1
+   */
+  public float getOccupancy() {
+    long used = 0;
+    long total = 0;
+    for (Page p : pages) {
+      used += p.packer.getUsedArea();
+      total += (long) p.size * p.size;
+    }
+    return total == 0 ? 0 : (float) used / total;
+  }
+
+  /**
+   * Estimate the draw calls saved per zIndex layer that uses all packed images, by comparing the number of batches
+   * needed to hold the source textures with the number needed to hold the pages.
+   *
+   * @return the estimated number of draw calls saved
+   */
+  public int getEstimatedDrawCallsSaved() {
+    return batchesFor(entries.size()) - batchesFor(pages.size());
+  }
+
+  private static int batchesFor(int textures) {
+    return (textures + RenderBatch.MAX_TEXTURES - 1) / RenderBatch.MAX_TEXTURES;
+  }
+
+  /**
+   * Delete all pages. Sprites moved into the atlas are invalid afterwards
+   */
+  public void delete() {
+    pages.forEach(p -> p.texture.delete());
+    pages.clear();
+    entries.clear();
+  }
+
+  /**
+   * A square texture with images packed into it
+   */
+  private static class Page {
+    private final Texture texture = new Texture();
+    private final List<Entry> entries = new ArrayList<>();
+    private final SkylinePacker packer;
+    private int size;
+
+    private Page(int size) {
+      this.size = size;
+      this.packer = new SkylinePacker(size, size);
+      allocate(texture, size);
+      // The space between the images is transparent
+      texture.setOpacity(Texture.Opacity.ALPHA_TESTED);
+      Log.logger.debug("created texture atlas page of size " + size);
+    }
+
+    /**
+     * Give a texture cleared storage of the size of a page
+     */
+    private static void allocate(Texture texture, int size) {
+      texture.bind();
+      texture.setParameter(GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+      texture.setParameter(GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+      texture.setParameter(GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+      texture.setParameter(GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+
+      ByteBuffer clear = MemoryUtil.memCalloc(size * size * 4);
+      texture.uploadData(size, size, clear);
+      MemoryUtil.memFree(clear);
+      texture.setWidth(size);
+      texture.setHeight(size);
+    }
+
+    /**
+     * Read back the pixels of the source texture and write them to the place of the entry
+     */
+    private void copyInto(Texture source, Entry entry) {
+      ByteBuffer pixels = MemoryUtil.memAlloc(entry.w * entry.h * 4);
+      glPixelStorei(GL_PACK_ALIGNMENT, 1);
+      source.bind();
+      glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+
+      glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+      texture.bind();
+      glTexSubImage2D(GL_TEXTURE_2D, 0, entry.x, entry.y, entry.w, entry.h, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+      resetAlignment();
+      MemoryUtil.memFree(pixels);
+    }
+
+    private static void resetAlignment() {
+      glPixelStorei(GL_PACK_ALIGNMENT, 4);
+      glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    /**
+     * Double the size of the page, keeping the packed images in place, and remap the sprites on it
+     */
+    private void grow(int newSize) {
+      ByteBuffer pixels = MemoryUtil.memAlloc(size * size * 4);
+      glPixelStorei(GL_PACK_ALIGNMENT, 1);
+      texture.bind();
+      glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+
+      // Keep the texture object, so batches and sprites referencing the page stay valid
+      texture.delete();
+      texture.setId(glGenTextures());
+      allocate(texture, newSize);
+      glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+      glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, size, size, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+      resetAlignment();
+      MemoryUtil.memFree(pixels);
+
+      packer.grow(newSize, newSize);
+      size = newSize;
+      for (Entry entry : entries) entry.remapAll();
+      revision++;
+      Log.logger.debug("texture atlas page grown to size " + size);
+    }
+  }
+
+  /**
+   * Where an image is placed on a page, and the sprites using it
+   */
+  private static class Entry {
+    private final Page page;
+    private final int x, y, w, h;
+    /**
+     * Sprites using this entry, with their texture coordinates in the source image
+     */
+    private final Map<Sprite, Vector2f[]> sprites = new WeakHashMap<>();
+
+    private Entry(Page page, int x, int y, int w, int h) {
+      this.page = page;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+    }
+
+    /**
+     * Point a sprite of the source texture at the page
+     */
+    private void attach(Sprite sprite) {
+      Vector2f[] source = sprite.getTextureCoordinates();
+      sprites.put(sprite, source);
+      sprite.setTexture(page.texture);
+      sprite.setTextureCoordinates(remap(source));
+    }
+
+    private void remapAll() {
+      sprites.forEach((sprite, source) -> sprite.setTextureCoordinates(remap(source)));
+    }
+
+    /**
+     * Map coordinates of the source image into the page
+     */
+    private Vector2f[] remap(Vector2f[] source) {
+      Vector2f[] mapped = new Vector2f[source.length];
+      for (int i = 0; i < source.length; i++) {
+        mapped[i] = new Vector2f((x + source[i].x * w) / page.size, (y + source[i].y * h) / page.size);
+      }
+      return mapped;
+    }
+  }
+}
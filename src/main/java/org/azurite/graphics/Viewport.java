@@ -0,0 +1,214 @@
+package org.azurite.graphics;
+
+import org.azurite.graphics.postprocess.PostProcessPipeline;
+import org.joml.Vector4f;
+
+/**
+ * A rectangle of the screen showing the world through its own camera, like one half of a split screen or a minimap.
+ * <p>
+ * All viewports of a scene share the batches of its renderers. The batches are filled once per frame with everything
+ * any viewport can see, then every viewport draws them into its own framebuffers with its camera in the
+ * {@link CameraBuffer}, skipping batches outside its view. Adding a viewport therefore adds draw calls, but no work
+ * filling the batches. The framebuffers of a viewport are taken from the {@link FramebufferPool} in the size of its
+ * rectangle, so a small minimap is cheap, and every viewport can have its own post processing.
+ *
+ * @see org.azurite.scene.Scene#addViewport(Viewport)
+ */
+public class Viewport {
+  /**
+   * The camera the world is seen through. Its projection follows the size of the viewport
+   */
+  public Camera camera;
+  /**
+   * Position and size as fractions of the window, from the top left corner
+   */
+  private float x, y, width, height;
+  /**
+   * Applied to the rendered world before it is drawn to the screen, null to draw it as-is
+   */
+  private PostProcessPipeline postProcess;
+  /**
+   * Size in pixels the projection of the camera was last adjusted to
+   */
+  private int projectedWidth = -1, projectedHeight = -1;
+  /**
+   * Framebuffers the lightmap and the world are drawn into, and the size they were acquired for
+   */
+  private Framebuffer lightmapTarget, colorTarget;
+  private float targetWidth, targetHeight;
+  private boolean targetDepth;
+
+  /**
+   * Create a viewport covering a rectangle of the window
+   *
+   * @param camera the camera the world is seen through
+   * @param x      left edge as a fraction of the width of the window
+   * @param y      top edge as a fraction of the height of the window
+   * @param width  width as a fraction of the width of the window
+   * @param height height as a fraction of the height of the window
+   */
+  public Viewport(Camera camera, float x, float y, float width, float height) {
+    this.camera = camera;
+    setRect(x, y, width, height);
+  }
+
+  /**
+   * Create a viewport covering the whole window
+   *
+   * @param camera the camera the world is seen through
+   */
+  public Viewport(Camera camera) {
+    this(camera, 0, 0, 1, 1);
+  }
+
+  /**
+   * Move or resize the viewport
+   *
+   * @param x      left edge as a fraction of the width of the window
+   * @param y      top edge as a fraction of the height of the window
+   * @param width  width as a fraction of the width of the window
+   * @param height height as a fraction of the height of the window
+   */
+  public final void setRect(float x, float y, float width, float height) {
+    assert width > 0 && height > 0 && x >= 0 && y >= 0 && x + width <= 1.0001f && y + height <= 1.0001f
+        : "[ERROR] A viewport has to lie within the window";
+    this.x = x;
+    this.y = y;
+    this.width = Math.min(width, 1 - x);
+    this.height = Math.min(height, 1 - y);
+  }
+
+  /**
+   * @return whether the viewport covers the whole window
+   */
+  public boolean isFullscreen() {
+    return x == 0 && y == 0 && width == 1 && height == 1;
+  }
+
+  /**
+   * Get the rectangle of the viewport in pixels of a screen, with the origin in the bottom left corner like glViewport
+   *
+   * @param screenWidth  width of the screen in pixels
+   * @param screenHeight height of the screen in pixels
+   * @param dest         vector to store the rectangle in, as (x, y, width, height)
+   * @return dest
+   */
+  public Vector4f getPixelRect(int screenWidth, int screenHeight, Vector4f dest) {
+    int left = Math.round(x * screenWidth);
+    int right = Math.round((x + width) * screenWidth);
+    // Rounding both edges lets neighbouring viewports share their edge without a gap
+    int top = Math.round(y * screenHeight);
+    int bottom = Math.round((y + height) * screenHeight);
+    return dest.set(left, screenHeight - bottom, right - left, bottom - top);
+  }
+
+  /**
+   * Make the projection of the camera match the size of the viewport if the window or the viewport changed size.
+   * Called before the viewport is drawn. The camera of a viewport covering the whole window is left alone,
+   * it follows the window like the camera of a scene.
+   */
+  public void updateProjection() {
+    if (isFullscreen()) {
+      if (projectedWidth != -1) camera.adjustProjection();
+      projectedWidth = projectedHeight = -1;
+      return;
+    }
+    int w = Math.max(Math.round(width * Window.getWidth()), 1);
+    int h = Math.max(Math.round(height * Window.getHeight()), 1);
+    if (w == projectedWidth && h == projectedHeight) return;
+    projectedWidth = w;
+    projectedHeight = h;
+    camera.adjustProjection(w, h);
+  }
+
+  public float getX() {
+    return x;
+  }
+
+  public float getY() {
+    return y;
+  }
+
+  public float getWidth() {
+    return width;
+  }
+
+  public float getHeight() {
+    return height;
+  }
+
+  /**
+   * Get the framebuffer the lightmap of this viewport is drawn into, the size of the viewport scaled by
+   * {@link DynamicResolution}
+   *
+   * @return the framebuffer, owned by the viewport until {@link #releaseTargets()}
+   */
+  public Framebuffer getLightmapTarget() {
+    checkTargets();
+    if (lightmapTarget == null) lightmapTarget = FramebufferPool.acquire(width, height, FramebufferPool.COLOR_STENCIL, true);
+    return lightmapTarget;
+  }
+
+  /**
+   * Get the framebuffer the world seen by this viewport is drawn into, the size of the viewport scaled by
+   * {@link DynamicResolution}
+   *
+   * @return the framebuffer, owned by the viewport until {@link #releaseTargets()}
+   */
+  public Framebuffer getColorTarget() {
+    return getColorTarget(false);
+  }
+
+  /**
+   * Get the framebuffer the world seen by this viewport is drawn into, the size of the viewport scaled by
+   * {@link DynamicResolution}
+   *
+   * @param depth whether the framebuffer needs a depth buffer, e.g. for a depth pre-pass
+   * @return the framebuffer, owned by the viewport until {@link #releaseTargets()}
+   */
+  public Framebuffer getColorTarget(boolean depth) {
+    checkTargets();
+    if (colorTarget != null && targetDepth != depth) {
+      colorTarget.release();
+      colorTarget = null;
+    }
+    if (colorTarget == null) {
+      colorTarget = FramebufferPool.acquire(width, height, depth ? FramebufferPool.COLOR_STENCIL : FramebufferPool.COLOR, true);
+      targetDepth = depth;
+    }
+    return colorTarget;
+  }
+
+  /**
+   * Give the framebuffers back if the viewport changed size since they were acquired
+   */
+  private void checkTargets() {
+    if (targetWidth == width && targetHeight == height) return;
+    releaseTargets();
+    targetWidth = width;
+    targetHeight = height;
+  }
+
+  /**
+   * Give the framebuffers of this viewport back to the pool, e.g. when it is removed from its scene
+   */
+  public void releaseTargets() {
+    if (lightmapTarget != null) lightmapTarget.release();
+    if (colorTarget != null) colorTarget.release();
+    lightmapTarget = colorTarget = null;
+  }
+
+  public PostProcessPipeline getPostProcess() {
+    return postProcess;
+  }
+
+  /**
+   * Set the post processing of this viewport. The pipeline has to render into a texture, which is then drawn
+   * into the rectangle of the viewport
+   *
+   * @param postProcess the pipeline, or null to draw the world as-is
+   */
+  public void setPostProcess(PostProcessPipeline postProcess) {
+    this.postProcess = postProcess;
+  }
+}
@@ -3,7 +3,6 @@ package org.azurite.graphics;
 import org.azurite.audio.AudioMaster;
 import org.azurite.event.EventData;
 import org.azurite.event.Events;
-import org.azurite.graphics.postprocess.PostProcessing;
 import org.azurite.input.Keyboard;
 import org.azurite.input.Mouse;
 import org.azurite.scene.Scene;
@@ -219,6 +218,8 @@ public class Window {
 
     // Enable V-Sync
     glfwSwapInterval(1);
+    // Frames that miss the refresh wait for the next one, dynamic resolution keeps them within it
+    if (videoMode.refreshRate() > 0) DynamicResolution.setBudget(1000.0f / videoMode.refreshRate());
 
     // Center the window
     int xpos = (videoMode.width() - width) / 2;
@@ -277,8 +278,8 @@ public class Window {
     Log.logger.info("starting window");
     glfwShowWindow(glfwWindow);
 
-    glEnable(GL_BLEND);
-    glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    GLState.setBlending(true);
+    GLState.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
     double frameBeginTime = glfwGetTime();
     double frameEndTime = glfwGetTime();
@@ -295,18 +296,20 @@ public class Window {
       glfwPollEvents();
 
       if (!sleeping && currentScene().isActive()) {
+        GpuProfiler.beginFrame();
+        GLState.beginFrame();
+        DynamicResolution.beginFrame();
         Mouse.update();
         AudioMaster.get().update(getFPS());
         sceneManager.update();
         sceneManager.updateGameObjects();
         sceneManager.render();
-        PostProcessing.prepare();
-        sceneManager.postProcess(currentScene().renderer.fetchColorAttachment(0));
-        PostProcessing.finish();
         sceneManager.updateUI();
         sceneManager.debugRender();
+        DynamicResolution.endFrame();
       }
       glfwSwapBuffers(glfwWindow);
+      FramebufferPool.endFrame();
       getFPS();
       frameEndTime = glfwGetTime();
     }
@@ -314,7 +317,11 @@ public class Window {
     Log.logger.debug("shutting down");
 
     currentScene().clean();
+    GpuProfiler.clean();
+    DynamicResolution.clean();
+    CameraBuffer.clean();
     // Delete all framebuffers
+    FramebufferPool.clean();
     Framebuffer.clean();
     AudioMaster.get().clean();
 
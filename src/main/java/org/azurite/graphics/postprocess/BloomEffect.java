@@ -1,15 +1,32 @@
 package org.azurite.graphics.postprocess;
 
+import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.GpuProfiler;
 import org.azurite.graphics.Texture;
+import org.azurite.graphics.renderer.RenderGraph;
 
 /**
  * Post Processing Pipeline to apply a bloom effect to a Texture.
+ * <p>
+ * The bright parts of the texture are progressively downsampled into a chain of pooled framebuffers at 1/2, 1/4, 1/8...
+ * of the screen size, then upsampled back, adding every level onto the next larger one. The bright filter
+ * is folded into the first downsample, so no pass runs at full resolution and the blur grows with every level
+ * at a small cost. The number of levels is set by a {@link Quality} preset or directly.
  */
 public class BloomEffect extends PostProcessPipeline {
+    /**
+     * Maximum number of levels of the mip chain, the smallest one being 1/64 of the screen
+     */
+    public static final int MAX_MIPS = 6;
+    /**
+     * Default brightness below which colors do not bloom
+     */
+    public static final float DEFAULT_THRESHOLD = 0.6f;
+
     /* The Post Processing Steps required */
-    private HorizontalBlur hblur;
-    private VerticalBlur vblur;
-    private BrightFilter brightFilter;
+    private Downsample downsample;
+    private Upsample upsample;
     private WeightedCombine combine;
 
     /**
@@ -20,6 +37,37 @@ public class BloomEffect extends PostProcessPipeline {
      * Amount of bloom to be applied. Default is 0.8
      */
     private float bloomAmt;
+    /**
+     * Brightness below which colors do not bloom
+     */
+    private float threshold = DEFAULT_THRESHOLD;
+    /**
+     * Number of levels of the mip chain
+     */
+    private final int mipCount;
+    /**
+     * Framebuffers of the levels when not running in a render graph, taken from the pool while the effect is applied
+     */
+    private Framebuffer[] mips;
+    /**
+     * Whether the framebuffers of the steps are provided by a render graph
+     */
+    private boolean inGraph = false;
+
+    /**
+     * Presets trading the size of the bloom for GPU time
+     */
+    public enum Quality {
+        LOW(3),
+        MEDIUM(5),
+        HIGH(MAX_MIPS);
+
+        public final int mipCount;
+
+        Quality(int mipCount) {
+            this.mipCount = mipCount;
+        }
+    }
 
     /**
      * To construct a Bloom Effect Pipeline with a bloom of 0.8
@@ -31,32 +79,149 @@ public class BloomEffect extends PostProcessPipeline {
     }
 
     /**
-     * To construct a Bloom Effect Pipeline with a bloom of 0.8
+     * To construct a Bloom Effect Pipeline of medium quality
      *
      * @param dest     Where the final texture is to be rendered
      * @param bloomAmt amount of bloom to be applied
      */
     public BloomEffect(PostProcessStep.Target dest, float bloomAmt) {
+        this(dest, bloomAmt, Quality.MEDIUM.mipCount);
+    }
+
+    /**
+     * To construct a Bloom Effect Pipeline with a quality preset
+     *
+     * @param dest     Where the final texture is to be rendered
+     * @param bloomAmt amount of bloom to be applied
+     * @param quality  the number of levels of the mip chain
+     */
+    public BloomEffect(PostProcessStep.Target dest, float bloomAmt, Quality quality) {
+        this(dest, bloomAmt, quality.mipCount);
+    }
+
+    /**
+     * To construct a Bloom Effect Pipeline
+     *
+     * @param dest     Where the final texture is to be rendered
+     * @param bloomAmt amount of bloom to be applied
+     * @param mipCount number of levels of the mip chain, from 1 to {@link #MAX_MIPS}
+     */
+    public BloomEffect(PostProcessStep.Target dest, float bloomAmt, int mipCount) {
+        assert mipCount >= 1 && mipCount <= MAX_MIPS : "[ERROR] Bloom needs 1 to " + MAX_MIPS + " mip levels";
         this.dest = dest;
         this.bloomAmt = bloomAmt;
+        this.mipCount = mipCount;
         init();
+        mips = new Framebuffer[mipCount];
+    }
+
+    /**
+     * To construct a Bloom Effect of medium quality whose steps are passes of a render graph
+     *
+     * @param graph    the render graph the passes are added to
+     * @param input    resource holding the texture to be processed
+     * @param output   resource the final texture is rendered to
+     * @param bloomAmt amount of bloom to be applied
+     */
+    public BloomEffect(RenderGraph graph, RenderGraph.Resource input, RenderGraph.Resource output, float bloomAmt) {
+        this(graph, input, output, bloomAmt, Quality.MEDIUM);
+    }
+
+    /**
+     * To construct a Bloom Effect whose steps are passes of a render graph. The levels of the mip chain are
+     * transient resources of the graph, so they share framebuffers with other passes where possible.
+     *
+     * @param graph    the render graph the passes are added to
+     * @param input    resource holding the texture to be processed
+     * @param output   resource the final texture is rendered to
+     * @param bloomAmt amount of bloom to be applied
+     * @param quality  the number of levels of the mip chain
+     */
+    public BloomEffect(RenderGraph graph, RenderGraph.Resource input, RenderGraph.Resource output, float bloomAmt, Quality quality) {
+        this.dest = PostProcessStep.Target.NONE;
+        this.bloomAmt = bloomAmt;
+        this.mipCount = quality.mipCount;
+        this.inGraph = true;
+        init();
+
+        RenderGraph.Resource[] levels = new RenderGraph.Resource[mipCount];
+        for (int i = 0; i < mipCount; i++)
+            levels[i] = graph.createTransient("bloom mip " + i, RenderGraph.Size.scaled(2 << i));
+
+        for (int i = 0; i < mipCount; i++) {
+            RenderGraph.Resource from = i == 0 ? input : levels[i - 1];
+            RenderGraph.Resource to = levels[i];
+            boolean first = i == 0;
+            graph.addPass("bloom downsample " + i).reads(from).writes(to).executes(() ->
+                    down(from.getTexture(), to.getFramebuffer(), first));
+        }
+        for (int i = mipCount - 2; i >= 0; i--) {
+            RenderGraph.Resource from = levels[i + 1];
+            RenderGraph.Resource to = levels[i];
+            graph.addPass("bloom upsample " + i).reads(from, to).writes(to).executes(() ->
+                    up(from.getTexture(), to.getFramebuffer()));
+        }
+        graph.addPass("bloom combine").reads(input, levels[0]).writes(output).executes(() ->
+                run(() -> combine(input.getTexture(), levels[0].getTexture(), output.getFramebuffer())));
+    }
+
+    private void down(Texture from, Framebuffer to, boolean first) {
+        run(() -> {
+            downsample.setTexture(from);
+            downsample.setThreshold(first ? threshold : -1);
+            downsample.applyTo(to);
+        });
+    }
+
+    private void up(Texture from, Framebuffer to) {
+        run(() -> {
+            upsample.setTexture(from);
+            upsample.applyTo(to);
+        });
+    }
+
+    private Texture combine(Texture input, Texture bloom, Framebuffer to) {
+        combine.setTextureA(input);
+        combine.setTextureB(bloom);
+        // Every level adds about the same light, so the sum is averaged to keep the amount independent of the quality
+        combine.setWeightB(bloomAmt / mipCount);
+        return to == null ? combine.apply() : combine.applyTo(to);
+    }
+
+    private static void run(Runnable step) {
+        GpuProfiler.pushGroup("BloomEffect");
+        PostProcessing.prepare();
+        step.run();
+        PostProcessing.finish();
+        GpuProfiler.popGroup();
     }
 
     /**
      * Initializes all steps in this pipeline
      */
     @Override
-    public void init() {
-        brightFilter = new BrightFilter(PostProcessStep.Target.ONE_COLOR_TEXTURE_FRAMEBUFFER);
-        brightFilter.init();
-        hblur = new HorizontalBlur(PostProcessStep.Target.ONE_COLOR_HALF_SIZE_TEXTURE_FRAMEBUFFER);
-        hblur.init();
-        vblur = new VerticalBlur(PostProcessStep.Target.ONE_COLOR_HALF_SIZE_TEXTURE_FRAMEBUFFER);
-        vblur.init();
+    public final void init() {
+        downsample = new Downsample(PostProcessStep.Target.NONE);
+        downsample.init();
+        upsample = new Upsample(PostProcessStep.Target.NONE);
+        upsample.init();
         combine = new WeightedCombine(dest);
         combine.init();
     }
 
+    /**
+     * Set the brightness below which colors do not bloom
+     *
+     * @param threshold brightness of the brightest channel of a color, 0 lets everything bloom
+     */
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getMipCount() {
+        return mipCount;
+    }
+
     /**
      * Apply the bloom effect and return the final texture if not rendering to the default framebuffer
      *
@@ -65,15 +230,22 @@ public class BloomEffect extends PostProcessPipeline {
      */
     @Override
     public Texture apply(Texture input) {
-        brightFilter.setTexture(input);
-        Texture brights = brightFilter.apply();
-        hblur.setTexture(brights);
-        Texture hBlurred = hblur.apply();
-        vblur.setTexture(hBlurred);
-        Texture blurred = vblur.apply();
-        combine.setTextureA(input);
-        combine.setTextureB(blurred);
-        combine.setWeightB(bloomAmt);
-        return combine.apply();
+        GpuProfiler.pushGroup("BloomEffect");
+        for (int i = 0; i < mipCount; i++)
+            mips[i] = FramebufferPool.acquire(2 << i);
+        for (int i = 0; i < mipCount; i++) {
+            downsample.setTexture(i == 0 ? input : mips[i - 1].getColorAttachment(0));
+            downsample.setThreshold(i == 0 ? threshold : -1);
+            downsample.applyTo(mips[i]);
+        }
+        for (int i = mipCount - 2; i >= 0; i--) {
+            upsample.setTexture(mips[i + 1].getColorAttachment(0));
+            upsample.applyTo(mips[i]);
+        }
+        Texture result = combine(input, mips[0].getColorAttachment(0), null);
+        for (Framebuffer mip : mips)
+            mip.release();
+        GpuProfiler.popGroup();
+        return result;
     }
 }
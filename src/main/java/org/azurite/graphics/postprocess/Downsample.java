@@ -0,0 +1,80 @@
+package org.azurite.graphics.postprocess;
+
+import org.azurite.graphics.Graphics;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.Texture;
+import org.azurite.util.Assets;
+import org.joml.Vector2f;
+
+/**
+ * A Post Processing Step that renders the texture into a framebuffer of half its size with a dual filter,
+ * the downsampling half of a mip chain blur. It can keep only the bright parts of the texture on the way.
+ */
+public class Downsample extends PostProcessStep {
+  /**
+   * Id of input texture
+   */
+  private Texture texture;
+  /**
+   * Brightness below which colors are dropped. Negative to keep everything
+   */
+  private float threshold = -1;
+  private final Vector2f texelSize = new Vector2f();
+
+  /**
+   * Default Constructor
+   *
+   * @param target Where the final texture is to be rendered
+   */
+  public Downsample(Target target) {
+    super(target);
+  }
+
+  /**
+   * Create the shader to be used for this step
+   *
+   * @return the created shader
+   */
+  @Override
+  public Shader createShader() {
+    return Assets.getShader("shaders/downsample.glsl", true);
+  }
+
+  /**
+   * Prepare the framebuffer by clearing it and binding any textures required
+   */
+  @Override
+  public void prepare() {
+    Graphics.background(Graphics.defaultBackground);
+
+    texture.bindToSlot(0);
+  }
+
+  /**
+   * Upload uniforms to the shader
+   */
+  @Override
+  protected void uploadUniforms(Shader shader) {
+    shader.uploadTexture("uTexture", 0);
+    shader.uploadVec2f("uTexelSize", texelSize.set(1.0f / texture.getWidth(), 1.0f / texture.getHeight()));
+    shader.uploadFloat("uThreshold", threshold);
+  }
+
+  /**
+   * Set the input texture
+   *
+   * @param texture input texture
+   */
+  public void setTexture(Texture texture) {
+    this.texture = texture;
+  }
+
+  /**
+   * Keep only the part of every color brighter than a threshold, like the {@link BrightFilter}
+   *
+   * @param threshold the brightness of the brightest channel below which a color is dropped. Negative to keep everything
+   */
+  public void setThreshold(float threshold) {
+    this.threshold = threshold;
+  }
+}
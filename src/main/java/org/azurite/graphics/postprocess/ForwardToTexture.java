@@ -9,7 +9,7 @@ import org.azurite.util.Assets;
  * A Post Processing Step that renders the texture as-is to another framebuffer.
  * Perfect for debugging steps.
  * <p>
- * NOTE: If you want to forward any texture to the screen, the scene class has a forwardToScreen field that can be used
+ * NOTE: If you want to forward any texture to the screen, the scene class has an upscaleToScreen field that can be used
  */
 public class ForwardToTexture extends PostProcessStep {
   /**
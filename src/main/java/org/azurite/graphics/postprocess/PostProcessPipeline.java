@@ -3,7 +3,9 @@ package org.azurite.graphics.postprocess;
 import org.azurite.graphics.Texture;
 
 /**
- * This class should be used if you want to chain multiple steps
+ * This class should be used if you want to chain multiple steps.
+ * Implementations should wrap their steps in {@link org.azurite.graphics.GpuProfiler#pushGroup(String)} and
+ * {@link org.azurite.graphics.GpuProfiler#popGroup()}, so the profiler reports the time of the whole pipeline.
  */
 public abstract class PostProcessPipeline {
     /**
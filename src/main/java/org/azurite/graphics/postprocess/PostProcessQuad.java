@@ -1,12 +1,17 @@
 package org.azurite.graphics.postprocess;
 
+import org.azurite.graphics.GLState;
+
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
 
 public class PostProcessQuad {
+    /**
+     * Number of vertices the quad is drawn with, two triangles
+     */
+    public static final int VERTEX_COUNT = 6;
     /**
      * Only one PostProcessQuad can exist
      */
@@ -21,9 +26,9 @@ public class PostProcessQuad {
      */
     public PostProcessQuad() {
         quadVao = glGenVertexArrays();
-        glBindVertexArray(quadVao);
+        GLState.bindVertexArray(quadVao);
         int buffer = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, buffer);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, buffer);
         glBufferData(GL_ARRAY_BUFFER, new float[]{
                 -1.0f, -1.0f, 0.0f, 0.0f,
                 1.0f, -1.0f, 1.0f, 0.0f,
@@ -49,20 +54,15 @@ public class PostProcessQuad {
     }
 
     /**
-     * Binds the quad and enables attributes
+     * Binds the quad. Its attributes stay enabled in its vertex array
      */
     public void _bindQuad() {
-        glBindVertexArray(quadVao);
-        glEnableVertexAttribArray(0);
-        glEnableVertexAttribArray(1);
+        GLState.bindVertexArray(quadVao);
     }
 
     /**
-     * Unbinds the quad and disables attributes
+     * Leaves the quad bound, so consecutive steps do not bind it again
      */
     public void _unbindQuad() {
-        glDisableVertexAttribArray(0);
-        glDisableVertexAttribArray(1);
-        glBindVertexArray(0);
     }
 }
@@ -1,6 +1,8 @@
 package org.azurite.graphics.postprocess;
 
 import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.GpuProfiler;
 import org.azurite.graphics.Shader;
 import org.azurite.graphics.Texture;
 import org.lwjgl.opengl.GL11;
@@ -23,6 +25,14 @@ public abstract class PostProcessStep {
      * Enum to show where to render. Framebuffer gets constructed based on this.
      */
     private Target target;
+    /**
+     * Whether the framebuffer was acquired from the {@link FramebufferPool} by this step, only then it is given back
+     */
+    private boolean acquired = false;
+    /**
+     * Whether the framebuffer was given to {@link #applyTo(Framebuffer)} for the current run
+     */
+    private boolean provided = false;
 
     public PostProcessStep(Target target) {
         this.target = target;
@@ -44,10 +54,10 @@ public abstract class PostProcessStep {
     protected abstract void uploadUniforms(Shader shader);
 
     /**
-     * Create Framebuffer based on target
+     * Create Framebuffer based on target. Pooled targets are acquired when the step is applied instead
      */
     protected Framebuffer createFramebuffer() {
-        return target.createFramebuffer.get();
+        return target.isPooled() ? null : target.createFramebuffer.get();
     }
 
     /**
@@ -59,34 +69,93 @@ public abstract class PostProcessStep {
     }
 
     /**
-     * Run this Step
+     * Run this Step. A pooled target is acquired for the step and given back by
+     * {@link PostProcessing#finish()}, the returned texture is only valid until then.
      *
      * @return id of the texture if the framebuffer to render to is not default.
      */
     public Texture apply() {
+        // A step run inside another timed section does not end it
+        boolean timed = GpuProfiler.begin(getClass().getSimpleName());
+        if (target.isPooled() && !provided) {
+            if (!acquired) {
+                framebuffer = FramebufferPool.acquire(target.poolDivisor);
+                acquired = true;
+                PostProcessing.releaseLater(this);
+            } else {
+                FramebufferPool.fit(framebuffer);
+            }
+        }
         framebuffer.bind();
         shader.attach();
         prepare();
         uploadUniforms(shader);
 
-        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 6);
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, PostProcessQuad.VERTEX_COUNT);
 
         shader.detach();
         Framebuffer.unbind();
+        if (timed) GpuProfiler.end(1, PostProcessQuad.VERTEX_COUNT);
         return framebuffer.isDefault() ? null : framebuffer.getColorAttachment(0);
     }
 
+    /**
+     * Run this Step, rendering into the given framebuffer
+     *
+     * @param target the framebuffer to render to, e.g. one provided by a render graph
+     * @return id of the texture if the framebuffer to render to is not default.
+     */
+    public Texture applyTo(Framebuffer target) {
+        releaseTarget();
+        framebuffer = target;
+        provided = true;
+        Texture texture = apply();
+        provided = false;
+        return texture;
+    }
+
+    /**
+     * Give a framebuffer acquired from the pool back once the texture returned by {@link #apply()} was used,
+     * so later steps can render into it. The next call to apply acquires a framebuffer again.
+     * Framebuffers given to {@link #applyTo(Framebuffer)} are left alone. Called by {@link PostProcessing#finish()}
+     */
+    public void releaseTarget() {
+        if (!acquired) return;
+        framebuffer.release();
+        framebuffer = null;
+        acquired = false;
+    }
+
     /**
      * Enum to show where to render. Framebuffer gets constructed based on this.
      */
     public enum Target {
-        DEFAULT_FRAMEBUFFER(Framebuffer::createDefault),
-        ONE_COLOR_TEXTURE_FRAMEBUFFER(Framebuffer::createWithColorAttachment),
-        ONE_COLOR_HALF_SIZE_TEXTURE_FRAMEBUFFER(Framebuffer::createHalfResWithColorAttachment);
+        /**
+         * No framebuffer is created, it is provided every frame by {@link #applyTo(Framebuffer)}
+         */
+        NONE(() -> null, 0),
+        DEFAULT_FRAMEBUFFER(Framebuffer::createDefault, 0),
+        /**
+         * A screen sized framebuffer taken from the {@link FramebufferPool} when the step is applied
+         */
+        ONE_COLOR_TEXTURE_FRAMEBUFFER(null, 1),
+        /**
+         * A half size framebuffer taken from the {@link FramebufferPool} when the step is applied
+         */
+        ONE_COLOR_HALF_SIZE_TEXTURE_FRAMEBUFFER(null, 2);
 
         public Supplier<Framebuffer> createFramebuffer;
-        Target(Supplier<Framebuffer> createFramebuffer) {
+        /**
+         * The number the screen size is divided by for pooled targets, 0 if the target is not pooled
+         */
+        public final int poolDivisor;
+        Target(Supplier<Framebuffer> createFramebuffer, int poolDivisor) {
             this.createFramebuffer = createFramebuffer;
+            this.poolDivisor = poolDivisor;
+        }
+
+        public boolean isPooled() {
+            return poolDivisor > 0;
         }
     }
 }
@@ -1,14 +1,45 @@
 package org.azurite.graphics.postprocess;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Some Utility methods
  */
 public class PostProcessing {
+    /**
+     * Steps holding a framebuffer from the pool until post processing is finished
+     */
+    private static final List<PostProcessStep> acquired = new ArrayList<>();
+    /**
+     * Number of calls to {@link #prepare()} not finished yet, post processing can be nested
+     */
+    private static int depth = 0;
+
     public static void prepare() {
+        depth++;
         PostProcessQuad.getInstance()._bindQuad();
     }
 
+    /**
+     * Finish post processing. The outermost call gives the framebuffers the steps acquired from the pool back,
+     * so the textures returned by the steps have to be used by then.
+     */
     public static void finish() {
         PostProcessQuad.getInstance()._unbindQuad();
+        if (depth > 0) depth--;
+        if (depth > 0) return;
+        for (PostProcessStep step : acquired)
+            step.releaseTarget();
+        acquired.clear();
+    }
+
+    /**
+     * Give the framebuffer a step acquired from the pool back with the next {@link #finish()}
+     *
+     * @param step the step
+     */
+    static void releaseLater(PostProcessStep step) {
+        acquired.add(step);
     }
 }
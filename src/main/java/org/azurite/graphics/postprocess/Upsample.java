@@ -0,0 +1,81 @@
+package org.azurite.graphics.postprocess;
+
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.Texture;
+import org.azurite.util.Assets;
+import org.joml.Vector2f;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * A Post Processing Step that blurs a texture into a framebuffer of twice its size with a dual filter,
+ * the upsampling half of a mip chain blur. The result is added onto what the framebuffer already holds,
+ * so every level of the chain contributes to the final texture.
+ */
+public class Upsample extends PostProcessStep {
+  /**
+   * Id of input texture
+   */
+  private Texture texture;
+  private final Vector2f texelSize = new Vector2f();
+
+  /**
+   * Default Constructor
+   *
+   * @param target Where the final texture is to be rendered
+   */
+  public Upsample(Target target) {
+    super(target);
+  }
+
+  /**
+   * Create the shader to be used for this step
+   *
+   * @return the created shader
+   */
+  @Override
+  public Shader createShader() {
+    return Assets.getShader("shaders/upsample.glsl", true);
+  }
+
+  /**
+   * Bind the input texture and switch to additive blending. The framebuffer is not cleared
+   */
+  @Override
+  public void prepare() {
+    GLState.blendFunc(GL_ONE, GL_ONE);
+
+    texture.bindToSlot(0);
+  }
+
+  /**
+   * Upload uniforms to the shader
+   */
+  @Override
+  protected void uploadUniforms(Shader shader) {
+    shader.uploadTexture("uTexture", 0);
+    shader.uploadVec2f("uTexelSize", texelSize.set(1.0f / texture.getWidth(), 1.0f / texture.getHeight()));
+  }
+
+  /**
+   * Run this Step, restoring the blending of the other steps afterwards
+   *
+   * @return id of the texture if the framebuffer to render to is not default.
+   */
+  @Override
+  public Texture apply() {
+    Texture result = super.apply();
+    GLState.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    return result;
+  }
+
+  /**
+   * Set the input texture
+   *
+   * @param texture input texture
+   */
+  public void setTexture(Texture texture) {
+    this.texture = texture;
+  }
+}
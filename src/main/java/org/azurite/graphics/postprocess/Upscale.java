@@ -0,0 +1,110 @@
+package org.azurite.graphics.postprocess;
+
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.Graphics;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.Texture;
+import org.azurite.graphics.Window;
+import org.azurite.util.Assets;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * A Post Processing Step that renders a texture into a larger framebuffer, like the world rendered at a lower
+ * resolution by {@link org.azurite.graphics.DynamicResolution} into the screen. The texture is filtered bilinearly
+ * and slightly sharpened when it is enlarged. A texture of the same size is copied as-is, like {@link ForwardToTexture}.
+ * <p>
+ * NOTE: If you want to forward any texture to the screen, the scene class has an upscaleToScreen field that can be used
+ */
+public class Upscale extends PostProcessStep {
+    /**
+     * Default amount of sharpening
+     */
+    public static final float DEFAULT_SHARPNESS = 0.3f;
+
+    /**
+     * Id of input texture
+     */
+    private Texture texture;
+    /**
+     * How much of the detail lost by the bilinear filter is added back
+     */
+    private float sharpness = DEFAULT_SHARPNESS;
+    private final Vector2f texelSize = new Vector2f();
+    /**
+     * Rectangle of the framebuffer the texture is drawn into, in pixels. Null to fill the framebuffer
+     */
+    private Vector4f region;
+
+    /**
+     * Default Constructor
+     *
+     * @param target Where the final texture is to be rendered
+     */
+    public Upscale(Target target) {
+        super(target);
+    }
+
+    /**
+     * Create the shader to be used for this step
+     *
+     * @return the created shader
+     */
+    @Override
+    public Shader createShader() {
+        return Assets.getShader("shaders/upscale.glsl", true);
+    }
+
+    /**
+     * Prepare the framebuffer by clearing it and binding any textures required
+     */
+    @Override
+    public void prepare() {
+        // A region is one of several viewports sharing the framebuffer, which is cleared once before all of them
+        if (region == null) Graphics.background(Graphics.defaultBackground);
+        else GLState.viewport((int) region.x, (int) region.y, (int) region.z, (int) region.w);
+        texture.bindToSlot(0);
+    }
+
+    /**
+     * Upload uniforms to the shader
+     */
+    @Override
+    protected void uploadUniforms(Shader shader) {
+        shader.uploadTexture("uTexture", 0);
+        shader.uploadVec2f("uTexelSize", texelSize.set(1.0f / texture.getWidth(), 1.0f / texture.getHeight()));
+        // The default framebuffer does not know its size, it is the window
+        int width = region != null ? (int) region.z : framebuffer.isDefault() ? Window.getWidth() : framebuffer.getWidth();
+        int height = region != null ? (int) region.w : framebuffer.isDefault() ? Window.getHeight() : framebuffer.getHeight();
+        boolean enlarged = texture.getWidth() < width || texture.getHeight() < height;
+        shader.uploadFloat("uSharpness", enlarged ? sharpness : 0);
+    }
+
+    /**
+     * Set the input texture
+     *
+     * @param texture input texture
+     */
+    public void setTexture(Texture texture) {
+        this.texture = texture;
+    }
+
+    /**
+     * Draw the texture into a rectangle of the framebuffer instead of filling it, e.g. the rectangle of a
+     * {@link org.azurite.graphics.Viewport}. The rest of the framebuffer is left as it is
+     *
+     * @param region the rectangle in pixels as (x, y, width, height) from the bottom left corner, or null to fill the framebuffer
+     */
+    public void setRegion(Vector4f region) {
+        this.region = region;
+    }
+
+    /**
+     * Set how much the texture is sharpened when it is enlarged
+     *
+     * @param sharpness 0 for a plain bilinear upscale, about 0.5 at most before edges get halos
+     */
+    public void setSharpness(float sharpness) {
+        this.sharpness = sharpness;
+    }
+}
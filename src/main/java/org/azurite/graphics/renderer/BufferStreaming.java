@@ -0,0 +1,26 @@
+package org.azurite.graphics.renderer;
+
+/**
+ * How a {@link RenderBatch} streams its vertices into its vertex buffer every frame.
+ * Overwriting a buffer the GPU is still reading from last frame can make the driver wait for the GPU,
+ * the other strategies avoid that.
+ *
+ * @see Renderer#setStreaming(BufferStreaming)
+ */
+public enum BufferStreaming {
+  /**
+   * One buffer, overwritten in place every frame
+   */
+  SINGLE,
+  /**
+   * One buffer that is reallocated (orphaned) before it is written, so the driver can hand out
+   * fresh memory while the GPU still reads the old one
+   */
+  ORPHAN,
+  /**
+   * A buffer split into {@link RenderBatch#RING_REGIONS} regions that are written round-robin.
+   * A fence guards each region, so the CPU only waits if the GPU is more than the ring behind.
+   * Falls back to {@link #ORPHAN} if the context has no sync objects
+   */
+  RING
+}
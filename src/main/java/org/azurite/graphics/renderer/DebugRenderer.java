@@ -7,7 +7,6 @@ import org.azurite.graphics.Primitive;
 import org.azurite.graphics.Shader;
 import org.azurite.graphics.ShaderDatatype;
 import org.azurite.util.Assets;
-import org.azurite.util.Engine;
 import org.azurite.util.debug.DebugLine;
 import org.azurite.util.debug.DebugPrimitive;
 
@@ -65,8 +64,7 @@ public class DebugRenderer extends Renderer {
    */
   @Override
   protected void uploadUniforms(Shader shader) {
-    shader.uploadMat4f("uProjection", Engine.window().currentScene().camera().getProjectionMatrix());
-    shader.uploadMat4f("uView", Engine.window().currentScene().camera().getViewMatrix());
+    // The camera matrices come from the shared CameraBuffer
   }
 
   /**
@@ -5,22 +5,422 @@ import org.azurite.ecs.SpriteRenderer;
 import org.azurite.graphics.*;
 import org.azurite.util.Assets;
 import org.azurite.util.Engine;
+import org.azurite.util.SpatialGrid;
 import org.joml.Vector2f;
+import org.joml.Vector4f;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.lwjgl.opengl.GL11.*;
 
 /**
  * Used to render sprites, which are rendered as {@code Primitive.QUAD}s
  * with textures. This should be used to render any renderable {@code gameObject}.
+ * <p>
+ * By default every sprite is written into the batches again every frame. In retained mode
+ * (see {@link #setRetained(boolean)}) every sprite owns a stable slot in a batch instead,
+ * and only sprites that changed since the last frame are rewritten and uploaded. This is a lot
+ * cheaper for scenes where most of the sprites never move.
+ * <p>
+ * With texture arrays enabled (see {@link #setTextureArrays(boolean)}) textures loaded from images are grouped
+ * by size into {@link TextureArray}s, and a batch addresses them by layer instead of by texture slot.
+ * A batch is then no longer split every {@link RenderBatch#MAX_TEXTURES} textures. All other textures use the slots.
+ * <p>
+ * In queued mode (see {@link #setQueued(boolean)}) every sprite emits a sort key into a {@link RenderQueue}
+ * instead of searching the batches for a fitting one. The queue is sorted by zIndex and texture, and split into
+ * batches in a single pass. Batches a frame does not need are pooled and eventually deleted.
+ * <p>
+ * With culling enabled (see {@link #setCulling(boolean)}) the bounds of all sprites are kept in a {@link SpatialGrid},
+ * and only sprites overlapping the view of a {@link Viewport} of the scene are pushed in immediate and queued mode.
+ * Retained mode keeps every sprite in its slot, since sprites that do not change cost nothing there.
+ * <p>
+ * Batches filled every frame know the bounds of their sprites, so viewports skip the batches they can not see.
+ * <p>
+ * Layers that rarely change can be cached (see {@link #setLayerCached(int, boolean)}). Their sprites are rendered into
+ * pages of the world once, and every page is drawn as a single quad until a sprite on it changes.
+ * <p>
+ * With the depth pre-pass enabled (see {@link #setDepthPrePass(boolean)}) sprites that cover every texel they draw
+ * are kept in batches of their own and drawn front to back with depth testing, before all other sprites are blended
+ * on top back to front. Texels hidden behind opaque sprites of higher layers are then never shaded.
  */
 public class DefaultRenderer extends Renderer {
   private static final int MAX_BATCH_SIZE = 1000;
+  /**
+   * Keeps every texture id below 256, so that it fits the byte of the compact vertex format
+   */
+  private static final int MAX_ARRAY_LAYERS = 256 - RenderBatch.TEXTURE_ARRAY_BASE;
+  private static final float DEFAULT_CULL_CELL_SIZE = 256;
+  /**
+   * Below this many sprites the parallel mode writes on the render thread, the pool would only add overhead
+   */
+  private static final int PARALLEL_THRESHOLD = 2048;
+  /**
+   * Number of sprites a single fill task writes
+   */
+  private static final int FILL_SLICE_SIZE = 1024;
+  /**
+   * A hull has to trim at least this fraction of a sprite, and this many square units of it,
+   * to be worth its extra vertices
+   */
+  private static final float MIN_TRIMMED_FRACTION = 0.2f;
+  private static final float MIN_TRIMMED_AREA = 256;
 
   private final List<SpriteRenderer> sprites;
+  /**
+   * Slot bookkeeping for every sprite. Also used to make sure a sprite is only added once
+   */
+  private final Map<SpriteRenderer, SpriteSlot> slots;
+  /**
+   * Are the sprites kept in stable batch slots across frames
+   */
+  private boolean retained = false;
+  /**
+   * Are sprites written with the compact vertex format
+   */
+  private boolean compact = false;
+  /**
+   * Are the vertices of the sprites written on the ForkJoin pool
+   */
+  private boolean parallel = false;
+  /**
+   * Uniform locations, resolved once for the shader
+   */
+  private Shader resolvedShader;
+  private int texturesLocation, lightmapLocation, textureArrayLocation, depthLocation, alphaCutoffLocation;
+  /**
+   * Are opaque sprites drawn front to back with a depth buffer before the blended ones
+   */
+  private boolean depthPrePass = false;
+  /**
+   * Are sprites with an {@link AlphaHull} drawn as their hull instead of the full quad
+   */
+  private boolean alphaTrimming = false;
+  /**
+   * Sprites reserved in parallel mode this frame, with their batch, offset and texture id
+   */
+  private SpriteRenderer[] assignedSprites = new SpriteRenderer[MAX_BATCH_SIZE];
+  private RenderBatch[] assignedBatches = new RenderBatch[MAX_BATCH_SIZE];
+  private int[] assignedOffsets = new int[MAX_BATCH_SIZE];
+  private int[] assignedTextures = new int[MAX_BATCH_SIZE];
+  private AlphaHull[] assignedHulls = new AlphaHull[MAX_BATCH_SIZE];
+  private int assignedCount = 0;
+  /**
+   * Atlas revision the retained slots were written with
+   */
+  private int atlasRevision = TextureAtlas.getRevision();
+  /**
+   * Texture arrays by texture size, null while texture arrays are disabled
+   */
+  private Map<Long, TextureArray> textureArrays = null;
+  /**
+   * The texture array of every texture seen so far, null for textures using the slots
+   */
+  private final Map<Texture, TextureArray> arrayOfTexture = new HashMap<>();
+  /**
+   * Sort keys of all sprites, null while queued mode is disabled
+   */
+  private RenderQueue queue = null;
+  /**
+   * Small numbers identifying textures and texture arrays in the sort keys
+   */
+  private final Map<Object, Integer> textureKeys = new IdentityHashMap<>();
+  /**
+   * Bounds of all sprites, null while culling is disabled
+   */
+  private SpatialGrid<SpriteRenderer> cullGrid = null;
+  /**
+   * Sprites inside the camera's view this frame
+   */
+  private final List<SpriteRenderer> visible = new ArrayList<>();
+  private final Set<SpriteRenderer> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Vector4f viewBounds = new Vector4f();
+  private int culledCount = 0;
+  /**
+   * Layers rendered into cached pages, by zIndex
+   */
+  private final Map<Integer, LayerCache> layerCaches = new HashMap<>();
+  /**
+   * Sprites not in a cached layer this frame
+   */
+  private final List<SpriteRenderer> uncached = new ArrayList<>();
+  /**
+   * Sprites of cached layers drawn directly, because the view covers too many pages
+   */
+  private final List<SpriteRenderer> uncachable = new ArrayList<>();
 
   public DefaultRenderer() {
     sprites = new ArrayList<>();
+    slots = new HashMap<>();
+  }
+
+  /**
+   * Push the quad of a sprite to the batch
+   *
+   * @param batch  the batch to which to push the sprite
+   * @param sprite the sprite which to push to the batch
+   */
+  protected void pushSprite(RenderBatch batch, SpriteRenderer sprite) {
+    int textureID = textureId(batch, sprite.getTexture());
+    AlphaHull hull = trimmedHull(batch, sprite);
+    if (hull != null)
+      writeHull(batch, batch.reserve(hullQuads(hull) * batch.getPrimitiveSize()), sprite, hull, textureID);
+    else
+      writeSprite(batch, batch.reserve(batch.getPrimitiveSize()), sprite, textureID);
+  }
+
+  /**
+   * Write the quad of a sprite into space reserved in the batch.
+   * Only reads from the sprite and writes to the reserved range, so it can run on any thread.
+   *
+   * @param batch     the batch the space was reserved in
+   * @param at        the offset of the reserved space
+   * @param sprite    the sprite to be written
+   * @param textureID the texture id of the sprite in this batch
+   */
+  protected void writeSprite(RenderBatch batch, int at, SpriteRenderer sprite, int textureID) {
+    float[] pos = sprite.gameObject.getPositionData();
+    Vector2f scale = sprite.getSize();
+    writeQuad(batch, at, pos[0], pos[1], scale.x, scale.y, sprite.getTexCoords(),
+        sprite.getColorVector(), sprite.getPackedColor(), textureID);
+  }
+
+  /**
+   * Write a textured quad into space reserved in the batch
+   *
+   * @param batch              the batch the space was reserved in
+   * @param at                 the offset of the reserved space
+   * @param x                  x of the quad
+   * @param y                  y of the quad
+   * @param width              width of the quad
+   * @param height             height of the quad
+   * @param textureCoordinates texture coordinates of the four corners, in the order of {@link org.azurite.graphics.Sprite}
+   * @param color              color of the quad
+   * @param packedColor        the same color packed into four bytes
+   * @param textureID          the texture id of the quad in this batch
+   */
+  protected void writeQuad(RenderBatch batch, int at, float x, float y, float width, float height,
+                           Vector2f[] textureCoordinates, Vector4f color, int packedColor, int textureID) {
+    // Push verts to the batch
+    float xAdd = 1.0f;
+    float yAdd = 1.0f;
+    for (int i = 0; i < 4; i++) {
+      switch (i) {
+        case 1:
+          yAdd = 0.0f;
+          break;
+        case 2:
+          xAdd = 0.0f;
+          break;
+        case 3:
+          yAdd = 1.0f;
+          break;
+      }
+
+      float scaledX = (xAdd * width);
+      float scaledY = (yAdd * height);
+
+      at = writeVertex(batch, at, x + scaledX, y + scaledY, textureCoordinates[i].x, textureCoordinates[i].y,
+          color, packedColor, textureID);
+    }
+  }
+
+  /**
+   * Write a single vertex in the vertex format of the renderer
+   *
+   * @return the offset right after the vertex
+   */
+  private int writeVertex(RenderBatch batch, int at, float x, float y, float u, float v,
+                          Vector4f color, int packedColor, int textureID) {
+    batch.putVec2(at, x, y);
+    at += 2;
+    if (compact) {
+      batch.putPackedColor(at++, packedColor);
+      batch.putPackedVec2(at++, u, v);
+      batch.putPaddedByte(at++, textureID);
+    } else {
+      batch.putVec4(at, color);
+      batch.putVec2(at + 4, u, v);
+      batch.putFloat(at + 6, textureID);
+      at += 7;
+    }
+    return at;
+  }
+
+  /**
+   * Decide whether a sprite is drawn as its alpha hull
+   *
+   * @param batch  the batch the sprite is pushed to
+   * @param sprite the sprite
+   * @return the hull to draw the sprite as, or null to draw the full quad
+   */
+  protected AlphaHull trimmedHull(RenderBatch batch, SpriteRenderer sprite) {
+    // Retained slots have room for exactly one quad
+    if (!alphaTrimming || batch.isRetained()) return null;
+    AlphaHull hull = sprite.getHull();
+    if (hull == null || hull.getArea() > 1 - MIN_TRIMMED_FRACTION) return null;
+    Vector2f size = sprite.getSize();
+    if ((1 - hull.getArea()) * Math.abs(size.x * size.y) < MIN_TRIMMED_AREA) return null;
+    if (texCoordDeterminant(sprite.getTexCoords()) == 0) return null;
+    return batch.hasRoom(hullQuads(hull) * batch.getPrimitiveSize()) ? hull : null;
+  }
+
+  /**
+   * @return the number of quads a hull is drawn with, see {@link AlphaHull#getQuadCount()}
+   */
+  static int hullQuads(AlphaHull hull) {
+    return hull.getQuadCount();
+  }
+
+  /**
+   * Determinant of the texture coordinate edges of a quad from its corner at (0, 0) along its width and height
+   */
+  private static float texCoordDeterminant(Vector2f[] tc) {
+    return (tc[1].x - tc[2].x) * (tc[3].y - tc[2].y) - (tc[3].x - tc[2].x) * (tc[1].y - tc[2].y);
+  }
+
+  /**
+   * Write a sprite as a fan of quads covering its alpha hull into space reserved in the batch,
+   * see {@link AlphaHull#getQuadCorner(int, int)}. Like {@link #writeSprite(RenderBatch, int, SpriteRenderer, int)}
+   * this can run on any thread.
+   *
+   * @param batch     the batch the space was reserved in
+   * @param at        the offset of the reserved space, {@link #hullQuads(AlphaHull)} quads long
+   * @param sprite    the sprite to be written
+   * @param hull      the hull of the sprite
+   * @param textureID the texture id of the sprite in this batch
+   */
+  protected void writeHull(RenderBatch batch, int at, SpriteRenderer sprite, AlphaHull hull, int textureID) {
+    float[] pos = sprite.gameObject.getPositionData();
+    Vector2f size = sprite.getSize();
+    Vector2f[] tc = sprite.getTexCoords();
+    Vector4f color = sprite.getColorVector();
+    int packedColor = sprite.getPackedColor();
+
+    // The hull is relative to the part of the texture the sprite shows
+    float uMin = Math.min(Math.min(tc[0].x, tc[1].x), Math.min(tc[2].x, tc[3].x));
+    float uMax = Math.max(Math.max(tc[0].x, tc[1].x), Math.max(tc[2].x, tc[3].x));
+    float vMin = Math.min(Math.min(tc[0].y, tc[1].y), Math.min(tc[2].y, tc[3].y));
+    float vMax = Math.max(Math.max(tc[0].y, tc[1].y), Math.max(tc[2].y, tc[3].y));
+
+    // Invert the texture coordinates of the quad, so flipped or rotated sprites keep their hull in place
+    float e1x = tc[1].x - tc[2].x, e1y = tc[1].y - tc[2].y;
+    float e2x = tc[3].x - tc[2].x, e2y = tc[3].y - tc[2].y;
+    float det = texCoordDeterminant(tc);
+
+    for (int q = 0, quads = hullQuads(hull); q < quads; q++) {
+      for (int c = 0; c < 4; c++) {
+        int corner = hull.getQuadCorner(q, c);
+        float u = uMin + hull.getX(corner) * (uMax - uMin);
+        float v = vMin + hull.getY(corner) * (vMax - vMin);
+        float dx = u - tc[2].x, dy = v - tc[2].y;
+        float a = (dx * e2y - e2x * dy) / det;
+        float b = (e1x * dy - dx * e1y) / det;
+        at = writeVertex(batch, at, pos[0] + a * size.x, pos[1] + b * size.y, u, v, color, packedColor, textureID);
+      }
+    }
+  }
+
+  /**
+   * Add the texture of a sprite to the batch
+   *
+   * @param batch   the batch the sprite is pushed to
+   * @param texture the texture of the sprite, may be null
+   * @return the texture id to be pushed with the sprite
+   */
+  protected int textureId(RenderBatch batch, Texture texture) {
+    if (texture == null) return 0;
+    TextureArray array = arrayFor(texture);
+    if (array != null) return batch.addTextureLayer(array, texture);
+    return batch.addTexture(texture);
+  }
+
+  /**
+   * Find the texture array a texture belongs in, creating it if there is none for its size yet
+   *
+   * @param texture the texture
+   * @return the texture array which holds the texture, or null if the texture has to use a texture slot
+   */
+  private TextureArray arrayFor(Texture texture) {
+    if (textureArrays == null || texture == null) return null;
+    // Looked up by texture first, so the common case neither boxes a size key nor copies anything
+    TextureArray array = arrayOfTexture.get(texture);
+    if (array != null || arrayOfTexture.containsKey(texture)) return array;
+
+    if (TextureArray.accepts(texture)) {
+      long key = ((long) texture.getWidth() << 32) | texture.getHeight();
+      array = textureArrays.get(key);
+      if (array == null) {
+        array = new TextureArray(texture.getWidth(), texture.getHeight(), MAX_ARRAY_LAYERS);
+        textureArrays.put(key, array);
+      }
+      // A full array can not take the texture anymore
+      if (array.getLayer(texture) < 0) array = null;
+    }
+    arrayOfTexture.put(texture, array);
+    return array;
+  }
+
+  /**
+   * Push a textured quad to a batch of the given zIndex, that is written every frame
+   *
+   * @param texture            the texture of the quad
+   * @param zIndex             the zIndex of the quad
+   * @param x                  x of the quad
+   * @param y                  y of the quad
+   * @param width              width of the quad
+   * @param height             height of the quad
+   * @param textureCoordinates texture coordinates of the four corners, in the order of {@link org.azurite.graphics.Sprite}
+   * @param color              color of the quad
+   */
+  void pushQuad(Texture texture, int zIndex, float x, float y, float width, float height,
+                Vector2f[] textureCoordinates, Vector4f color) {
+    RenderBatch batch = getAvailableBatch(texture, zIndex);
+    batch.includeBounds(x, y, x + width, y + height);
+    int textureID = textureId(batch, texture);
+    writeQuad(batch, batch.reserve(batch.getPrimitiveSize()), x, y, width, height, textureCoordinates,
+        color, Color.pack(color.x, color.y, color.z, color.w), textureID);
+  }
+
+  /**
+   * Check if a sprite can stay in a batch
+   */
+  boolean fits(RenderBatch batch, SpriteRenderer sprite) {
+    TextureArray array = arrayFor(sprite.getTexture());
+    return array != null ? batch.canHoldTextureArray(array) : batch.canHoldTexture(sprite.getTexture());
+  }
+
+  /**
+   * Get a batch the sprite can be pushed to this frame
+   */
+  private RenderBatch batchFor(SpriteRenderer sprite, boolean retained) {
+    int zIndex = sprite.gameObject.zIndex();
+    boolean opaque = isOpaque(sprite);
+    TextureArray array = arrayFor(sprite.getTexture());
+    if (array != null)
+      return retained ? getRetainedArrayBatch(array, zIndex, opaque) : getAvailableArrayBatch(array, zIndex, opaque);
+    return retained ? getRetainedBatch(sprite.getTexture(), zIndex, opaque)
+        : getAvailableBatch(sprite.getTexture(), zIndex, opaque);
+  }
+
+  /**
+   * Check if a sprite goes into the opaque batches, which are drawn front to back before all others
+   *
+   * @param sprite the sprite
+   * @return whether the depth pre-pass is enabled and the sprite covers every texel it draws, or none at all
+   */
+  private boolean isOpaque(SpriteRenderer sprite) {
+    if (!depthPrePass || sprite.getColorVector().w < 1) return false;
+    Texture texture = sprite.getTexture();
+    return texture == null || texture.getOpacity() != Texture.Opacity.TRANSLUCENT;
   }
 
   /**
@@ -34,13 +434,13 @@ public class DefaultRenderer extends Renderer {
   }
 
   /**
-   * Create a framebuffer
+   * Take a framebuffer from the pool that is the size of the screen scaled by {@link org.azurite.graphics.DynamicResolution}
    *
-   * @return the created Framebuffer
+   * @return the framebuffer
    */
   @Override
   protected Framebuffer createFramebuffer() {
-    return Framebuffer.createWithColorAttachment();
+    return FramebufferPool.acquire(1, depthPrePass ? FramebufferPool.COLOR_STENCIL : FramebufferPool.COLOR, true);
   }
 
   /**
@@ -51,6 +451,9 @@ public class DefaultRenderer extends Renderer {
    */
   @Override
   protected RenderBatch createBatch(int zIndex) {
+    if (compact)
+      return new RenderBatch(MAX_BATCH_SIZE, zIndex, Primitive.QUAD,
+          ShaderDatatype.FLOAT2, ShaderDatatype.UBYTE4_NORM, ShaderDatatype.USHORT2_NORM, ShaderDatatype.UBYTE_PADDED);
     return new RenderBatch(MAX_BATCH_SIZE, zIndex, Primitive.QUAD,
         ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT4, ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT);
   }
@@ -62,12 +465,18 @@ public class DefaultRenderer extends Renderer {
    */
   @Override
   protected void uploadUniforms(Shader shader) {
-    shader.uploadIntArray("uTextures", textureSlots);
-
-    // This is here so that all renderers can have different cameras OR no cameras at all
-    shader.uploadMat4f("uProjection", Engine.window().currentScene().camera().getProjectionMatrix());
-    shader.uploadMat4f("uView", Engine.window().currentScene().camera().getViewMatrix());
-    shader.uploadInt("uLightmap", 8);
+    if (shader != resolvedShader) {
+      resolvedShader = shader;
+      texturesLocation = shader.getUniformLocation("uTextures");
+      lightmapLocation = shader.getUniformLocation("uLightmap");
+      textureArrayLocation = shader.getUniformLocation("uTextureArray");
+      depthLocation = shader.getUniformLocation("uDepth");
+      alphaCutoffLocation = shader.getUniformLocation("uAlphaCutoff");
+    }
+    // The camera matrices come from the shared CameraBuffer
+    shader.uploadIntArray(texturesLocation, textureSlots);
+    shader.uploadInt(lightmapLocation, 8);
+    shader.uploadInt(textureArrayLocation, RenderBatch.TEXTURE_ARRAY_UNIT);
   }
 
   /**
@@ -75,44 +484,530 @@ public class DefaultRenderer extends Renderer {
    */
   @Override
   protected void rebuffer() {
+    List<SpriteRenderer> candidates = layerCaches.isEmpty() ? sprites : sortOutCached();
+    if (retained) {
+      rebufferRetained();
+    } else if (queue != null) {
+      rebufferQueued(cull(candidates));
+    } else {
+      for (SpriteRenderer sprite : cull(candidates)) {
+        assign(batchFor(sprite, false), sprite);
+      }
+      writeAssigned();
+    }
+    if (!layerCaches.isEmpty()) drawCachedLayers();
+  }
+
+  /**
+   * Hand the sprites of cached layers to their caches
+   *
+   * @return the sprites that are not in a cached layer
+   */
+  private List<SpriteRenderer> sortOutCached() {
+    uncached.clear();
+    for (LayerCache cache : layerCaches.values())
+      cache.beginFrame();
     for (SpriteRenderer sprite : sprites) {
-      RenderBatch batch = getAvailableBatch(sprite.getTexture(), sprite.gameObject.zIndex());
-
-      Vector2f pos = sprite.gameObject.getReadOnlyPosition();
-      Vector2f scale = sprite.getSize();
-      Vector2f[] textureCoordinates = sprite.getTexCoords();
-
-      int textureID;
-      if (sprite.getTexture() != null) textureID = batch.addTexture(sprite.getTexture());
-      else textureID = 0;
-
-      // Push verts to the batch
-      float xAdd = 1.0f;
-      float yAdd = 1.0f;
-      for (int i = 0; i < 4; i++) {
-        switch (i) {
-          case 1:
-            yAdd = 0.0f;
-            break;
-          case 2:
-            xAdd = 0.0f;
-            break;
-          case 3:
-            yAdd = 1.0f;
-            break;
-        }
-
-        float scaledX = (xAdd * scale.x);
-        float scaledY = (yAdd * scale.y);
-
-        batch.pushVec2(pos.x + scaledX, pos.y + scaledY);
-        batch.pushColor(sprite.getColor());
-        batch.pushVec2(textureCoordinates[i]);
-        batch.pushInt(textureID);
+      LayerCache cache = layerCaches.get(sprite.gameObject.zIndex());
+      if (cache == null) {
+        uncached.add(sprite);
+      } else if (cache.track(sprite) && cullGrid != null) {
+        cullGrid.remove(sprite);
+      }
+    }
+    for (LayerCache cache : layerCaches.values())
+      cache.endFrame();
+    return uncached;
+  }
+
+  /**
+   * Push the pages of the cached layers that any viewport of the scene can see
+   */
+  private void drawCachedLayers() {
+    Engine.window().currentScene().getViewBounds(viewBounds);
+    for (LayerCache cache : layerCaches.values()) {
+      if (cache.draw(viewBounds)) continue;
+      // Zoomed out too far to keep the pages, draw the sprites of the layer like any other this frame
+      uncachable.clear();
+      cache.query(viewBounds, uncachable);
+      for (SpriteRenderer sprite : uncachable)
+        assign(batchFor(sprite, false), sprite);
+      writeAssigned();
+    }
+    uncachable.clear();
+  }
+
+  /**
+   * Give a sprite its place in a batch. Outside of parallel mode it is written right away, otherwise
+   * its space and texture id are reserved here and it is written by {@link #writeAssigned()}.
+   * Reserving in the order of the sprites keeps the result identical to filling the batches sequentially.
+   */
+  private void assign(RenderBatch batch, SpriteRenderer sprite) {
+    float[] pos = sprite.gameObject.getPositionData();
+    Vector2f size = sprite.getSize();
+    batch.includeBounds(Math.min(pos[0], pos[0] + size.x), Math.min(pos[1], pos[1] + size.y),
+        Math.max(pos[0], pos[0] + size.x), Math.max(pos[1], pos[1] + size.y));
+    if (!parallel) {
+      pushSprite(batch, sprite);
+      return;
+    }
+
+    if (assignedCount == assignedSprites.length) {
+      int capacity = assignedCount * 2;
+      assignedSprites = Arrays.copyOf(assignedSprites, capacity);
+      assignedBatches = Arrays.copyOf(assignedBatches, capacity);
+      assignedOffsets = Arrays.copyOf(assignedOffsets, capacity);
+      assignedTextures = Arrays.copyOf(assignedTextures, capacity);
+      assignedHulls = Arrays.copyOf(assignedHulls, capacity);
+    }
+    int textureID = textureId(batch, sprite.getTexture());
+    AlphaHull hull = trimmedHull(batch, sprite);
+    assignedSprites[assignedCount] = sprite;
+    assignedBatches[assignedCount] = batch;
+    assignedOffsets[assignedCount] = batch.reserve((hull != null ? hullQuads(hull) : 1) * batch.getPrimitiveSize());
+    assignedTextures[assignedCount] = textureID;
+    assignedHulls[assignedCount] = hull;
+    assignedCount++;
+  }
+
+  /**
+   * Write all sprites reserved by {@link #assign(RenderBatch, SpriteRenderer)}, split over the common ForkJoin pool.
+   * Every sprite has its own range in the staging memory, so the slices do not need to synchronize.
+   */
+  private void writeAssigned() {
+    if (assignedCount == 0) return;
+    if (assignedCount < PARALLEL_THRESHOLD) {
+      writeAssigned(0, assignedCount);
+    } else {
+      ForkJoinPool.commonPool().invoke(new FillTask(0, assignedCount));
+    }
+
+    // Do not keep sprites of removed gameObjects alive
+    Arrays.fill(assignedSprites, 0, assignedCount, null);
+    Arrays.fill(assignedBatches, 0, assignedCount, null);
+    Arrays.fill(assignedHulls, 0, assignedCount, null);
+    assignedCount = 0;
+  }
+
+  private void writeAssigned(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (assignedHulls[i] != null)
+        writeHull(assignedBatches[i], assignedOffsets[i], assignedSprites[i], assignedHulls[i], assignedTextures[i]);
+      else
+        writeSprite(assignedBatches[i], assignedOffsets[i], assignedSprites[i], assignedTextures[i]);
+    }
+  }
+
+  /**
+   * Writes a slice of the assigned sprites, splitting it in half until it is small enough
+   */
+  @SuppressWarnings("serial")
+  private class FillTask extends RecursiveAction {
+    private final int from, to;
+
+    private FillTask(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= FILL_SLICE_SIZE) {
+        writeAssigned(from, to);
+        return;
       }
+      int mid = (from + to) >>> 1;
+      invokeAll(new FillTask(from, mid), new FillTask(mid, to));
     }
   }
 
+  /**
+   * Bring the bounds of moved sprites up to date and find the sprites inside the view of any viewport of the scene
+   *
+   * @param candidates the sprites that could be drawn
+   * @return the sprites to be drawn this frame
+   */
+  private List<SpriteRenderer> cull(List<SpriteRenderer> candidates) {
+    if (cullGrid == null) return candidates;
+
+    for (SpriteRenderer sprite : candidates) {
+      float[] pos = sprite.gameObject.getPositionData();
+      Vector2f size = sprite.getSize();
+      cullGrid.update(sprite, pos[0], pos[1], size.x, size.y);
+    }
+
+    List<Viewport> viewports = Engine.window().currentScene().getViewports();
+    visible.clear();
+    for (int i = 0; i < viewports.size(); i++) {
+      viewports.get(i).camera.getViewBounds(viewBounds);
+      cullGrid.query(viewBounds.x, viewBounds.y, viewBounds.z, viewBounds.w, visible);
+    }
+    // The grid finds sprites cell by cell, keep the order they were added in so overlapping sprites do not swap.
+    // Sprites seen by several viewports are only pushed once
+    seen.addAll(visible);
+    visible.clear();
+    for (SpriteRenderer sprite : candidates)
+      if (seen.contains(sprite)) visible.add(sprite);
+    seen.clear();
+    culledCount = candidates.size() - visible.size();
+    return visible;
+  }
+
+  /**
+   * Sort all sprites by zIndex and texture, then fill batches in that order.
+   * A new batch is started whenever the zIndex changes or the current batch can not take the sprite.
+   */
+  private void rebufferQueued(List<SpriteRenderer> drawn) {
+    queue.clear();
+    for (int i = 0; i < drawn.size(); i++) {
+      SpriteRenderer sprite = drawn.get(i);
+      // Opaque and blended sprites of a texture are sorted next to each other, but go into different batches
+      int textureKey = textureKey(sprite.getTexture()) << 1 | (isOpaque(sprite) ? 1 : 0);
+      queue.push(RenderQueue.key(sprite.gameObject.zIndex(), textureKey, i));
+    }
+    queue.sort();
+
+    beginQueuedFrame();
+    RenderBatch batch = null;
+    for (int i = 0; i < queue.size(); i++) {
+      long key = queue.get(i);
+      SpriteRenderer sprite = drawn.get(RenderQueue.index(key));
+      int zIndex = RenderQueue.zIndex(key);
+      boolean opaque = (RenderQueue.textureKey(key) & 1) != 0;
+      if (batch == null || batch.isFull || batch.zIndex() != zIndex || batch.isOpaque() != opaque || !fits(batch, sprite))
+        batch = acquireBatch(zIndex, opaque);
+      assign(batch, sprite);
+    }
+    writeAssigned();
+    endQueuedFrame();
+  }
+
+  /**
+   * Get the sort key part of a texture. Textures in the same texture array share a key
+   */
+  private int textureKey(Texture texture) {
+    if (texture == null) return 0;
+    TextureArray array = arrayFor(texture);
+    Object owner = array != null ? array : texture;
+    Integer key = textureKeys.get(owner);
+    if (key == null) {
+      key = textureKeys.size() + 1;
+      textureKeys.put(owner, key);
+    }
+    return key;
+  }
+
+  /**
+   * Only rewrite the slots of sprites that changed since the last frame.
+   * Sprites that changed their zIndex, their opacity or got a texture their batch has no room for are moved to
+   * another batch.
+   */
+  private void rebufferRetained() {
+    // A grown atlas page moves the texture coordinates of sprites that did not change themselves
+    boolean remapped = atlasRevision != TextureAtlas.getRevision();
+    atlasRevision = TextureAtlas.getRevision();
+
+    for (SpriteSlot s : slots.values()) {
+      SpriteRenderer sprite = s.sprite;
+      if (remapped) sprite.markDirty();
+      int zIndex = sprite.gameObject.zIndex();
+      if (!layerCaches.isEmpty() && layerCaches.containsKey(zIndex)) {
+        s.release();
+        continue;
+      }
+
+      if (s.batch != null && (s.zIndex != zIndex || s.batch.isOpaque() != isOpaque(sprite) || !fits(s.batch, sprite)))
+        s.release();
+
+      if (s.batch == null) {
+        s.batch = batchFor(sprite, true);
+        s.slot = s.batch.allocateSlot();
+        s.zIndex = zIndex;
+        sprite.markDirty();
+      }
+
+      // The position check catches components that move the gameObject after the sprite renderer's update
+      float[] pos = sprite.gameObject.getPositionData();
+      if (sprite.isDirty() || pos[0] != s.x || pos[1] != s.y) {
+        s.batch.seekSlot(s.slot);
+        pushSprite(s.batch, sprite);
+        s.x = pos[0];
+        s.y = pos[1];
+        sprite.setClean();
+      }
+    }
+  }
+
+  /**
+   * Switch between rebuffering every sprite every frame and keeping sprites in stable batch slots.
+   * All current batches are dropped, the sprites are buffered again on the next frame.
+   *
+   * @param retained whether sprites should keep their batch slot across frames
+   */
+  public void setRetained(boolean retained) {
+    if (this.retained == retained) return;
+    this.retained = retained;
+    if (retained) queue = null;
+    resetBatches();
+  }
+
+  /**
+   * @return whether sprites keep their batch slot across frames
+   */
+  public boolean isRetained() {
+    return retained;
+  }
+
+  /**
+   * Switch between the standard vertex format of 36 bytes and the compact one of 20 bytes per vertex.
+   * The compact format stores the color as four normalized bytes, the texture coordinates as two normalized shorts
+   * and the texture id as a byte. Texture coordinates have to stay within 0-1, texture wrapping is not possible.
+   * All current batches are dropped, the sprites are buffered again on the next frame.
+   *
+   * @param compact whether sprites should be written with the compact vertex format
+   */
+  public void setCompactVertices(boolean compact) {
+    if (this.compact == compact) return;
+    this.compact = compact;
+    resetBatches();
+  }
+
+  /**
+   * @return whether sprites are written with the compact vertex format
+   */
+  public boolean usesCompactVertices() {
+    return compact;
+  }
+
+  /**
+   * Enable or disable writing the vertices of the sprites on the common ForkJoin pool in immediate and queued mode.
+   * Batches and texture ids are still assigned in order on the render thread, so the result is the same as
+   * without parallel mode. Only the vertex writing is spread over the cores, the upload stays on the render thread.
+   *
+   * @param parallel whether sprites should be written in parallel
+   * @see #getFillTime()
+   * @see #getUploadTime()
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * @return whether the vertices of the sprites are written in parallel
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Switch between searching a batch for every sprite and sorting all sprites into batches with a {@link RenderQueue}.
+   * Turns off retained mode. All current batches are dropped, the sprites are buffered again on the next frame.
+   *
+   * @param queued whether sprites should be sorted into batches
+   */
+  public void setQueued(boolean queued) {
+    if (queued == (queue != null)) return;
+    queue = queued ? new RenderQueue() : null;
+    if (queued) retained = false;
+    resetBatches();
+  }
+
+  /**
+   * @return whether sprites are sorted into batches with a render queue
+   */
+  public boolean isQueued() {
+    return queue != null;
+  }
+
+  /**
+   * Enable or disable culling sprites outside the camera's view in immediate and queued mode
+   *
+   * @param enabled whether sprites outside of the view should be skipped
+   */
+  public void setCulling(boolean enabled) {
+    setCulling(enabled, DEFAULT_CULL_CELL_SIZE);
+  }
+
+  /**
+   * Enable or disable drawing opaque sprites front to back with depth testing before the blended ones.
+   * A sprite is opaque if its color has full alpha and the alpha of its texture is only ever 0 or 1, see
+   * {@link Texture#getOpacity()}. Fully transparent texels of opaque sprites are discarded.
+   * Blended sprites are drawn after the opaque sprites of the same zIndex instead of in the order they were added.
+   * The framebuffer of the renderer needs a depth buffer, the scene takes care of that.
+   * All current batches are dropped, the sprites are buffered again on the next frame.
+   *
+   * @param enabled whether opaque sprites should be drawn in a depth pre-pass
+   */
+  public void setDepthPrePass(boolean enabled) {
+    if (depthPrePass == enabled) return;
+    depthPrePass = enabled;
+    resetBatches();
+  }
+
+  /**
+   * @return whether opaque sprites are drawn front to back in a depth pre-pass
+   */
+  public boolean usesDepthPrePass() {
+    return depthPrePass;
+  }
+
+  /**
+   * Draw sprites that have an {@link AlphaHull} as a fan of up to three quads around their visible pixels
+   * instead of their full quad. Sprites only get hulls while {@link Texture#setAlphaHulls(boolean)} is on,
+   * and only large enough savings are trimmed, a few extra vertices are cheaper than the blended transparent texels.
+   * Retained sprites are always drawn as a full quad. Off by default.
+   *
+   * @param alphaTrimming whether sprites should be drawn as their hull
+   */
+  public void setAlphaTrimming(boolean alphaTrimming) {
+    this.alphaTrimming = alphaTrimming;
+  }
+
+  public boolean usesAlphaTrimming() {
+    return alphaTrimming;
+  }
+
+  /**
+   * Enable or disable culling sprites outside the camera's view in immediate and queued mode
+   *
+   * @param enabled  whether sprites outside of the view should be skipped
+   * @param cellSize size of the cells of the spatial grid, a few times the size of a typical sprite
+   */
+  public void setCulling(boolean enabled, float cellSize) {
+    cullGrid = enabled ? new SpatialGrid<>(cellSize) : null;
+    culledCount = 0;
+  }
+
+  /**
+   * @return whether sprites outside the camera's view are skipped
+   */
+  public boolean isCulling() {
+    return cullGrid != null;
+  }
+
+  /**
+   * @return the number of sprites that were inside the camera's view in the last frame
+   */
+  public int getVisibleCount() {
+    return sprites.size() - culledCount;
+  }
+
+  /**
+   * @return the number of sprites that were skipped in the last frame, because they were outside the camera's view
+   */
+  public int getCulledCount() {
+    return culledCount;
+  }
+
+  /**
+   * Enable or disable grouping textures into texture arrays. The shaders of this renderer sample
+   * texture ids from {@link RenderBatch#TEXTURE_ARRAY_BASE} on from the batch's texture array.
+   * All current batches are dropped, the sprites are buffered again on the next frame.
+   *
+   * @param enabled whether textures loaded from images should be put into texture arrays
+   */
+  public void setTextureArrays(boolean enabled) {
+    if (enabled == (textureArrays != null)) return;
+    if (enabled) {
+      textureArrays = new HashMap<>();
+    } else {
+      textureArrays.values().forEach(TextureArray::delete);
+      textureArrays = null;
+    }
+    textureKeys.clear();
+    arrayOfTexture.clear();
+    resetBatches();
+  }
+
+  /**
+   * @return whether textures are grouped into texture arrays
+   */
+  public boolean usesTextureArrays() {
+    return textureArrays != null;
+  }
+
+  /**
+   * Render a zIndex layer into cached pages of 1024 by 1024 world units with as many pixels,
+   * instead of writing its sprites into the batches every frame.
+   *
+   * @param zIndex the zIndex of the layer
+   * @param cached whether the layer should be cached
+   * @see #setLayerCached(int, boolean, float, int)
+   */
+  public void setLayerCached(int zIndex, boolean cached) {
+    setLayerCached(zIndex, cached, LayerCache.DEFAULT_PAGE_SIZE, LayerCache.DEFAULT_PAGE_RESOLUTION);
+  }
+
+  /**
+   * Render a zIndex layer into cached pages instead of writing its sprites into the batches every frame.
+   * A page is rendered when a viewport first sees it, and again only after a sprite on it was added, removed,
+   * moved or changed. Meant for layers that rarely change, like backgrounds and tile maps. Pages should be large
+   * compared to the view, as every page is drawn as one quad, and the resolution should match the pixels of the
+   * screen one page covers.
+   *
+   * @param zIndex         the zIndex of the layer
+   * @param cached         whether the layer should be cached
+   * @param pageSize       width and height of a page in world units
+   * @param pageResolution width and height of the texture of a page in pixels
+   */
+  public void setLayerCached(int zIndex, boolean cached, float pageSize, int pageResolution) {
+    LayerCache cache = layerCaches.remove(zIndex);
+    if (cache != null) cache.delete();
+    if (cached) layerCaches.put(zIndex, new LayerCache(this, zIndex, pageSize, pageResolution));
+  }
+
+  /**
+   * @param zIndex the zIndex of a layer
+   * @return whether the layer is rendered into cached pages
+   */
+  public boolean isLayerCached(int zIndex) {
+    return layerCaches.containsKey(zIndex);
+  }
+
+  /**
+   * Render the pages of a cached layer again, e.g. after the pixels of one of its textures changed.
+   * Changes to the sprites themselves are picked up without this.
+   *
+   * @param zIndex the zIndex of the layer
+   */
+  public void invalidateLayer(int zIndex) {
+    LayerCache cache = layerCaches.get(zIndex);
+    if (cache != null) cache.invalidate();
+  }
+
+  /**
+   * @return the number of pages of all cached layers that currently have a framebuffer
+   */
+  public int getCachedPageCount() {
+    int count = 0;
+    for (LayerCache cache : layerCaches.values())
+      count += cache.getPageCount();
+    return count;
+  }
+
+  /**
+   * @return the number of times a page of a cached layer was rendered
+   */
+  public int getPageRenderCount() {
+    int count = 0;
+    for (LayerCache cache : layerCaches.values())
+      count += cache.getRenderCount();
+    return count;
+  }
+
+  /**
+   * Drop all batches and slots, so that every sprite is buffered again on the next frame
+   */
+  @Override
+  protected void resetBatches() {
+    for (SpriteSlot s : slots.values()) {
+      s.batch = null;
+      s.slot = -1;
+    }
+    clearBatches();
+    layerCaches.values().forEach(LayerCache::deleteBatches);
+  }
+
   /**
    * Add a gameObject to this renderer
    *
@@ -121,7 +1016,9 @@ public class DefaultRenderer extends Renderer {
   @Override
   public void add(GameObject gameObject) {
     SpriteRenderer spr = gameObject.getComponent(SpriteRenderer.class);
-    if (spr != null) {
+    // Adding another component to a gameObject adds it to the renderers again
+    if (spr != null && !slots.containsKey(spr)) {
+      slots.put(spr, new SpriteSlot(spr));
       sprites.add(spr);
     }
   }
@@ -135,15 +1032,117 @@ public class DefaultRenderer extends Renderer {
   public void remove(GameObject gameObject) {
     SpriteRenderer spr = gameObject.getComponent(SpriteRenderer.class);
     if (spr != null) {
+      SpriteSlot s = slots.remove(spr);
+      if (s != null) s.release();
       sprites.remove(spr);
+      if (cullGrid != null) cullGrid.remove(spr);
     }
   }
 
+  @Override
+  public void clean() {
+    super.clean();
+    if (textureArrays != null) textureArrays.values().forEach(TextureArray::delete);
+    layerCaches.values().forEach(LayerCache::delete);
+  }
+
   /**
    * Prepare for rendering. Do anything like setting background here.
    */
   @Override
   protected void prepare() {
     Graphics.background(Graphics.defaultBackground);
+    if (depthPrePass) glClear(GL_DEPTH_BUFFER_BIT);
+  }
+
+  /**
+   * Draw the opaque batches front to back, writing depth, then all other batches back to front on top.
+   * Every zIndex gets its own depth, so sprites of a layer behind an opaque sprite fail the depth test.
+   *
+   * @param shader the attached shader
+   */
+  @Override
+  protected void drawBatches(Shader shader) {
+    // Without a depth buffer the test always passes and the back would cover the front
+    if (!depthPrePass || !(framebuffer.isDefault() || framebuffer.getDepthAttachment() != null)) {
+      super.drawBatches(shader);
+      return;
+    }
+    int layers = 0;
+    for (int i = 0; i < batches.size(); i++)
+      if (i == 0 || batches.get(i).zIndex() != batches.get(i - 1).zIndex()) layers++;
+
+    glEnable(GL_DEPTH_TEST);
+    // Sprites of the same layer draw over each other in order, like without the pre-pass
+    glDepthFunc(GL_LEQUAL);
+    GLState.setBlending(false);
+    shader.uploadFloat(alphaCutoffLocation, 0.5f);
+    // The layers go front to back, but the batches of a layer share its depth and keep their order
+    int layer = layers, end = batches.size();
+    while (end > 0) {
+      int start = end - 1;
+      while (start > 0 && batches.get(start - 1).zIndex() == batches.get(end - 1).zIndex()) start--;
+      layer--;
+      for (int i = start; i < end; i++) {
+        RenderBatch batch = batches.get(i);
+        if (!batch.isOpaque()) continue;
+        shader.uploadFloat(depthLocation, layerDepth(layer, layers));
+        drawBatch(batch);
+      }
+      end = start;
+    }
+
+    GLState.setBlending(true);
+    glDepthMask(false);
+    shader.uploadFloat(alphaCutoffLocation, 0);
+    layer = -1;
+    for (int i = 0; i < batches.size(); i++) {
+      RenderBatch batch = batches.get(i);
+      if (i == 0 || batch.zIndex() != batches.get(i - 1).zIndex()) layer++;
+      if (batch.isOpaque()) continue;
+      shader.uploadFloat(depthLocation, layerDepth(layer, layers));
+      drawBatch(batch);
+    }
+    glDepthMask(true);
+    glDisable(GL_DEPTH_TEST);
+    // The shader is shared with other renderers
+    shader.uploadFloat(depthLocation, 0);
+  }
+
+  /**
+   * @param layer  index of a zIndex among the zIndices of the batches, from the back
+   * @param layers number of different zIndices
+   * @return the depth of the layer in normalized device coordinates, closer to -1 for layers further in front
+   */
+  private static float layerDepth(int layer, int layers) {
+    return 1 - 2.0f * (layer + 1) / (layers + 1);
+  }
+
+  /**
+   * Where a sprite lives in the retained batches
+   */
+  private static class SpriteSlot {
+    private final SpriteRenderer sprite;
+    private RenderBatch batch;
+    private int slot = -1;
+    private int zIndex;
+    /**
+     * Position the slot was last written with
+     */
+    private float x, y;
+
+    private SpriteSlot(SpriteRenderer sprite) {
+      this.sprite = sprite;
+    }
+
+    /**
+     * Give the slot back to its batch
+     */
+    private void release() {
+      if (batch == null) return;
+      batch.freeSlot(slot);
+      batch = null;
+      slot = -1;
+    }
   }
 }
@@ -0,0 +1,112 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.Primitive;
+import org.azurite.graphics.ShaderDatatype;
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+/**
+ * A batch of quads drawn with a single instanced draw call.
+ * Instead of four vertices per quad, one record per instance is pushed, holding the attributes of this batch.
+ * Every instance is expanded into a quad in the vertex shader from a shared unit quad,
+ * which lives at attribute location 0. The attributes of this batch start at location 1.
+ * <p>
+ * Every pushed primitive is one instance, so slots in retained mode are instances as well.
+ *
+ * @see InstancedRenderer
+ */
+public class InstancedRenderBatch extends RenderBatch {
+  /**
+   * Corners of the unit quad, in the same order as the quad vertices of the {@link DefaultRenderer}
+   */
+  private static final float[] UNIT_QUAD = {
+      1, 1,
+      1, 0,
+      0, 0,
+      0, 1
+  };
+  /**
+   * Vertex buffer holding the unit quad, shared by all instanced batches
+   */
+  private static int unitQuadBuffer = 0;
+
+  /**
+   * Byte offset the instance attributes currently point at
+   */
+  private long pointedOffset = 0;
+
+  /**
+   * @param maxBatchSize the maximum number of instances in a batch
+   * @param zIndex       the zIndex of the batch
+   * @param attributes   per instance attributes, starting at location 1 in the shader
+   */
+  public InstancedRenderBatch(int maxBatchSize, int zIndex, ShaderDatatype... attributes) {
+    super(maxBatchSize, zIndex, Primitive.QUAD, 1, attributes);
+  }
+
+  /**
+   * Bind the shared unit quad buffer, creating it if necessary
+   */
+  private static void bindUnitQuad() {
+    if (unitQuadBuffer == 0) {
+      unitQuadBuffer = glGenBuffers();
+      GLState.bindBuffer(GL_ARRAY_BUFFER, unitQuadBuffer);
+      FloatBuffer corners = BufferUtils.createFloatBuffer(UNIT_QUAD.length);
+      corners.put(UNIT_QUAD).flip();
+      glBufferData(GL_ARRAY_BUFFER, corners, GL_STATIC_DRAW);
+    } else {
+      GLState.bindBuffer(GL_ARRAY_BUFFER, unitQuadBuffer);
+    }
+  }
+
+  /**
+   * Instances are drawn with pointers moved to their first record, not with a base vertex
+   */
+  @Override
+  boolean isPackable() {
+    return false;
+  }
+
+  /**
+   * Point location 0 at the unit quad and the attributes of this batch at the instance buffer
+   */
+  @Override
+  protected void initAttributes() {
+    bindUnitQuad();
+    glVertexAttribPointer(0, 2, GL_FLOAT, false, 2 * Float.BYTES, 0);
+    glEnableVertexAttribArray(0);
+
+    GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+    pointAttributes(1, 0);
+    for (int i = 0; i < attributeCount(); i++)
+      glVertexAttribDivisor(1 + i, 1);
+    pointedOffset = 0;
+  }
+
+  /**
+   * Draw one quad per pushed instance
+   *
+   * @param first the index of the first element to be drawn, six per instance
+   * @param count the number of elements to be drawn, six per instance
+   */
+  @Override
+  protected void drawElements(int first, int count) {
+    // There is no base vertex for instanced attributes, so the region of the ring and the first instance
+    // are selected by moving the pointers
+    long offset = streamOffset() + (long) (first / primitive.elementCount) * vertexSize;
+    if (offset != pointedOffset) {
+      GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+      pointAttributes(1, offset);
+      pointedOffset = offset;
+    }
+    glDrawElementsInstanced(primitive.openglPrimitive, primitive.elementCount, GL_UNSIGNED_INT, 0, count / primitive.elementCount);
+  }
+}
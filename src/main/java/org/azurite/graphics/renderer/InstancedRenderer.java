@@ -0,0 +1,79 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.ecs.SpriteRenderer;
+import org.azurite.graphics.AlphaHull;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.ShaderDatatype;
+import org.azurite.util.Assets;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * Renders sprites like the {@link DefaultRenderer}, but pushes a single 40 byte record per sprite
+ * (position, size, texture coordinate rectangle, packed color and texture slot) instead of four 36 byte vertices,
+ * and expands it into a quad in the vertex shader with an instanced draw call.
+ * This cuts the bytes written and uploaded per sprite by more than three times.
+ * <p>
+ * Use it in place of the default renderer by calling {@code setRenderer(new InstancedRenderer())} in the scene.
+ * Retained mode and the streaming strategies work the same way.
+ * Sprites have to use rectangular texture coordinates, as every sprite does.
+ */
+public class InstancedRenderer extends DefaultRenderer {
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  /**
+   * Write one instance record for a quad into space reserved in the batch
+   *
+   * @param batch              the batch the space was reserved in
+   * @param at                 the offset of the reserved space
+   * @param x                  x of the quad
+   * @param y                  y of the quad
+   * @param width              width of the quad
+   * @param height             height of the quad
+   * @param textureCoordinates texture coordinates of the four corners
+   * @param color              color of the quad
+   * @param packedColor        the same color packed into four bytes
+   * @param textureID          the texture id of the quad in this batch
+   */
+  @Override
+  protected void writeQuad(RenderBatch batch, int at, float x, float y, float width, float height,
+                           Vector2f[] textureCoordinates, Vector4f color, int packedColor, int textureID) {
+    batch.putVec2(at, x, y);
+    batch.putVec2(at + 2, width, height);
+    // Texture coordinates of the top left (vertex 2) and bottom right (vertex 0) corner of the quad
+    batch.putVec2(at + 4, textureCoordinates[2].x, textureCoordinates[2].y);
+    batch.putVec2(at + 6, textureCoordinates[0].x, textureCoordinates[0].y);
+    batch.putPackedColor(at + 8, packedColor);
+    batch.putFloat(at + 9, textureID);
+  }
+
+  /**
+   * An instance is always a full quad, so sprites are never trimmed to their hull
+   */
+  @Override
+  protected AlphaHull trimmedHull(RenderBatch batch, SpriteRenderer sprite) {
+    return null;
+  }
+
+  /**
+   * Create a shader
+   *
+   * @return the created shader
+   */
+  @Override
+  protected Shader createShader() {
+    return Assets.getShader("shaders/instanced.glsl", true);
+  }
+
+  /**
+   * Create a new Batch with appropriate parameters
+   *
+   * @param zIndex the zIndex of the batch
+   * @return a new batch
+   */
+  @Override
+  protected RenderBatch createBatch(int zIndex) {
+    return new InstancedRenderBatch(MAX_BATCH_SIZE, zIndex,
+        ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT4, ShaderDatatype.UBYTE4_NORM, ShaderDatatype.FLOAT);
+  }
+}
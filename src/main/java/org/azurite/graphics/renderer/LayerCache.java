@@ -0,0 +1,426 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.ecs.SpriteRenderer;
+import org.azurite.graphics.Camera;
+import org.azurite.graphics.CameraBuffer;
+import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.GpuProfiler;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.Texture;
+import org.azurite.graphics.TextureAtlas;
+import org.azurite.util.SpatialGrid;
+import org.azurite.util.specs.FramebufferSpec;
+import org.azurite.util.specs.TextureSpec;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Keeps a zIndex layer of a {@link DefaultRenderer} rendered into textures, for layers that rarely change
+ * like backgrounds and tile maps.
+ * <p>
+ * The world is split into square pages. A page is rendered into its own framebuffer the first time a viewport sees it,
+ * and from then on the whole page is drawn as a single textured quad in the batches of the layer. A page is only
+ * rendered again once a sprite overlapping it is added, removed, moved or otherwise changed. Pages no viewport has
+ * seen for a while are deleted, and pages without sprites never get a framebuffer, so the layer can be
+ * arbitrarily large.
+ * <p>
+ * The sprites are rendered into the pages without the lightmap, it is applied when the pages are drawn.
+ * Blending the sprites into a transparent page is exact for opaque and fully transparent texels,
+ * like those of tiles, semi transparent edges are slightly darker than when drawn directly.
+ */
+class LayerCache {
+  static final float DEFAULT_PAGE_SIZE = 1024;
+  static final int DEFAULT_PAGE_RESOLUTION = 1024;
+  /**
+   * Most pages kept at once. A view covering more pages draws the sprites of the layer directly
+   */
+  static final int MAX_PAGES = 16;
+  /**
+   * Frames a page may go unseen before its framebuffer is deleted
+   */
+  private static final int EVICT_FRAMES = 300;
+  /**
+   * Texture unit of the lightmap in the sprite shaders
+   */
+  private static final int LIGHTMAP_UNIT = 8;
+  private static final FramebufferSpec PAGE_SPEC = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8,
+      TextureSpec.TextureResizeFilterType.NEAREST, TextureSpec.TextureResizeFilterType.NEAREST));
+  /**
+   * The top of a page is the last row of its texture
+   */
+  private static final Vector2f[] PAGE_TEXTURE_COORDINATES = {
+      new Vector2f(1, 0),
+      new Vector2f(1, 1),
+      new Vector2f(0, 1),
+      new Vector2f(0, 0)
+  };
+  private static final Vector4f WHITE = new Vector4f(1);
+
+  private final DefaultRenderer renderer;
+  private final int zIndex;
+  private final float pageSize;
+  private final int resolution;
+  /**
+   * Bounds of the sprites of the layer, to find the sprites of a page
+   */
+  private final SpatialGrid<SpriteRenderer> grid;
+  /**
+   * The sprites of the layer with the bounds the pages were rendered with
+   */
+  private final Map<SpriteRenderer, Bounds> tracked = new HashMap<>();
+  /**
+   * The grid finds sprites cell by cell, they are drawn in the order they were tracked in instead
+   */
+  private final Comparator<SpriteRenderer> trackingOrder = Comparator.comparingInt(sprite -> tracked.get(sprite).order);
+  private int trackedCount = 0;
+  private final Map<Long, Page> pages = new HashMap<>();
+  /**
+   * Batches the sprites of a page are rendered with
+   */
+  private final List<RenderBatch> batches = new ArrayList<>();
+  private final List<SpriteRenderer> found = new ArrayList<>();
+  private final Matrix4f projection = new Matrix4f(), view = new Matrix4f();
+  private Texture white;
+  private int frame = 0;
+  private int atlasRevision = TextureAtlas.getRevision();
+  private int renders = 0;
+
+  /**
+   * @param renderer   the renderer the layer belongs to
+   * @param zIndex     the zIndex of the layer
+   * @param pageSize   width and height of a page in world units
+   * @param resolution width and height of the texture of a page in pixels
+   */
+  LayerCache(DefaultRenderer renderer, int zIndex, float pageSize, int resolution) {
+    assert pageSize > 0 && resolution > 0 : "[ERROR] Pages of a cached layer need a positive size and resolution";
+    this.renderer = renderer;
+    this.zIndex = zIndex;
+    this.pageSize = pageSize;
+    this.resolution = resolution;
+    this.grid = new SpatialGrid<>(pageSize / 4);
+  }
+
+  /**
+   * @param coordinate x or y in the world
+   * @param pageSize   width and height of a page
+   * @return the column or row of the page containing the coordinate
+   */
+  static int page(float coordinate, float pageSize) {
+    return (int) Math.floor(coordinate / pageSize);
+  }
+
+  static long pageKey(int column, int row) {
+    return ((long) column << 32) | (row & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Start collecting the sprites of the layer for this frame
+   */
+  void beginFrame() {
+    frame++;
+    trackedCount = 0;
+    // A grown atlas page moves the texture coordinates of sprites that did not change themselves
+    if (atlasRevision != TextureAtlas.getRevision()) {
+      atlasRevision = TextureAtlas.getRevision();
+      invalidate();
+    }
+  }
+
+  /**
+   * Note that a sprite is in the layer this frame. Pages the sprite changed in are rendered again.
+   *
+   * @param sprite a sprite with the zIndex of the layer
+   * @return whether the sprite was not in the layer the frame before
+   */
+  boolean track(SpriteRenderer sprite) {
+    float[] pos = sprite.gameObject.getPositionData();
+    Vector2f size = sprite.getSize();
+    float minX = Math.min(pos[0], pos[0] + size.x), maxX = Math.max(pos[0], pos[0] + size.x);
+    float minY = Math.min(pos[1], pos[1] + size.y), maxY = Math.max(pos[1], pos[1] + size.y);
+
+    Bounds b = tracked.get(sprite);
+    boolean added = b == null;
+    if (added) {
+      b = new Bounds();
+      tracked.put(sprite, b);
+    }
+    b.order = trackedCount++;
+    if (!added) {
+      if (!sprite.isDirty() && b.minX == minX && b.minY == minY && b.maxX == maxX && b.maxY == maxY) {
+        b.frame = frame;
+        return false;
+      }
+      invalidate(b.minX, b.minY, b.maxX, b.maxY);
+    }
+    b.minX = minX;
+    b.minY = minY;
+    b.maxX = maxX;
+    b.maxY = maxY;
+    b.frame = frame;
+    grid.update(sprite, pos[0], pos[1], size.x, size.y);
+    invalidate(minX, minY, maxX, maxY);
+    sprite.setClean();
+    return added;
+  }
+
+  /**
+   * Forget the sprites that were not in the layer this frame, and render the pages they were in again
+   */
+  void endFrame() {
+    Iterator<Map.Entry<SpriteRenderer, Bounds>> it = tracked.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<SpriteRenderer, Bounds> e = it.next();
+      Bounds b = e.getValue();
+      if (b.frame == frame) continue;
+      invalidate(b.minX, b.minY, b.maxX, b.maxY);
+      grid.remove(e.getKey());
+      // Retained mode has to write the sprite again wherever it went
+      e.getKey().markDirty();
+      it.remove();
+    }
+  }
+
+  /**
+   * Render every page again the next time it is seen, e.g. after the pixels of a texture of the layer changed
+   */
+  void invalidate() {
+    for (Page page : pages.values())
+      page.dirty = true;
+  }
+
+  private void invalidate(float minX, float minY, float maxX, float maxY) {
+    int x1 = page(maxX, pageSize), y1 = page(maxY, pageSize);
+    for (int y = page(minY, pageSize); y <= y1; y++) {
+      for (int x = page(minX, pageSize); x <= x1; x++) {
+        Page page = pages.get(pageKey(x, y));
+        if (page != null) page.dirty = true;
+      }
+    }
+  }
+
+  /**
+   * Push a quad for every page overlapping the view into the batches of the renderer,
+   * rendering the pages that are missing or out of date first
+   *
+   * @param bounds the view, as (minX, minY, maxX, maxY)
+   * @return false if the view covers more than {@link #MAX_PAGES} pages, nothing is pushed then
+   */
+  boolean draw(Vector4f bounds) {
+    int x0 = page(bounds.x, pageSize), x1 = page(bounds.z, pageSize);
+    int y0 = page(bounds.y, pageSize), y1 = page(bounds.w, pageSize);
+    if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_PAGES) return false;
+
+    for (int y = y0; y <= y1; y++) {
+      for (int x = x0; x <= x1; x++) {
+        long key = pageKey(x, y);
+        Page page = pages.get(key);
+        if (page == null) {
+          page = new Page(x, y);
+          pages.put(key, page);
+        }
+        page.lastSeen = frame;
+        if (page.dirty) render(page);
+        if (page.framebuffer != null)
+          renderer.pushQuad(page.framebuffer.getColorAttachment(0), zIndex, x * pageSize, y * pageSize,
+              pageSize, pageSize, PAGE_TEXTURE_COORDINATES, WHITE);
+      }
+    }
+    evict();
+    return true;
+  }
+
+  /**
+   * Find the sprites of the layer overlapping the view, to draw them directly
+   *
+   * @param bounds the view, as (minX, minY, maxX, maxY)
+   * @param out    list the sprites are added to
+   */
+  void query(Vector4f bounds, List<SpriteRenderer> out) {
+    int from = out.size();
+    grid.query(bounds.x, bounds.y, bounds.z, bounds.w, out);
+    out.subList(from, out.size()).sort(trackingOrder);
+  }
+
+  /**
+   * Delete pages that were not seen for a while, then the least recently seen ones while there are too many
+   */
+  private void evict() {
+    Iterator<Page> it = pages.values().iterator();
+    while (it.hasNext()) {
+      Page page = it.next();
+      if (frame - page.lastSeen > EVICT_FRAMES) {
+        page.release();
+        it.remove();
+      }
+    }
+    while (pages.size() > MAX_PAGES) {
+      Page oldest = null;
+      for (Page page : pages.values())
+        if (oldest == null || page.lastSeen < oldest.lastSeen) oldest = page;
+      oldest.release();
+      pages.remove(pageKey(oldest.x, oldest.y));
+    }
+  }
+
+  /**
+   * Render the sprites overlapping a page into its framebuffer
+   */
+  private void render(Page page) {
+    page.dirty = false;
+    renders++;
+    float left = page.x * pageSize, top = page.y * pageSize;
+    found.clear();
+    grid.query(left, top, left + pageSize, top + pageSize, found);
+    found.sort(trackingOrder);
+    if (found.isEmpty()) {
+      page.release();
+      return;
+    }
+    if (page.framebuffer == null) page.framebuffer = new Framebuffer(resolution, resolution, PAGE_SPEC);
+
+    for (RenderBatch batch : batches)
+      batch.start();
+    for (SpriteRenderer sprite : found)
+      renderer.pushSprite(batchFor(sprite), sprite);
+    for (RenderBatch batch : batches)
+      batch.finish();
+
+    // Looks at the page like a camera at its top left corner, with the page as the whole screen
+    Camera camera = CameraBuffer.getCamera();
+    projection.setOrtho(0, pageSize, pageSize, 0, 0, 100f);
+    view.setLookAt(left, top, 20, left, top, -1, 0, 1, 0);
+    CameraBuffer.set(projection, view, left, top);
+
+    GpuProfiler.begin("LayerCache");
+    page.framebuffer.bind();
+    GLState.clearColor(0, 0, 0, 0);
+    glClear(GL_COLOR_BUFFER_BIT);
+    // Keep the coverage of the sprites in the alpha of the page
+    GLState.blendFuncSeparate(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA, GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+    GLState.activeTexture(LIGHTMAP_UNIT);
+    int lightmap = glGetInteger(GL_TEXTURE_BINDING_2D);
+    white().bindToSlot(LIGHTMAP_UNIT);
+
+    Shader shader = renderer.getShader();
+    shader.attach();
+    renderer.uploadUniforms(shader);
+    int drawCalls = 0, vertices = 0;
+    for (RenderBatch batch : batches) {
+      if (batch.getVertexCount() == 0) continue;
+      drawCalls++;
+      vertices += batch.getVertexCount();
+      batch.bind();
+      batch.draw();
+      batch.unbind();
+    }
+    shader.detach();
+
+    GLState.bindTexture(LIGHTMAP_UNIT, GL_TEXTURE_2D, lightmap);
+    GLState.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    Framebuffer.unbind();
+    GpuProfiler.end(drawCalls, vertices);
+    if (camera != null) CameraBuffer.update(camera);
+  }
+
+  private RenderBatch batchFor(SpriteRenderer sprite) {
+    for (RenderBatch batch : batches) {
+      if (!batch.isFull && renderer.fits(batch, sprite)) return batch;
+    }
+    RenderBatch batch = renderer.createBatch(zIndex);
+    batch.init();
+    batch.start();
+    batches.add(batch);
+    return batch;
+  }
+
+  /**
+   * A white texture standing in for the lightmap while the pages are rendered
+   */
+  private Texture white() {
+    if (white == null) {
+      white = new Texture(1, 1, new TextureSpec(TextureSpec.TextureFormat.RGBA8));
+      glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, 1, 1, GL_RGBA, GL_UNSIGNED_BYTE, new int[]{0xFFFFFFFF});
+    }
+    return white;
+  }
+
+  /**
+   * @return the number of pages that have a framebuffer
+   */
+  int getPageCount() {
+    int count = 0;
+    for (Page page : pages.values())
+      if (page.framebuffer != null) count++;
+    return count;
+  }
+
+  /**
+   * @return the number of times a page was rendered
+   */
+  int getRenderCount() {
+    return renders;
+  }
+
+  /**
+   * Delete the batches the pages are rendered with, e.g. because the vertex format of the renderer changed.
+   * The pages stay valid.
+   */
+  void deleteBatches() {
+    batches.forEach(RenderBatch::delete);
+    batches.clear();
+  }
+
+  /**
+   * Delete all pages and batches. The sprites of the layer are drawn directly again
+   */
+  void delete() {
+    deleteBatches();
+    pages.values().forEach(Page::release);
+    pages.clear();
+    tracked.keySet().forEach(SpriteRenderer::markDirty);
+    tracked.clear();
+    grid.clear();
+    if (white != null) white.delete();
+    white = null;
+  }
+
+  /**
+   * A square of the world rendered into a framebuffer
+   */
+  private static class Page {
+    private final int x, y;
+    private Framebuffer framebuffer;
+    private boolean dirty = true;
+    private int lastSeen;
+
+    private Page(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    private void release() {
+      if (framebuffer != null) framebuffer.release();
+      framebuffer = null;
+    }
+  }
+
+  private static class Bounds {
+    private float minX, minY, maxX, maxY;
+    private int frame;
+    /**
+     * Position of the sprite among the sprites of the layer in the last frame
+     */
+    private int order;
+  }
+}
@@ -1,40 +1,142 @@
 package org.azurite.graphics.renderer;
 
+import org.azurite.ecs.Dynamics;
 import org.azurite.ecs.GameObject;
 import org.azurite.ecs.PointLight;
+import org.azurite.ecs.PolygonCollider;
 import org.azurite.graphics.*;
 import org.azurite.util.Assets;
 import org.azurite.util.Engine;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
+import org.joml.Vector4f;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL14.*;
+
+/**
+ * Renders the lightmap by accumulating the lights with additive blending. Every {@link PointLight} is drawn as an
+ * instance of a quad covering the area it reaches, so the cost depends on the number of lit pixels instead of
+ * the number of pixels times the number of lights, and there is no limit on the number of lights.
+ * Lights whose area lies outside the views of all viewports of the scene are skipped on the CPU,
+ * and every viewport skips the shadowed lights it can not see.
+ * <p>
+ * Lights with {@link PointLight#castShadows} set are blocked by the edges of {@link PolygonCollider}s, see {@link Occluders}.
+ * Every edge near such a light casts a quad reaching out of the area of the light. The quads are drawn into the
+ * stencil buffer, then the light is drawn where the stencil is not set. The quads of the static edges are kept
+ * per light and only built again when the light moved or static colliders within its reach changed.
+ * <p>
+ * The minimum lighting of the scene is applied last, as a quad over the whole view blended with GL_MAX.
+ */
 public class LightmapRenderer extends Renderer {
+  /**
+   * Attenuation at which a light is cut off. Has to match CUTOFF in lightmap.glsl
+   */
+  private static final float CUTOFF = 1f / 256f;
+  private static final int MAX_BATCH_SIZE = 1000;
+  /**
+   * Maximum number of shadow quads per frame. Lights that do not fit in anymore are drawn without shadows
+   */
+  private static final int MAX_SHADOW_QUADS = 16384;
+  /**
+   * Cached shadows are built for a slightly larger radius, so lights with a flickering intensity keep them
+   */
+  private static final float SHADOW_RADIUS_MARGIN = 1.25f;
+
   // The light data
   private final List<PointLight> lights;
-  private RenderBatch batch;
+  /**
+   * The batch holding the quad with the minimum lighting, drawn after all lights
+   */
+  private RenderBatch ambientBatch;
+  /**
+   * The shadow quads of all shadowed lights, and the shadowed lights themselves, drawn one light at a time
+   */
+  private RenderBatch shadowBatch, shadowedLightBatch;
+  private Shader lightShader, shadowShader;
+  private final Occluders occluders = new Occluders();
+  private final Map<PointLight, ShadowCache> shadowCaches = new IdentityHashMap<>();
+  private final List<Occluders.Edge> edges = new ArrayList<>();
+  private final float[] quad = new float[8];
+  /**
+   * First shadow quad and number of shadow quads of every shadowed light this frame
+   */
+  private int[] shadowRanges = new int[32];
+  /**
+   * Center and radius of every shadowed light this frame
+   */
+  private float[] shadowedAreas = new float[48];
+  private int shadowedLights = 0;
+  private int shadowQuads = 0;
+  private int rebuiltShadows = 0;
+  private final Vector4f viewBounds = new Vector4f();
+  private int visibleLights = 0;
 
   public LightmapRenderer() {
     lights = new ArrayList<>();
-    noRebuffer = true;
   }
 
   @Override
   public void init() {
     super.init();
+    shadowShader = Assets.getShader("shaders/shadow.glsl", true);
+    createExtraBatches();
+  }
+
+  /**
+   * Create the batches that are drawn after the regular ones: the shadowed lights and the minimum lighting
+   */
+  private void createExtraBatches() {
+    ambientBatch = new InstancedRenderBatch(1, 1, attributes()) {
+      @Override
+      public void bind() {
+        GLState.blendEquation(GL_MAX);
+        super.bind();
+      }
 
-    batch = new RenderBatch(1, 0, Primitive.QUAD, ShaderDatatype.FLOAT2);
-    batch.init();
-    batch.start();
-    batch.pushVec2(0, Window.getHeight());
-    batch.pushVec2(Window.getWidth(), Window.getHeight());
-    batch.pushVec2(Window.getWidth(), 0);
-    batch.pushVec2(0, 0);
-    batch.finish();
-    batches.add(batch);
-    // TODO: Add resize method to re-upload projection matrix @asher or @voxelrifts
+      @Override
+      public void unbind() {
+        super.unbind();
+        GLState.blendEquation(GL_FUNC_ADD);
+      }
+    };
+    shadowBatch = new RenderBatch(MAX_SHADOW_QUADS, 0, Primitive.QUAD, ShaderDatatype.FLOAT2);
+    shadowedLightBatch = new InstancedRenderBatch(MAX_BATCH_SIZE, 0, attributes());
+    for (RenderBatch batch : new RenderBatch[]{ambientBatch, shadowBatch, shadowedLightBatch}) {
+      batch.setStreaming(getStreaming());
+      batch.init();
+      batch.start();
+    }
+  }
+
+  /**
+   * Drop all batches, creating new extra batches
+   */
+  @Override
+  protected void clearBatches() {
+    super.clearBatches();
+    if (ambientBatch != null) createExtraBatches();
+  }
+
+  /**
+   * Delete all the batches, including the extra ones
+   */
+  @Override
+  public void clean() {
+    super.clean();
+    if (ambientBatch != null) {
+      ambientBatch.delete();
+      shadowBatch.delete();
+      shadowedLightBatch.delete();
+    }
+  }
+
+  private static ShaderDatatype[] attributes() {
+    return new ShaderDatatype[]{ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT, ShaderDatatype.FLOAT3, ShaderDatatype.FLOAT};
   }
 
   /**
@@ -44,28 +146,30 @@ public class LightmapRenderer extends Renderer {
    */
   @Override
   protected Shader createShader() {
-    return Assets.getShader("shaders/lightmap.glsl", true);
+    lightShader = Assets.getShader("shaders/lightmap.glsl", true);
+    return lightShader;
   }
 
   /**
-   * Create a framebuffer
+   * Take a framebuffer with a stencil buffer from the pool that is the size of the screen scaled by
+   * {@link org.azurite.graphics.DynamicResolution}
    *
-   * @return the created Framebuffer
+   * @return the framebuffer
    */
   @Override
   protected Framebuffer createFramebuffer() {
-    return Framebuffer.createWithColorAttachment();
+    return FramebufferPool.acquire(1, FramebufferPool.COLOR_STENCIL, true);
   }
 
   /**
    * Create a new Batch with appropriate parameters
    *
-   * @param zIndex
+   * @param zIndex the zIndex of the batch
    * @return a new batch
    */
   @Override
   protected RenderBatch createBatch(int zIndex) {
-    return null;
+    return new InstancedRenderBatch(MAX_BATCH_SIZE, zIndex, attributes());
   }
 
   /**
@@ -75,51 +179,125 @@ public class LightmapRenderer extends Renderer {
    */
   @Override
   protected void uploadUniforms(Shader shader) {
-    // This is here so that all renderers can have different cameras OR no cameras at all
-    shader.uploadMat4f("uProjection", Engine.window().currentScene().camera().getProjectionMatrix());
-    shader.uploadVec2f("uCameraOffset", Engine.window().currentScene().camera().getPosition());
-
-    // Set lighting uniforms
-    Vector2f[] lightPositions = new Vector2f[lights.size()];
-    Vector3f[] lightColors = new Vector3f[lights.size()];
-    float[] lightIntensities = new float[lights.size()];
-
-    for (int i = 0; i < lights.size(); i++) {
-      PointLight light = lights.get(i);
-      lightPositions[i] = new Vector2f(light.gameObject.getPositionData()[0], light.gameObject.getPositionData()[1]);
-      lightColors[i] = light.color;
-      lightIntensities[i] = light.intensity;
-    }
+    // The light data is in the batches, the camera matrices come from the shared CameraBuffer
+  }
 
-    shader.uploadVec2fArray("uLightPosition", lightPositions);
-    shader.uploadVec3fArray("uLightColor", lightColors);
-    shader.uploadFloatArray("uIntensity", lightIntensities);
-    shader.uploadFloat("uMinLighting", Engine.scenes().getMinSceneLight());
-    shader.uploadInt("uNumLights", lights.size());
+  /**
+   * Calculate the distance at which the attenuation of a light falls below {@link #CUTOFF}
+   *
+   * @param intensity the intensity of the light
+   * @return the radius of the quad of the light
+   */
+  public static float getRadius(float intensity) {
+    if (intensity <= 0) return 0;
+    // Solving 1 / (1 + (0.001 / intensity) * d^2) = CUTOFF for d
+    return (float) Math.sqrt((1 / CUTOFF - 1) * intensity / 0.001f);
   }
 
   /**
-   * Rebuffer all the data into batches
+   * Push every light reaching into the view of a viewport with its shadows, then the minimum lighting
    */
   @Override
   protected void rebuffer() {
-    // Will never be called since noRebuffer flag is set
+    Engine.window().currentScene().getViewBounds(viewBounds);
+    visibleLights = 0;
+    shadowedLights = 0;
+    shadowQuads = 0;
+    rebuiltShadows = 0;
+    occluders.update();
+    ambientBatch.start();
+    shadowBatch.start();
+    shadowedLightBatch.start();
+
+    for (PointLight light : lights) {
+      if (light.intensity <= 0) continue;
+      float x = light.gameObject.getPositionData()[0];
+      float y = light.gameObject.getPositionData()[1];
+      float r = getRadius(light.intensity);
+      if (x + r < viewBounds.x || x - r > viewBounds.z || y + r < viewBounds.y || y - r > viewBounds.w) continue;
+
+      RenderBatch batch = light.castShadows && pushShadows(light, x, y, r) ? shadowedLightBatch : getAvailableBatch(null, 0);
+      pushLight(batch, x, y, r, light.color.x, light.color.y, light.color.z, light.intensity);
+      visibleLights++;
+    }
+
+    float min = Engine.scenes().getMinSceneLight();
+    float halfWidth = (viewBounds.z - viewBounds.x) / 2;
+    float halfHeight = (viewBounds.w - viewBounds.y) / 2;
+    pushLight(ambientBatch, viewBounds.x + halfWidth, viewBounds.y + halfHeight, Math.max(halfWidth, halfHeight),
+        min, min, min, 0);
 
+    ambientBatch.finish();
+    shadowBatch.finish();
+    shadowedLightBatch.finish();
   }
 
+  /**
+   * Push the shadow quads of a light, building its cached quads of static edges again if they are outdated
+   *
+   * @return whether the light has shadows and is drawn as a shadowed light
+   */
+  private boolean pushShadows(PointLight light, float x, float y, float r) {
+    if (shadowedLights == MAX_BATCH_SIZE) return false;
+
+    ShadowCache cache = shadowCaches.computeIfAbsent(light, l -> new ShadowCache());
+    if (!cache.isValid(x, y, r)) {
+      cache.build(x, y, r * SHADOW_RADIUS_MARGIN, light.gameObject);
+      rebuiltShadows++;
+    }
+
+    edges.clear();
+    occluders.queryDynamic(x - r, y - r, x + r, y + r, light.gameObject, edges);
+    if (cache.count + edges.size() == 0 || shadowQuads + cache.count + edges.size() > MAX_SHADOW_QUADS) return false;
+
+    int first = shadowQuads;
+    for (int i = 0; i < cache.count; i++) pushQuad(cache.quads, i * 8);
+    for (Occluders.Edge e : edges)
+      if (Occluders.writeShadow(x, y, r, e, quad, 0)) pushQuad(quad, 0);
+
+    if (shadowRanges.length < (shadowedLights + 1) * 2) shadowRanges = Arrays.copyOf(shadowRanges, shadowRanges.length * 2);
+    if (shadowedAreas.length < (shadowedLights + 1) * 3) shadowedAreas = Arrays.copyOf(shadowedAreas, shadowedAreas.length * 2);
+    shadowRanges[shadowedLights * 2] = first;
+    shadowRanges[shadowedLights * 2 + 1] = shadowQuads - first;
+    shadowedAreas[shadowedLights * 3] = x;
+    shadowedAreas[shadowedLights * 3 + 1] = y;
+    shadowedAreas[shadowedLights * 3 + 2] = r;
+    shadowedLights++;
+    return true;
+  }
+
+  private void pushQuad(float[] quad, int from) {
+    int at = shadowBatch.reserve(8);
+    for (int i = 0; i < 8; i += 2) shadowBatch.putVec2(at + i, quad[from + i], quad[from + i + 1]);
+    shadowQuads++;
+  }
+
+  private static void pushLight(RenderBatch batch, float x, float y, float radius, float r, float g, float b, float intensity) {
+    batch.includeBounds(x - radius, y - radius, x + radius, y + radius);
+    int at = batch.reserve(batch.getPrimitiveSize());
+    batch.putVec2(at, x, y);
+    batch.putFloat(at + 2, radius);
+    batch.putFloat(at + 3, r);
+    batch.putFloat(at + 4, g);
+    batch.putFloat(at + 5, b);
+    batch.putFloat(at + 6, intensity);
+  }
 
   /**
-   * Add a gameObject to this renderer
+   * Add a gameObject to this renderer. Its polygon colliders become occluders, dynamic ones if it has {@link Dynamics}
    *
    * @param gameObject the GameObject with renderable components
    */
   @Override
   public void add(GameObject gameObject) {
+    boolean dynamic = gameObject.getComponent(Dynamics.class) != null;
+    for (PolygonCollider collider : gameObject.getComponents(PolygonCollider.class))
+      occluders.add(collider, dynamic);
+
     PointLight l = gameObject.getComponent(PointLight.class);
     if (l != null) {
       if (lights.contains(l)) return;
       lights.add(l);
-      assert lights.size() <= 10 : "NO MORE THAN 10 LIGHTS";
     }
   }
 
@@ -130,9 +308,13 @@ public class LightmapRenderer extends Renderer {
    */
   @Override
   public void remove(GameObject gameObject) {
+    for (PolygonCollider collider : gameObject.getComponents(PolygonCollider.class))
+      occluders.remove(collider);
+
     PointLight l = gameObject.getComponent(PointLight.class);
     if (l != null) {
       lights.remove(l);
+      shadowCaches.remove(l);
     }
   }
 
@@ -141,10 +323,121 @@ public class LightmapRenderer extends Renderer {
    */
   @Override
   protected void prepare() {
-    Graphics.background(Color.WHITE);
+    Graphics.background(Color.BLACK);
+    glClear(GL_STENCIL_BUFFER_BIT);
+    GLState.blendFunc(GL_ONE, GL_ONE);
+  }
+
+  /**
+   * Draw the shadowed lights one by one, then the minimum lighting
+   */
+  @Override
+  protected void afterBatches() {
+    if (shadowedLights > 0) drawShadowedLights();
+
+    ambientBatch.bind();
+    ambientBatch.draw();
+    ambientBatch.unbind();
+    countDraw(4);
+  }
+
+  /**
+   * Every light marks its shadows in the stencil buffer with its own value and is drawn where the value is different.
+   * Using a new value per light saves clearing the stencil buffer in between, until the 255 values are used up.
+   */
+  private void drawShadowedLights() {
+    glEnable(GL_STENCIL_TEST);
+    int drawn = 0;
+    for (int i = 0; i < shadowedLights; i++) {
+      float x = shadowedAreas[i * 3], y = shadowedAreas[i * 3 + 1], r = shadowedAreas[i * 3 + 2];
+      if (x + r < drawBounds.x || x - r > drawBounds.z || y + r < drawBounds.y || y - r > drawBounds.w) continue;
+      int value = drawn++ % 255 + 1;
+      if (value == 1 && drawn > 1) glClear(GL_STENCIL_BUFFER_BIT);
+
+      lightShader.detach();
+      shadowShader.attach();
+      glColorMask(false, false, false, false);
+      glStencilFunc(GL_ALWAYS, value, 0xFF);
+      glStencilOp(GL_KEEP, GL_KEEP, GL_REPLACE);
+      shadowBatch.bind();
+      shadowBatch.drawRange(shadowRanges[i * 2], shadowRanges[i * 2 + 1]);
+      shadowBatch.unbind();
+      countDraw(shadowRanges[i * 2 + 1] * 4);
+
+      shadowShader.detach();
+      lightShader.attach();
+      glColorMask(true, true, true, true);
+      glStencilFunc(GL_NOTEQUAL, value, 0xFF);
+      glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
+      shadowedLightBatch.bind();
+      shadowedLightBatch.drawRange(i, 1);
+      shadowedLightBatch.unbind();
+      countDraw(4);
+    }
+    glDisable(GL_STENCIL_TEST);
+  }
+
+  /**
+   * Draw the lightmap and restore the blending of the other renderers
+   */
+  @Override
+  public void draw() {
+    super.draw();
+    GLState.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+  }
+
+  /**
+   * @return the number of lights drawn in the last frame, after culling the ones outside the view
+   */
+  public int getVisibleLightCount() {
+    return visibleLights;
+  }
+
+  /**
+   * @return the number of lights whose cached shadows had to be built again in the last frame
+   */
+  public int getShadowRebuildCount() {
+    return rebuiltShadows;
+  }
+
+  /**
+   * @return the occluders shadows are cast from
+   */
+  public Occluders getOccluders() {
+    return occluders;
   }
 
   public void bindLightmap() {
     framebuffer.getColorAttachment(0).bindToSlot(8);
   }
+
+  /**
+   * The shadow quads of the static edges around a light, valid as long as the light stays at its position,
+   * does not outgrow the radius they were built for and no static collider changes within that radius
+   */
+  private class ShadowCache {
+    private float x, y, radius;
+    private int revision;
+    private float[] quads = new float[64];
+    private int count = -1;
+
+    private boolean isValid(float x, float y, float r) {
+      if (count == -1 || x != this.x || y != this.y || r > radius) return false;
+      return !occluders.changedSince(revision, x - radius, y - radius, x + radius, y + radius);
+    }
+
+    private void build(float x, float y, float radius, Object owner) {
+      this.x = x;
+      this.y = y;
+      this.radius = radius;
+      revision = occluders.getRevision();
+
+      edges.clear();
+      occluders.queryStatic(x - radius, y - radius, x + radius, y + radius, owner, edges);
+      if (quads.length < edges.size() * 8) quads = new float[edges.size() * 8];
+      count = 0;
+      for (Occluders.Edge e : edges)
+        if (Occluders.writeShadow(x, y, radius, e, quads, count * 8)) count++;
+    }
+  }
 }
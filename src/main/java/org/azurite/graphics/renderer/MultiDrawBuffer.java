@@ -0,0 +1,245 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.Texture;
+import org.azurite.graphics.TextureArray;
+import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Draws the batches of a renderer from one shared vertex buffer with glMultiDrawElementsIndirect, see
+ * {@link Renderer#setMultiDrawIndirect(boolean)}.
+ * <p>
+ * Once the batches are filled, the vertices of every batch that can be packed are copied into the shared buffer
+ * behind each other, instead of into the buffer of the batch. Drawing writes one indirect command per visible batch
+ * into a single buffer, then consecutive batches whose textures can be bound at the same time are drawn with one call.
+ * Batches using the same texture array, or only a few textures like the pages of a {@link org.azurite.graphics.TextureAtlas},
+ * end up in a single call. Batches that can not be packed, like retained or instanced ones, are drawn one by one
+ * in between, so the order of the batches is kept.
+ */
+class MultiDrawBuffer {
+  /**
+   * count, instanceCount, firstIndex, baseVertex and baseInstance of a DrawElementsIndirectCommand
+   */
+  private static final int COMMAND_INTS = 5;
+  private static final int COMMAND_BYTES = COMMAND_INTS * Integer.BYTES;
+
+  private static Boolean supported;
+
+  /**
+   * A batch whose vertex layout the shared buffer was set up with
+   */
+  private RenderBatch layout;
+  private int vao, vbo, indirectBuffer;
+  /**
+   * Size of the shared vertex buffer in bytes
+   */
+  private long capacity;
+  private IntBuffer commands = MemoryUtil.memAllocInt(64 * COMMAND_INTS);
+  private final List<Group> groups = new ArrayList<>();
+  private int groupCount;
+
+  /**
+   * Consecutive batches drawn with one call, or a single batch drawn on its own
+   */
+  private static class Group {
+    RenderBatch single;
+    final Texture[] slots = new Texture[RenderBatch.MAX_TEXTURES];
+    TextureArray array;
+    int firstCommand, commandCount, vertices;
+  }
+
+  /**
+   * @return whether the context supports glMultiDrawElementsIndirect, which requires OpenGL 4.3
+   */
+  static boolean isSupported() {
+    if (supported == null) supported = GL.getCapabilities().OpenGL43;
+    return supported;
+  }
+
+  /**
+   * Copy the vertices of every batch that can be packed into the shared buffer. Batches that are not packed
+   * have to upload their vertices themselves.
+   *
+   * @param batches the batches of the renderer, filled for this frame
+   */
+  void pack(List<RenderBatch> batches) {
+    long bytes = 0;
+    int primitives = 0;
+    for (RenderBatch batch : batches) {
+      batch.packedInto = null;
+      if (!batch.isPackable() || batch.dataOffset == 0) continue;
+      if (layout == null || !layout.hasLayoutOf(batch)) {
+        // The renderer changed its vertex format, the batches of the old one are gone
+        if (bytes > 0) continue;
+        create(batch);
+      }
+      batch.packedInto = this;
+      bytes += (long) batch.dataOffset * Float.BYTES;
+      primitives = Math.max(primitives, batch.maxBatchSize);
+    }
+    if (bytes == 0) return;
+
+    GLState.bindVertexArray(vao);
+    RenderBatch.bindSharedIndexBuffer(layout.primitive, primitives);
+    GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+    if (bytes > capacity) {
+      capacity = Math.max(bytes, capacity * 2);
+      glBufferData(GL_ARRAY_BUFFER, capacity, GL_STREAM_DRAW);
+    }
+
+    // Invalidating the whole buffer lets the driver hand out new storage while the GPU still draws the last frame
+    long address = nglMapBufferRange(GL_ARRAY_BUFFER, 0, bytes, GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+    long offset = 0;
+    for (RenderBatch batch : batches) {
+      if (batch.packedInto != this) continue;
+      long size = (long) batch.dataOffset * Float.BYTES;
+      MemoryUtil.memCopy(MemoryUtil.memAddress(batch.staging), address + offset, size);
+      batch.packedVertex = (int) (offset / batch.vertexSize);
+      offset += size;
+    }
+    glUnmapBuffer(GL_ARRAY_BUFFER);
+  }
+
+  /**
+   * Create the vertex array and the buffers for the vertex layout of a batch
+   */
+  private void create(RenderBatch batch) {
+    delete();
+    layout = batch;
+    vao = glGenVertexArrays();
+    GLState.bindVertexArray(vao);
+    vbo = glGenBuffers();
+    GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+    capacity = (long) batch.staging.capacity() * 4;
+    glBufferData(GL_ARRAY_BUFFER, capacity, GL_STREAM_DRAW);
+    batch.pointAttributes(0, 0);
+    indirectBuffer = glGenBuffers();
+  }
+
+  /**
+   * Draw the visible batches in order, the packed ones with as few calls as possible
+   *
+   * @param renderer the renderer the batches belong to, with its shader attached
+   * @param batches  the batches
+   * @param view     the part of the world visible in this draw
+   */
+  void draw(Renderer renderer, List<RenderBatch> batches, Vector4f view) {
+    commands.clear();
+    groupCount = 0;
+    Group group = null;
+    for (RenderBatch batch : batches) {
+      if (batch.getVertexCount() == 0 || !batch.overlaps(view)) continue;
+      if (batch.packedInto != this) {
+        nextGroup().single = batch;
+        group = null;
+        continue;
+      }
+      if (group == null || !fits(group, batch)) {
+        group = nextGroup();
+        group.firstCommand = commands.position() / COMMAND_INTS;
+      }
+      join(group, batch);
+    }
+    if (groupCount == 0) return;
+
+    if (commands.position() > 0) {
+      commands.flip();
+      GLState.bindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+      glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_STREAM_DRAW);
+    }
+
+    for (int i = 0; i < groupCount; i++) {
+      Group g = groups.get(i);
+      if (g.single != null) {
+        renderer.drawBatch(g.single);
+        g.single = null;
+        continue;
+      }
+      GLState.bindVertexArray(vao);
+      for (int slot = 0; slot < g.slots.length; slot++)
+        if (g.slots[slot] != null) g.slots[slot].bindToSlot(slot + 1);
+      if (g.array != null) g.array.bindToSlot(RenderBatch.TEXTURE_ARRAY_UNIT);
+      glMultiDrawElementsIndirect(layout.primitive.openglPrimitive, GL_UNSIGNED_INT,
+          (long) g.firstCommand * COMMAND_BYTES, g.commandCount, 0);
+      renderer.countDraw(g.vertices);
+    }
+  }
+
+  private Group nextGroup() {
+    if (groupCount == groups.size()) groups.add(new Group());
+    Group group = groups.get(groupCount++);
+    group.single = null;
+    Arrays.fill(group.slots, null);
+    group.array = null;
+    group.commandCount = 0;
+    group.vertices = 0;
+    return group;
+  }
+
+  /**
+   * @return whether the textures of the batch can be bound together with the ones of the group
+   */
+  private static boolean fits(Group group, RenderBatch batch) {
+    if (batch.textureArray != null && group.array != null && batch.textureArray != group.array) return false;
+    for (int i = 0; i < batch.textures.size(); i++) {
+      Texture slot = group.slots[i];
+      if (slot != null && slot != batch.textures.get(i)) return false;
+    }
+    return true;
+  }
+
+  private void join(Group group, RenderBatch batch) {
+    for (int i = 0; i < batch.textures.size(); i++)
+      group.slots[i] = batch.textures.get(i);
+    if (batch.textureArray != null) group.array = batch.textureArray;
+
+    if (commands.remaining() < COMMAND_INTS)
+      commands = MemoryUtil.memRealloc(commands, commands.capacity() * 2);
+    int count = batch.getVertexCount();
+    commands.put(count).put(1).put(0).put(batch.packedVertex).put(0);
+    group.commandCount++;
+    group.vertices += count;
+  }
+
+  /**
+   * @return the vertex array of the shared buffer
+   */
+  int getVertexArray() {
+    return vao;
+  }
+
+  /**
+   * Delete the vertex array and the buffers
+   */
+  void delete() {
+    if (vao != 0) {
+      GLState.deleteVertexArray(vao);
+      GLState.deleteBuffer(vbo);
+      GLState.deleteBuffer(indirectBuffer);
+    }
+    vao = vbo = indirectBuffer = 0;
+    capacity = 0;
+    layout = null;
+  }
+
+  /**
+   * Delete the GPU resources and free the command memory
+   */
+  void free() {
+    delete();
+    MemoryUtil.memFree(commands);
+    commands = null;
+  }
+}
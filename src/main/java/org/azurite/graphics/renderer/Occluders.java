@@ -0,0 +1,351 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.ecs.PolygonCollider;
+import org.azurite.util.SpatialGrid;
+import org.joml.Vector2f;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The edges of {@link PolygonCollider}s that block light, used by the {@link LightmapRenderer} to cast shadows.
+ * <p>
+ * Edges of static colliders are kept in a {@link SpatialGrid} and only touched when a static collider is added,
+ * removed or moved. An edge shared by two static colliders, like the edge between two neighbouring solid tiles,
+ * lies inside a wall and is left out, so a tile layer only casts shadows from its outline.
+ * Every change to the static edges is logged with its bounds, which lets a light keep its shadows
+ * until something changes within its reach. Edges of dynamic colliders are read again every frame.
+ */
+public class Occluders {
+  /**
+   * Width and height of a cell of the static edge grid
+   */
+  private static final float CELL_SIZE = 256;
+  /**
+   * Edge endpoints closer than 1 / WELD are considered the same when looking for shared edges
+   */
+  private static final float WELD = 8;
+  /**
+   * Number of changes remembered. Caches older than the oldest change are treated as changed
+   */
+  private static final int MAX_CHANGES = 256;
+
+  private final SpatialGrid<Edge> staticEdges = new SpatialGrid<>(CELL_SIZE);
+  /**
+   * Static edges by their endpoints, an edge is only in the grid if no other edge has the same endpoints
+   */
+  private final Map<EdgeKey, List<Edge>> shared = new HashMap<>();
+  private final Map<PolygonCollider, Occluder> occluders = new IdentityHashMap<>();
+  private final ArrayDeque<Change> changes = new ArrayDeque<>();
+  private int revision = 0;
+
+  /**
+   * Add a collider, or change whether it is dynamic if it was added before
+   *
+   * @param collider the collider
+   * @param dynamic  whether the collider moves regularly. Static colliders may move too, but every move
+   *                 invalidates the cached shadows of the lights around it
+   */
+  public void add(PolygonCollider collider, boolean dynamic) {
+    Occluder o = occluders.get(collider);
+    if (o != null) {
+      if (o.dynamic == dynamic) return;
+      removeEdges(o);
+    } else {
+      o = new Occluder(collider);
+      occluders.put(collider, o);
+    }
+    o.dynamic = dynamic;
+    o.build();
+    if (!dynamic) insertEdges(o);
+  }
+
+  /**
+   * Remove a collider
+   *
+   * @param collider the collider
+   */
+  public void remove(PolygonCollider collider) {
+    Occluder o = occluders.remove(collider);
+    if (o != null) removeEdges(o);
+  }
+
+  /**
+   * Rebuild the edges of dynamic colliders and of static colliders that moved. Called once per frame before
+   * collecting edges.
+   */
+  public void update() {
+    for (Occluder o : occluders.values()) {
+      if (o.dynamic) {
+        o.build();
+      } else if (o.moved()) {
+        removeEdges(o);
+        o.build();
+        insertEdges(o);
+      }
+    }
+  }
+
+  private void insertEdges(Occluder o) {
+    for (Edge e : o.edges) {
+      List<Edge> same = shared.computeIfAbsent(e.key, k -> new ArrayList<>(1));
+      same.add(e);
+      if (same.size() == 1) staticEdges.update(e, e.ax, e.ay, e.bx - e.ax, e.by - e.ay);
+      else staticEdges.remove(same.get(0));
+    }
+    logChange(o);
+  }
+
+  private void removeEdges(Occluder o) {
+    if (o.dynamic) return;
+    for (Edge e : o.edges) {
+      List<Edge> same = shared.get(e.key);
+      if (same == null) continue;
+      same.remove(e);
+      staticEdges.remove(e);
+      if (same.size() == 1) {
+        Edge exposed = same.get(0);
+        staticEdges.update(exposed, exposed.ax, exposed.ay, exposed.bx - exposed.ax, exposed.by - exposed.ay);
+      } else if (same.isEmpty()) {
+        shared.remove(e.key);
+      }
+    }
+    logChange(o);
+  }
+
+  private void logChange(Occluder o) {
+    if (o.edges.isEmpty()) return;
+    revision++;
+    changes.addLast(new Change(revision, o.minX, o.minY, o.maxX, o.maxY));
+    if (changes.size() > MAX_CHANGES) changes.removeFirst();
+  }
+
+  /**
+   * @return a number that increases with every change to the static edges
+   */
+  public int getRevision() {
+    return revision;
+  }
+
+  /**
+   * Check whether static edges within a rectangle changed after a revision
+   *
+   * @param since the revision the caller last looked at
+   * @param minX  left edge of the rectangle
+   * @param minY  top edge of the rectangle
+   * @param maxX  right edge of the rectangle
+   * @param maxY  bottom edge of the rectangle
+   * @return whether anything in the rectangle changed, or too many changes happened to tell
+   */
+  public boolean changedSince(int since, float minX, float minY, float maxX, float maxY) {
+    if (since == revision) return false;
+    if (changes.isEmpty() || changes.peekFirst().revision > since + 1) return true;
+    for (Change c : changes) {
+      if (c.revision <= since) continue;
+      if (c.maxX >= minX && c.minX <= maxX && c.maxY >= minY && c.minY <= maxY) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Find the static edges within a rectangle
+   *
+   * @param minX    left edge of the rectangle
+   * @param minY    top edge of the rectangle
+   * @param maxX    right edge of the rectangle
+   * @param maxY    bottom edge of the rectangle
+   * @param exclude edges of colliders on this object are skipped, e.g. the object carrying the light. May be null
+   * @param out     list the edges are added to
+   */
+  public void queryStatic(float minX, float minY, float maxX, float maxY, Object exclude, List<Edge> out) {
+    int start = out.size();
+    staticEdges.query(minX, minY, maxX, maxY, out);
+    if (exclude != null) out.subList(start, out.size()).removeIf(e -> e.owner == exclude);
+  }
+
+  /**
+   * Find the edges of dynamic colliders within a rectangle
+   *
+   * @param minX    left edge of the rectangle
+   * @param minY    top edge of the rectangle
+   * @param maxX    right edge of the rectangle
+   * @param maxY    bottom edge of the rectangle
+   * @param exclude edges of colliders on this object are skipped. May be null
+   * @param out     list the edges are added to
+   */
+  public void queryDynamic(float minX, float minY, float maxX, float maxY, Object exclude, List<Edge> out) {
+    for (Occluder o : occluders.values()) {
+      if (!o.dynamic || o.edges.isEmpty() || (exclude != null && o.owner() == exclude)) continue;
+      if (o.maxX < minX || o.minX > maxX || o.maxY < minY || o.minY > maxY) continue;
+      out.addAll(o.edges);
+    }
+  }
+
+  /**
+   * @return the number of static edges that can cast shadows
+   */
+  public int getStaticEdgeCount() {
+    return staticEdges.size();
+  }
+
+  /**
+   * Write the shadow of an edge as a quad: the edge itself and the edge pushed away from the light,
+   * far enough to leave the circle the light reaches.
+   *
+   * @param lx     x of the light
+   * @param ly     y of the light
+   * @param radius radius of the light
+   * @param e      the edge
+   * @param out    array the eight coordinates of the quad are written to
+   * @param at     index of the first coordinate
+   * @return whether the edge casts a shadow. Edges through the light do not
+   */
+  public static boolean writeShadow(float lx, float ly, float radius, Edge e, float[] out, int at) {
+    float ax = e.ax - lx, ay = e.ay - ly;
+    float bx = e.bx - lx, by = e.by - ly;
+    float la = (float) Math.sqrt(ax * ax + ay * ay);
+    float lb = (float) Math.sqrt(bx * bx + by * by);
+    if (la < 1e-4f || lb < 1e-4f) return false;
+
+    // The straight line between the pushed endpoints has to stay outside the circle, which it does if they are
+    // pushed to radius / cos(half the angle between them). Capped, as the angle approaches 180 degrees
+    float cos = (ax * bx + ay * by) / (la * lb);
+    float halfCos = (float) Math.sqrt(Math.max((1 + cos) / 2, 0));
+    float reach = radius / Math.max(halfCos, 0.01f);
+
+    out[at] = e.ax;
+    out[at + 1] = e.ay;
+    out[at + 2] = e.bx;
+    out[at + 3] = e.by;
+    out[at + 4] = lx + bx / lb * Math.max(reach, lb);
+    out[at + 5] = ly + by / lb * Math.max(reach, lb);
+    out[at + 6] = lx + ax / la * Math.max(reach, la);
+    out[at + 7] = ly + ay / la * Math.max(reach, la);
+    return true;
+  }
+
+  /**
+   * A straight segment of the outline of a collider
+   */
+  public static class Edge {
+    public final float ax, ay, bx, by;
+    private final Object owner;
+    private final EdgeKey key;
+
+    private Edge(float ax, float ay, float bx, float by, Object owner) {
+      this.ax = ax;
+      this.ay = ay;
+      this.bx = bx;
+      this.by = by;
+      this.owner = owner;
+      this.key = new EdgeKey(ax, ay, bx, by);
+    }
+  }
+
+  /**
+   * The endpoints of an edge rounded to the weld distance, independent of the direction of the edge
+   */
+  private static final class EdgeKey {
+    private final int x0, y0, x1, y1;
+
+    private EdgeKey(float ax, float ay, float bx, float by) {
+      int qax = Math.round(ax * WELD), qay = Math.round(ay * WELD);
+      int qbx = Math.round(bx * WELD), qby = Math.round(by * WELD);
+      boolean aFirst = qax < qbx || (qax == qbx && qay <= qby);
+      x0 = aFirst ? qax : qbx;
+      y0 = aFirst ? qay : qby;
+      x1 = aFirst ? qbx : qax;
+      y1 = aFirst ? qby : qay;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof EdgeKey k)) return false;
+      return x0 == k.x0 && y0 == k.y0 && x1 == k.x1 && y1 == k.y1;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((x0 * 31 + y0) * 31 + x1) * 31 + y1;
+    }
+  }
+
+  private static final class Change {
+    private final int revision;
+    private final float minX, minY, maxX, maxY;
+
+    private Change(int revision, float minX, float minY, float maxX, float maxY) {
+      this.revision = revision;
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+    }
+  }
+
+  /**
+   * A collider with the edges of its shape at the position they were last built at
+   */
+  private static final class Occluder {
+    private final PolygonCollider collider;
+    private final List<Edge> edges = new ArrayList<>();
+    private boolean dynamic;
+    /**
+     * The absolute points of the shape the edges were built from, as x and y pairs
+     */
+    private float[] builtPoints = new float[0];
+    private float minX, minY, maxX, maxY;
+
+    private Occluder(PolygonCollider collider) {
+      this.collider = collider;
+    }
+
+    private Object owner() {
+      return collider.gameObject;
+    }
+
+    /**
+     * @return whether the shape was moved since the edges were built
+     */
+    private boolean moved() {
+      Vector2f[] points = collider.getShape().getAbsolutePoints();
+      if (points.length == 0 || points[0] == null) return false;
+      if (edges.isEmpty()) return true;
+      // A shape rotated or scaled around its first point only moves the others
+      int count = collider.getShape().vertices();
+      if (builtPoints.length != count * 2) return true;
+      for (int i = 0; i < count; i++)
+        if (points[i].x != builtPoints[i * 2] || points[i].y != builtPoints[i * 2 + 1]) return true;
+      return false;
+    }
+
+    private void build() {
+      edges.clear();
+      Vector2f[] points = collider.getShape().getAbsolutePoints();
+      int count = collider.getShape().vertices();
+      // The absolute points are set with the first update of the collider
+      if (count < 2 || points[0] == null) return;
+      if (builtPoints.length != count * 2) builtPoints = new float[count * 2];
+
+      minX = minY = Float.POSITIVE_INFINITY;
+      maxX = maxY = Float.NEGATIVE_INFINITY;
+      for (int i = 0; i < count; i++) {
+        Vector2f a = points[i];
+        builtPoints[i * 2] = a.x;
+        builtPoints[i * 2 + 1] = a.y;
+        minX = Math.min(minX, a.x);
+        minY = Math.min(minY, a.y);
+        maxX = Math.max(maxX, a.x);
+        maxY = Math.max(maxY, a.y);
+        // A line has a single edge
+        if (count == 2 && i == 1) break;
+        Vector2f b = points[(i + 1) % count];
+        edges.add(new Edge(a.x, a.y, b.x, b.y, owner()));
+      }
+    }
+  }
+}
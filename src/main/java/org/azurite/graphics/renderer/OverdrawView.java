@@ -0,0 +1,164 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.Shader;
+import org.azurite.graphics.Texture;
+import org.azurite.graphics.postprocess.PostProcessQuad;
+import org.azurite.graphics.postprocess.PostProcessing;
+import org.azurite.util.Assets;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Debug view of how often every pixel of the screen is drawn in a frame, to find fill rate hotspots.
+ * <p>
+ * The renderers counted in a frame draw into one framebuffer the size of the screen, with the stencil test
+ * incrementing the stencil value of every fragment that is written. The counts are then shown as a heatmap,
+ * from black for pixels that were not drawn over blue and green to red, and white for {@link #RAMP_SIZE} - 1
+ * or more fragments. Fragments discarded by the shader or rejected by the depth test are not counted.
+ * The count of a pixel saturates at 255.
+ * <p>
+ * The counts are read back every frame for the average and maximum overdraw, which stalls the pipeline.
+ * The view is meant for debugging only, it is toggled with shift and the grave accent key in a scene.
+ *
+ * @see org.azurite.scene.Scene#setOverdrawView(boolean)
+ */
+public class OverdrawView {
+  /**
+   * Heatmap colors of the counts 0, 1, 2 and so on, the last one is used for all higher counts as well
+   */
+  private static final float[][] RAMP = {
+      {0.0f, 0.0f, 0.0f},
+      {0.0f, 0.0f, 0.5f},
+      {0.0f, 0.3f, 1.0f},
+      {0.0f, 0.7f, 0.7f},
+      {0.0f, 0.8f, 0.0f},
+      {0.6f, 0.9f, 0.0f},
+      {1.0f, 0.9f, 0.0f},
+      {1.0f, 0.5f, 0.0f},
+      {1.0f, 0.0f, 0.0f},
+      {1.0f, 1.0f, 1.0f}
+  };
+  public static final int RAMP_SIZE = RAMP.length;
+
+  private Framebuffer target;
+  private Shader shader;
+  private final Vector4f color = new Vector4f();
+  /**
+   * The stencil values read back, grown with the screen
+   */
+  private ByteBuffer counts;
+  private float average = 0;
+  private int max = 0;
+
+  /**
+   * Start counting a frame. Binds the counting framebuffer and leaves the stencil test switched on
+   * until {@link #finish()}.
+   */
+  public void begin() {
+    if (target == null) target = FramebufferPool.acquire(1, FramebufferPool.COLOR_STENCIL);
+    if (shader == null) shader = Assets.getShader("shaders/overdraw.glsl", true);
+    FramebufferPool.fit(target);
+    target.bind();
+    glClearStencil(0);
+    glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
+
+    glEnable(GL_STENCIL_TEST);
+    glStencilMask(0xFF);
+    glStencilFunc(GL_ALWAYS, 0, 0xFF);
+    glStencilOp(GL_KEEP, GL_KEEP, GL_INCR);
+    Framebuffer.unbind();
+  }
+
+  /**
+   * Count the fragments a renderer draws. Its framebuffer is replaced by the counting one while it draws.
+   *
+   * @param renderer the renderer
+   * @param fill     whether the batches of the renderer still have to be filled this frame
+   */
+  public void count(Renderer renderer, boolean fill) {
+    Framebuffer framebuffer = renderer.framebuffer;
+    renderer.framebuffer = target;
+    if (fill) renderer.render();
+    else renderer.draw();
+    renderer.framebuffer = framebuffer;
+  }
+
+  /**
+   * Stop counting, measure the overdraw of the frame and paint the heatmap over the counting framebuffer
+   *
+   * @return the heatmap, to be drawn to the screen
+   */
+  public Texture finish() {
+    target.bind();
+    int pixels = target.getWidth() * target.getHeight();
+    if (counts == null || counts.capacity() < pixels) {
+      if (counts != null) MemoryUtil.memFree(counts);
+      counts = MemoryUtil.memAlloc(pixels);
+    }
+    glPixelStorei(GL_PACK_ALIGNMENT, 1);
+    glReadPixels(0, 0, target.getWidth(), target.getHeight(), GL_STENCIL_INDEX, GL_UNSIGNED_BYTE, counts);
+    glPixelStorei(GL_PACK_ALIGNMENT, 4);
+    long sum = 0;
+    int max = 0;
+    for (int i = 0; i < pixels; i++) {
+      int count = counts.get(i) & 0xFF;
+      sum += count;
+      max = Math.max(max, count);
+    }
+    this.average = (float) sum / pixels;
+    this.max = max;
+
+    // Every count gets its color where the stencil holds it, the last one where it is at least as high
+    glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
+    glDisable(GL_DEPTH_TEST);
+    shader.attach();
+    PostProcessing.prepare();
+    for (int i = 0; i < RAMP_SIZE; i++) {
+      glStencilFunc(i == RAMP_SIZE - 1 ? GL_LEQUAL : GL_EQUAL, i, 0xFF);
+      shader.uploadVec4f("uColor", color.set(RAMP[i][0], RAMP[i][1], RAMP[i][2], 1));
+      glDrawArrays(GL_TRIANGLES, 0, PostProcessQuad.VERTEX_COUNT);
+    }
+    PostProcessing.finish();
+    shader.detach();
+    glDisable(GL_STENCIL_TEST);
+    Framebuffer.unbind();
+    return target.getColorAttachment(0);
+  }
+
+  /**
+   * @return the average number of times a pixel was drawn in the last counted frame
+   */
+  public float getAverage() {
+    return average;
+  }
+
+  /**
+   * @return the highest number of times a single pixel was drawn in the last counted frame, at most 255
+   */
+  public int getMax() {
+    return max;
+  }
+
+  /**
+   * @return a line with the overdraw of the last counted frame, for the profile overlay of the scene
+   */
+  public String report() {
+    return String.format("Overdraw %.2f avg %d max%n", average, max);
+  }
+
+  /**
+   * Give the counting framebuffer back to the pool and free the read back memory
+   */
+  public void clean() {
+    if (target != null) target.release();
+    target = null;
+    if (counts != null) MemoryUtil.memFree(counts);
+    counts = null;
+  }
+}
@@ -1,23 +1,33 @@
 package org.azurite.graphics.renderer;
 
 import org.azurite.graphics.Color;
+import org.azurite.graphics.GLState;
 import org.azurite.graphics.Primitive;
 import org.azurite.graphics.ShaderDatatype;
 import org.azurite.graphics.Texture;
+import org.azurite.graphics.TextureArray;
 import org.azurite.util.Log;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
 
 /**
  * <p>
@@ -58,7 +68,42 @@ import static org.lwjgl.opengl.GL30.*;
  * @see Renderer
  */
 public class RenderBatch implements Comparable<RenderBatch> {
+  /**
+   * Number of regions a {@link BufferStreaming#RING} vertex buffer is split into
+   */
+  public static final int RING_REGIONS = 3;
+  /**
+   * Nanoseconds a single wait for the GPU to release a ring region may block before it is retried
+   */
+  private static final long RING_WAIT_TIMEOUT = 1_000_000_000L;
   private static int num = 0;
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+  /**
+   * Max number of textures a batch can hold. Slot 0 means "no texture" and slot 8 is reserved for the lightmap,
+   * so only slots 1-7 can be used by the batch itself
+   */
+  public static final int MAX_TEXTURES = 7;
+  /**
+   * Texture ids from this value on address a layer of the batch's texture array instead of a texture slot
+   */
+  public static final int TEXTURE_ARRAY_BASE = 8;
+  /**
+   * Texture unit the texture array of a batch is bound to. Unit 8 is taken by the lightmap
+   */
+  public static final int TEXTURE_ARRAY_UNIT = 9;
+  /**
+   * Two dirty slot runs that are at most this many slots apart are uploaded as a single range
+   */
+  private static final int DIRTY_MERGE_GAP = 8;
+  /**
+   * Index buffers shared by all batches, one per primitive. The indices only depend on the primitive,
+   * so every batch can use the same buffer as long as it has enough indices for the batch size
+   */
+  private static final int[] sharedIndexBuffers = new int[Primitive.values().length];
+  /**
+   * Number of primitives the shared index buffers hold indices for
+   */
+  private static final int[] sharedIndexCapacity = new int[Primitive.values().length];
   /**
    * The primitive that this batch draws
    */
@@ -67,10 +112,14 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * Max number of primitives a batch can hold
    */
   protected final int maxBatchSize;
+  /**
+   * Number of vertices pushed per primitive. Usually the primitive's vertex count
+   */
+  protected final int verticesPerPrimitive;
   /**
    * zIndex for this batch. Used for batch ordering
    */
-  private final int zIndex;
+  private int zIndex;
   /**
    * The attributes for the Vertex Array
    */
@@ -84,7 +133,7 @@ public class RenderBatch implements Comparable<RenderBatch> {
    */
   public boolean isFull_Textures;
   /**
-   * How many floats/ints in a single vertex
+   * How many floats/ints in a single vertex. Packed attributes count as one float per four bytes
    */
   protected int vertexCount;
   /**
@@ -100,9 +149,18 @@ public class RenderBatch implements Comparable<RenderBatch> {
    */
   protected List<Texture> textures;
   /**
-   * The data which is uploaded to the GPU
+   * The texture array whose layers are used by this batch, null if there is none
    */
-  protected float[] data;
+  protected TextureArray textureArray;
+  /**
+   * Off-heap staging memory the vertices are written to. It is handed to the GPU as is, without
+   * being copied into native memory first
+   */
+  protected ByteBuffer staging;
+  /**
+   * Float view of the staging memory. The data which is uploaded to the GPU
+   */
+  protected FloatBuffer data;
   /**
    * The internal data offset
    */
@@ -120,9 +178,68 @@ public class RenderBatch implements Comparable<RenderBatch> {
    */
   private int textureIndex;
   /**
-   * Index Buffer (Element Buffer) id
+   * Is this batch holding primitives in stable slots that persist across frames instead of being refilled every frame
    */
-  private int ebo;
+  private boolean retained;
+  /**
+   * Does this batch only hold primitives that cover every texel they draw, see {@link DefaultRenderer#setDepthPrePass(boolean)}
+   */
+  private boolean opaque;
+  /**
+   * Slots that were handed out once and freed again. Reused before the high water mark grows
+   */
+  private int[] freeSlots;
+  private int freeSlotCount;
+  /**
+   * Number of slots that have ever been handed out since the batch was last empty
+   */
+  private int slotHighWater;
+  /**
+   * Number of slots that are currently in use
+   */
+  private int usedSlots;
+  /**
+   * Slots whose data has changed since the last upload
+   */
+  private BitSet dirtySlots;
+  /**
+   * How the vertices are streamed into the vertex buffer
+   */
+  private BufferStreaming streaming = BufferStreaming.SINGLE;
+  /**
+   * The ring region the current frame's vertices were written to
+   */
+  private int ringRegion;
+  /**
+   * Fences placed after the last draw that read from each ring region. 0 if there is none
+   */
+  private long[] ringFences;
+  /**
+   * Was the current frame's data written to the ring, so every draw has to fence the current region
+   */
+  private boolean fencePending;
+  /**
+   * Number of frames this batch has been sitting unused in a renderer's pool
+   */
+  int idleFrames;
+  /**
+   * Number of times the CPU had to wait for the GPU to release a ring region
+   */
+  private long fenceWaits;
+  /**
+   * World space rectangle around everything pushed this frame, if the renderer reports it
+   */
+  private float minX, minY, maxX, maxY;
+  private boolean bounded = false;
+  /**
+   * The shared buffer the vertices of this frame were packed into by the renderer, null if they are in the buffer
+   * of this batch. See {@link Renderer#setMultiDrawIndirect(boolean)}
+   */
+  MultiDrawBuffer packedInto;
+  /**
+   * The first vertex of this batch in the shared buffer
+   */
+  int packedVertex;
 
   /**
    * @param maxBatchSize the maximum number of primitives in a batch
@@ -131,7 +248,19 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param attributes   attributes for the Vertex array
    */
   public RenderBatch(int maxBatchSize, int zIndex, Primitive primitive, ShaderDatatype... attributes) {
+    this(maxBatchSize, zIndex, primitive, primitive.vertexCount, attributes);
+  }
+
+  /**
+   * @param maxBatchSize         the maximum number of primitives in a batch
+   * @param zIndex               the zIndex of the batch. Used to sort the batches in order of which sprites appear above others.
+   * @param primitive            the primitive
+   * @param verticesPerPrimitive number of vertices pushed per primitive, e.g. 1 for instanced batches
+   * @param attributes           attributes for the Vertex array
+   */
+  protected RenderBatch(int maxBatchSize, int zIndex, Primitive primitive, int verticesPerPrimitive, ShaderDatatype... attributes) {
     this.maxBatchSize = maxBatchSize;
+    this.verticesPerPrimitive = verticesPerPrimitive;
     this.zIndex = zIndex;
     this.primitive = primitive;
     this.attributes = attributes;
@@ -142,55 +271,301 @@ public class RenderBatch implements Comparable<RenderBatch> {
     textureIndex = 0;
     textures = new ArrayList<>();
     for (ShaderDatatype t : attributes) {
-      vertexCount += t.count;
       vertexSize += t.size;
     }
-    data = new float[maxBatchSize * primitive.vertexCount * vertexCount];
+    vertexCount = vertexSize / Float.BYTES;
+    staging = BufferUtils.createByteBuffer(maxBatchSize * verticesPerPrimitive * vertexSize);
+    data = staging.asFloatBuffer();
 
-    this.primitiveVertices = new float[vertexCount * primitive.vertexCount];
+    this.primitiveVertices = new float[vertexCount * verticesPerPrimitive];
+  }
+
+  /**
+   * Bind the index buffer shared by all batches of a primitive, making sure it has indices for enough primitives.
+   * Has to be called while the vertex array of the batch is bound.
+   *
+   * @param primitive  the primitive of the batch
+   * @param primitives number of primitives the batch can hold
+   */
+  static void bindSharedIndexBuffer(Primitive primitive, int primitives) {
+    int i = primitive.ordinal();
+    if (sharedIndexBuffers[i] == 0)
+      sharedIndexBuffers[i] = glGenBuffers();
+    GLState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, sharedIndexBuffers[i]);
+
+    if (sharedIndexCapacity[i] < primitives) {
+      // Reallocating keeps the buffer's id, so the vertex arrays of older batches still point to it
+      glBufferData(GL_ELEMENT_ARRAY_BUFFER, generateIndices(primitive, primitives), GL_STATIC_DRAW);
+      sharedIndexCapacity[i] = primitives;
+    }
   }
 
   /**
    * Create the GPU resources.
-   * Generates a vao, a dynamic vbo, and a static buffer of indices.
+   * Generates a vao and a dynamic vbo, and binds the static index buffer shared by all batches.
    */
   public void init() {
     vao = glGenVertexArrays();
-    glBindVertexArray(vao);
+    GLState.bindVertexArray(vao);
     vbo = glGenBuffers();
-    glBindBuffer(GL_ARRAY_BUFFER, vbo);
-    glBufferData(GL_ARRAY_BUFFER, maxBatchSize * primitive.vertexCount * vertexSize, GL_DYNAMIC_DRAW);
-    ebo = glGenBuffers();
-    glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
-    glBufferData(GL_ELEMENT_ARRAY_BUFFER, generateIndices(), GL_STATIC_DRAW);
+    GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+    if (streaming == BufferStreaming.RING) {
+      ringFences = new long[RING_REGIONS];
+      glBufferData(GL_ARRAY_BUFFER, (long) staging.capacity() * RING_REGIONS, GL_STREAM_DRAW);
+    } else {
+      glBufferData(GL_ARRAY_BUFFER, staging.capacity(), streaming == BufferStreaming.ORPHAN ? GL_STREAM_DRAW : GL_DYNAMIC_DRAW);
+    }
+    bindSharedIndexBuffer(primitive, maxBatchSize);
+    initAttributes();
+  }
+
+  /**
+   * Set up the vertex attributes of the vertex array. The vertex array and the vertex buffer are bound.
+   */
+  protected void initAttributes() {
+    pointAttributes(0, 0);
+  }
 
+  /**
+   * Point the attributes of this batch at the currently bound vertex buffer and enable them
+   *
+   * @param firstLocation shader location of the first attribute
+   * @param offset        byte offset of the first vertex in the buffer
+   */
+  protected void pointAttributes(int firstLocation, long offset) {
     int currentOffset = 0;
     for (int i = 0; i < attributes.length; i++) {
       ShaderDatatype attrib = attributes[i];
-      glVertexAttribPointer(i, attrib.count, attrib.openglType, false, vertexSize, currentOffset);
-      glEnableVertexAttribArray(i);
+      glVertexAttribPointer(firstLocation + i, attrib.count, attrib.openglType, attrib.normalized, vertexSize, offset + currentOffset);
+      glEnableVertexAttribArray(firstLocation + i);
       currentOffset += attrib.size;
     }
   }
 
   /**
-   * Get batch ready for submission of data
+   * @return the number of attributes each vertex has
+   */
+  protected int attributeCount() {
+    return attributes.length;
+  }
+
+  /**
+   * Get batch ready for submission of data.
+   * Retained batches keep their data, since only the slots that changed get rewritten.
    */
   public void start() {
+    if (retained) return;
     textureIndex = 0;
     dataOffset = 0;
     isFull_Textures = false;
     isFull = false;
     textures.clear();
+    textureArray = null;
+    bounded = false;
     // No need to reset data array or anything. Stuff will get overridden and correctly handled.
   }
 
   /**
-   * Finish setting batch data. upload to gpu
+   * Grow the bounds of the batch by the world space rectangle of a pushed primitive. A batch whose renderer reports
+   * the bounds of its primitives is skipped by viewports that can not see it, other batches are always drawn.
+   *
+   * @param minX left edge of the rectangle
+   * @param minY top edge of the rectangle
+   * @param maxX right edge of the rectangle
+   * @param maxY bottom edge of the rectangle
+   */
+  public void includeBounds(float minX, float minY, float maxX, float maxY) {
+    if (!bounded) {
+      bounded = true;
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+      return;
+    }
+    this.minX = Math.min(this.minX, minX);
+    this.minY = Math.min(this.minY, minY);
+    this.maxX = Math.max(this.maxX, maxX);
+    this.maxY = Math.max(this.maxY, maxY);
+  }
+
+  /**
+   * Check whether anything pushed this frame can be inside a view
+   *
+   * @param view the view as (minX, minY, maxX, maxY)
+   * @return false if the batch reported its bounds and they lie outside of the view
+   */
+  public boolean overlaps(Vector4f view) {
+    return !bounded || (maxX >= view.x && minX <= view.z && maxY >= view.y && minY <= view.w);
+  }
+
+  /**
+   * Finish setting batch data. upload to gpu.
+   * Only the part of the staging memory that was written this frame is uploaded.
+   * Retained batches only upload the ranges of slots that were touched since the last upload.
    */
   public void finish() {
-    glBindBuffer(GL_ARRAY_BUFFER, vbo);
-    glBufferSubData(GL_ARRAY_BUFFER, 0, data);
+    GLState.bindBuffer(GL_ARRAY_BUFFER, vbo);
+    if (!retained) {
+      if (dataOffset > 0) {
+        switch (streaming) {
+          case SINGLE:
+            data.limit(dataOffset);
+            glBufferSubData(GL_ARRAY_BUFFER, 0, data);
+            data.clear();
+            break;
+          case ORPHAN:
+            // Detach the old storage from the buffer. The GPU keeps reading it while we fill the new one
+            glBufferData(GL_ARRAY_BUFFER, staging.capacity(), GL_STREAM_DRAW);
+            data.limit(dataOffset);
+            glBufferSubData(GL_ARRAY_BUFFER, 0, data);
+            data.clear();
+            break;
+          case RING:
+            uploadToRing();
+            break;
+        }
+      }
+      return;
+    }
+
+    int slotSize = primitiveVertices.length;
+    int start = dirtySlots.nextSetBit(0);
+    while (start != -1) {
+      // Grow the run over dirty slots and over small clean gaps, uploading one range is cheaper than several calls
+      int end = dirtySlots.nextClearBit(start);
+      int next = dirtySlots.nextSetBit(end);
+      while (next != -1 && next - end <= DIRTY_MERGE_GAP) {
+        end = dirtySlots.nextClearBit(next);
+        next = dirtySlots.nextSetBit(end);
+      }
+
+      data.limit(end * slotSize).position(start * slotSize);
+      glBufferSubData(GL_ARRAY_BUFFER, (long) start * slotSize * Float.BYTES, data);
+      data.clear();
+      start = next;
+    }
+    dirtySlots.clear();
+  }
+
+  /**
+   * Write the staged vertices into the next region of the ring. The region is mapped unsynchronized,
+   * its fence already tells when the GPU is done with it.
+   */
+  private void uploadToRing() {
+    ringRegion = (ringRegion + 1) % RING_REGIONS;
+    long fence = ringFences[ringRegion];
+    if (fence != 0) {
+      int status = glClientWaitSync(fence, 0, 0);
+      if (status == GL_TIMEOUT_EXPIRED) {
+        // The GPU is still drawing from this region, we have no choice but to wait.
+        // The fence may not have reached the GPU yet, so the first wait flushes
+        fenceWaits++;
+        int flags = GL_SYNC_FLUSH_COMMANDS_BIT;
+        do {
+          status = glClientWaitSync(fence, flags, RING_WAIT_TIMEOUT);
+          flags = 0;
+        } while (status == GL_TIMEOUT_EXPIRED);
+      }
+      if (status == GL_WAIT_FAILED) {
+        Log.logger.warn("waiting for a ring buffer region failed, finishing all GPU work instead", 1);
+        glFinish();
+      }
+      glDeleteSync(fence);
+      ringFences[ringRegion] = 0;
+    }
+
+    long bytes = (long) dataOffset * Float.BYTES;
+    long address = nglMapBufferRange(GL_ARRAY_BUFFER, (long) ringRegion * staging.capacity(), bytes,
+        GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_RANGE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+    MemoryUtil.memCopy(MemoryUtil.memAddress(staging), address, bytes);
+    glUnmapBuffer(GL_ARRAY_BUFFER);
+    fencePending = true;
+  }
+
+  /**
+   * Draw the batch. Has to be called between {@link #bind()} and {@link #unbind()}
+   */
+  public void draw() {
+    int count = getVertexCount();
+    if (count == 0) return;
+
+    drawElements(0, count);
+    fenceRegion();
+  }
+
+  /**
+   * Draw some of the pushed primitives, e.g. when they are drawn with different state.
+   * Has to be called between {@link #bind()} and {@link #unbind()}
+   *
+   * @param first index of the first primitive
+   * @param count number of primitives
+   */
+  public void drawRange(int first, int count) {
+    if (count <= 0) return;
+    drawElements(first * primitive.elementCount, count * primitive.elementCount);
+    fenceRegion();
+  }
+
+  /**
+   * Fence the region of the ring the batch was drawn from. A region drawn from several times gets a new fence
+   * after every draw, so it is only written again once the last draw finished.
+   */
+  private void fenceRegion() {
+    if (!fencePending) return;
+    if (ringFences[ringRegion] != 0) glDeleteSync(ringFences[ringRegion]);
+    ringFences[ringRegion] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+  }
+
+  /**
+   * Issue the draw call for this batch
+   *
+   * @param first the index of the first element to be drawn
+   * @param count the number of elements to be drawn
+   */
+  protected void drawElements(int first, int count) {
+    long offset = streamOffset();
+    long indices = (long) first * Integer.BYTES;
+    if (packedInto != null)
+      glDrawElementsBaseVertex(primitive.openglPrimitive, count, GL_UNSIGNED_INT, indices, packedVertex);
+    else if (offset != 0)
+      glDrawElementsBaseVertex(primitive.openglPrimitive, count, GL_UNSIGNED_INT, indices, (int) (offset / vertexSize));
+    else
+      glDrawElements(primitive.openglPrimitive, count, GL_UNSIGNED_INT, indices);
+  }
+
+  /**
+   * @return byte offset in the vertex buffer of the vertices written this frame
+   */
+  protected long streamOffset() {
+    if (streaming == BufferStreaming.RING && !retained)
+      return (long) ringRegion * staging.capacity();
+    return 0;
+  }
+
+  /**
+   * Set how this batch streams its vertices into the vertex buffer. Has to be called before {@link #init()}.
+   * Retained batches only upload small dirty ranges and always use {@link BufferStreaming#SINGLE}.
+   *
+   * @param streaming the streaming strategy
+   */
+  public void setStreaming(BufferStreaming streaming) {
+    if (streaming == BufferStreaming.RING && !GL.getCapabilities().OpenGL32 && !GL.getCapabilities().GL_ARB_sync) {
+      Log.logger.warn("sync objects are not supported, falling back to buffer orphaning");
+      streaming = BufferStreaming.ORPHAN;
+    }
+    this.streaming = streaming;
+  }
+
+  public BufferStreaming getStreaming() {
+    return streaming;
+  }
+
+  /**
+   * @return the number of times the CPU had to wait for the GPU to release a ring region
+   */
+  public long getFenceWaits() {
+    return fenceWaits;
   }
 
   /**
@@ -208,7 +583,7 @@ public class RenderBatch implements Comparable<RenderBatch> {
       textures.add(texture);
       texIndex = ++textureIndex;
 
-      if (textures.size() >= 8) {
+      if (textures.size() >= MAX_TEXTURES) {
         isFull_Textures = true;
         isFull = false;
       }
@@ -216,31 +591,58 @@ public class RenderBatch implements Comparable<RenderBatch> {
     return texIndex;
   }
 
+  /**
+   * Add a texture to this batch as a layer of a texture array. A batch can use a single texture array
+   * next to its texture slots, see {@link #canHoldTextureArray(TextureArray)}.
+   *
+   * @param array   the texture array holding the texture
+   * @param texture the texture to be rendered
+   * @return the texture id to be set as texture attribute, or -1 if the texture is not in the array
+   */
+  public int addTextureLayer(TextureArray array, Texture texture) {
+    assert canHoldTextureArray(array) : "[ERROR] Batch already uses another texture array";
+    int layer = array.getLayer(texture);
+    if (layer < 0) return -1;
+    textureArray = array;
+    return TEXTURE_ARRAY_BASE + layer;
+  }
+
+  /**
+   * @param array the texture array
+   * @return whether the batch uses no texture array yet or already uses this one
+   */
+  public boolean canHoldTextureArray(TextureArray array) {
+    return textureArray == null || textureArray == array;
+  }
+
   /**
    * Binds the vertex array and all the textures to the required slots
    */
   public void bind() {
-    glBindVertexArray(vao);
+    GLState.bindVertexArray(packedInto != null ? packedInto.getVertexArray() : vao);
     for (int i = 0; i < textures.size(); i++)
       textures.get(i).bindToSlot(i + 1);
+    if (textureArray != null)
+      textureArray.bindToSlot(TEXTURE_ARRAY_UNIT);
   }
 
   /**
-   * @USELESS Unbinds the vertex array and all the textures
+   * Leaves the vertex array and the textures bound, so the next batch only binds what differs.
+   * Everything binding vertex arrays and textures goes through {@link GLState}, so nothing relies on them being unbound.
    */
   public void unbind() {
-    for (Texture texture : textures)
-      texture.unbind();
-    glBindVertexArray(0);
   }
 
   /**
-   * Delete the vertex array, vertex buffer and index buffer (element buffer)
+   * Delete the vertex array and vertex buffer. The index buffer is shared and stays alive
    */
   public void delete() {
-    glDeleteBuffers(vbo);
-    glDeleteBuffers(ebo);
-    glDeleteVertexArrays(vao);
+    if (ringFences != null) {
+      for (long fence : ringFences)
+        if (fence != 0) glDeleteSync(fence);
+    }
+    GLState.deleteBuffer(vbo);
+    GLState.deleteVertexArray(vao);
   }
 
   /**
@@ -249,20 +651,25 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @return the number of vertices to be drawn
    */
   public int getVertexCount() {
+    if (retained)
+      return slotHighWater * primitive.elementCount;
+
     // Safety check
     if (dataOffset % vertexCount != 0)
       Log.logger.warn("a renderer seems to not have the correct amount of data!!!", 2);
-    return (dataOffset * primitive.elementCount) / (vertexCount * primitive.vertexCount);
+    return (dataOffset * primitive.elementCount) / (vertexCount * verticesPerPrimitive);
   }
 
   /**
    * Create the indices and load them up into an IntBuffer
    *
+   * @param primitive  the primitive to create indices for
+   * @param primitives number of primitives to create indices for
    * @return the buffer of indices
    */
-  private IntBuffer generateIndices() {
-    IntBuffer elementBuffer = BufferUtils.createIntBuffer(primitive.elementCount * maxBatchSize);
-    for (int i = 0; i < maxBatchSize; i++) {
+  private static IntBuffer generateIndices(Primitive primitive, int primitives) {
+    IntBuffer elementBuffer = BufferUtils.createIntBuffer(primitive.elementCount * primitives);
+    for (int i = 0; i < primitives; i++) {
       primitive.elementCreation.accept(elementBuffer, i);
     }
     elementBuffer.flip();
@@ -273,17 +680,148 @@ public class RenderBatch implements Comparable<RenderBatch> {
     return this.textures.contains(tex);
   }
 
+  /**
+   * Check if a primitive with this texture can be added to the batch without exceeding the texture slots
+   *
+   * @param tex the texture, may be null for untextured primitives
+   * @return whether the texture is already in the batch or there is still a free texture slot
+   */
+  public boolean canHoldTexture(Texture tex) {
+    return tex == null || textures.contains(tex) || textures.size() < MAX_TEXTURES;
+  }
+
+  // ----- Retained slots -----
+
+  /**
+   * Make this batch retained. A retained batch is not cleared every frame, instead every primitive owns a
+   * stable slot which only has to be rewritten when the primitive changes. Has to be called before {@link #init()}.
+   *
+   * @param retained whether the batch keeps its data across frames
+   */
+  public void setRetained(boolean retained) {
+    this.retained = retained;
+    if (retained) {
+      streaming = BufferStreaming.SINGLE;
+      freeSlots = new int[maxBatchSize];
+      dirtySlots = new BitSet(maxBatchSize);
+    }
+  }
+
+  public boolean isRetained() {
+    return retained;
+  }
+
+  /**
+   * @return whether the vertices of this batch can be drawn from a buffer shared with other batches,
+   * with the first vertex of the batch as base vertex
+   */
+  boolean isPackable() {
+    return !retained;
+  }
+
+  /**
+   * @param other another batch
+   * @return whether the vertices of both batches have the same primitive and attributes
+   */
+  boolean hasLayoutOf(RenderBatch other) {
+    return primitive == other.primitive && verticesPerPrimitive == other.verticesPerPrimitive
+        && Arrays.equals(attributes, other.attributes);
+  }
+
+  /**
+   * Mark this batch as holding only opaque primitives, which may be drawn front to back without blending
+   *
+   * @param opaque whether the primitives of this batch are opaque
+   */
+  public void setOpaque(boolean opaque) {
+    this.opaque = opaque;
+  }
+
+  public boolean isOpaque() {
+    return opaque;
+  }
+
+  /**
+   * @return whether another slot can be allocated in this retained batch
+   */
+  public boolean hasFreeSlot() {
+    return usedSlots < maxBatchSize;
+  }
+
+  /**
+   * Allocate a slot for one primitive. Previously freed slots are reused before new ones are handed out.
+   *
+   * @return the slot index or -1 if the batch is full
+   */
+  public int allocateSlot() {
+    if (!hasFreeSlot()) return -1;
+
+    int slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotHighWater++;
+    usedSlots++;
+    isFull = !hasFreeSlot();
+    return slot;
+  }
+
+  /**
+   * Release a slot. The primitive in the slot is collapsed so that it no longer draws anything.
+   * Once every slot is free the batch forgets its textures, so it can be reused for any texture.
+   *
+   * @param slot the slot obtained from {@link #allocateSlot()}
+   */
+  public void freeSlot(int slot) {
+    int slotSize = primitiveVertices.length;
+    for (int i = slot * slotSize; i < (slot + 1) * slotSize; i++)
+      data.put(i, 0);
+    dirtySlots.set(slot);
+
+    usedSlots--;
+    isFull = false;
+    if (usedSlots == 0) {
+      // Nothing is left, just stop drawing the old range instead of uploading zeroes
+      freeSlotCount = 0;
+      slotHighWater = 0;
+      dirtySlots.clear();
+      textures.clear();
+      textureIndex = 0;
+      isFull_Textures = false;
+      textureArray = null;
+    } else {
+      freeSlots[freeSlotCount++] = slot;
+    }
+  }
+
+  /**
+   * Move the write position to the start of a slot. The following pushes overwrite that slot's primitive
+   * and the slot gets uploaded at the next {@link #finish()}.
+   *
+   * @param slot the slot obtained from {@link #allocateSlot()}
+   */
+  public void seekSlot(int slot) {
+    dataOffset = slot * primitiveVertices.length;
+    dirtySlots.set(slot);
+  }
+
   public int zIndex() {
     return zIndex;
   }
 
+  /**
+   * Move a pooled batch to another zIndex before reusing it. The batch must not be in an ordered list while it changes.
+   *
+   * @param zIndex the new zIndex
+   */
+  void setZIndex(int zIndex) {
+    this.zIndex = zIndex;
+  }
+
   @Override
   public int compareTo(RenderBatch a) {
     return Integer.compare(this.zIndex, a.zIndex);
   }
 
   private void checkFullness() {
-    if (dataOffset >= data.length) {
+    // Retained batches track fullness by their slots
+    if (!retained && dataOffset >= data.capacity()) {
       isFull = true;
       isFull_Textures = false;
     }
@@ -295,7 +833,7 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param f the value
    */
   public void pushFloat(float f) {
-    data[dataOffset++] = f;
+    data.put(dataOffset++, f);
     checkFullness();
   }
 
@@ -305,7 +843,7 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param i the value
    */
   public void pushInt(int i) {
-    data[dataOffset++] = i;
+    data.put(dataOffset++, i);
     checkFullness();
   }
 
@@ -316,8 +854,8 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param y y value
    */
   public void pushVec2(float x, float y) {
-    data[dataOffset++] = x;
-    data[dataOffset++] = y;
+    data.put(dataOffset++, x);
+    data.put(dataOffset++, y);
     checkFullness();
   }
 
@@ -327,8 +865,8 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param v the 2d vector
    */
   public void pushVec2(Vector2f v) {
-    data[dataOffset++] = v.x;
-    data[dataOffset++] = v.y;
+    data.put(dataOffset++, v.x);
+    data.put(dataOffset++, v.y);
     checkFullness();
   }
 
@@ -340,9 +878,9 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param z z value
    */
   public void pushVec3(float x, float y, float z) {
-    data[dataOffset++] = x;
-    data[dataOffset++] = y;
-    data[dataOffset++] = z;
+    data.put(dataOffset++, x);
+    data.put(dataOffset++, y);
+    data.put(dataOffset++, z);
     checkFullness();
   }
 
@@ -352,9 +890,9 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param v the 3d vector
    */
   public void pushVec3(Vector3f v) {
-    data[dataOffset++] = v.x;
-    data[dataOffset++] = v.y;
-    data[dataOffset++] = v.z;
+    data.put(dataOffset++, v.x);
+    data.put(dataOffset++, v.y);
+    data.put(dataOffset++, v.z);
     checkFullness();
   }
 
@@ -367,10 +905,10 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param w w value
    */
   public void pushVec4(float x, float y, float z, float w) {
-    data[dataOffset++] = x;
-    data[dataOffset++] = y;
-    data[dataOffset++] = z;
-    data[dataOffset++] = w;
+    data.put(dataOffset++, x);
+    data.put(dataOffset++, y);
+    data.put(dataOffset++, z);
+    data.put(dataOffset++, w);
     checkFullness();
   }
 
@@ -380,10 +918,49 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param v the 4d vector
    */
   public void pushVec4(Vector4f v) {
-    data[dataOffset++] = v.x;
-    data[dataOffset++] = v.y;
-    data[dataOffset++] = v.z;
-    data[dataOffset++] = v.w;
+    data.put(dataOffset++, v.x);
+    data.put(dataOffset++, v.y);
+    data.put(dataOffset++, v.z);
+    data.put(dataOffset++, v.w);
+    checkFullness();
+  }
+
+  /**
+   * Push a color packed as 0xAABBGGRR for a {@link ShaderDatatype#UBYTE4_NORM} attribute.
+   * Takes the space of one float.
+   *
+   * @param abgr the packed color
+   * @see Color#pack(float, float, float, float)
+   */
+  public void pushPackedColor(int abgr) {
+    putPackedColor(dataOffset++, abgr);
+    checkFullness();
+  }
+
+  /**
+   * Push two values from 0-1 for a {@link ShaderDatatype#USHORT2_NORM} attribute, e.g. texture coordinates.
+   * Values outside of the range are clamped. Takes the space of one float.
+   *
+   * @param x x value
+   * @param y y value
+   */
+  public void pushPackedVec2(float x, float y) {
+    putPackedVec2(dataOffset++, x, y);
+    checkFullness();
+  }
+
+  private static short toUnsignedShort(float v) {
+    return (short) Math.round(Math.min(Math.max(v, 0), 1) * 0xFFFF);
+  }
+
+  /**
+   * Push a value from 0-255 for a {@link ShaderDatatype#UBYTE_PADDED} attribute, e.g. a texture index.
+   * Takes the space of one float.
+   *
+   * @param b the value
+   */
+  public void pushPaddedByte(int b) {
+    putPaddedByte(dataOffset++, b);
     checkFullness();
   }
 
@@ -393,11 +970,10 @@ public class RenderBatch implements Comparable<RenderBatch> {
    * @param c the color
    */
   public void pushColor(Color c) {
-    Vector4f v = c.toNormalizedVec4f();
-    data[dataOffset++] = v.x;
-    data[dataOffset++] = v.y;
-    data[dataOffset++] = v.z;
-    data[dataOffset++] = v.w;
+    data.put(dataOffset++, c.r / 255f);
+    data.put(dataOffset++, c.g / 255f);
+    data.put(dataOffset++, c.b / 255f);
+    data.put(dataOffset++, c.a / 255f);
     checkFullness();
   }
 
@@ -409,4 +985,110 @@ public class RenderBatch implements Comparable<RenderBatch> {
 //        vertexCount++;
 //        checkFullness();
 //    }
+
+  // ----- Reserved writes -----
+
+  /**
+   * Reserve space for the following values without writing them yet. The space is filled with the put methods,
+   * which do not move the write position and may be called from other threads for distinct ranges.
+   *
+   * @param floats number of floats (or four byte values) to reserve
+   * @return the offset of the reserved range
+   */
+  public int reserve(int floats) {
+    int offset = dataOffset;
+    dataOffset += floats;
+    checkFullness();
+    return offset;
+  }
+
+  /**
+   * @param floats number of floats (or four byte values)
+   * @return whether that many can still be reserved without overflowing the batch
+   */
+  public boolean hasRoom(int floats) {
+    return dataOffset + floats <= data.capacity();
+  }
+
+  /**
+   * @return the number of floats (or four byte values) of one primitive
+   */
+  public int getPrimitiveSize() {
+    return primitiveVertices.length;
+  }
+
+  /**
+   * Write a float at an offset
+   *
+   * @param at the offset in floats
+   * @param f  the value
+   */
+  public void putFloat(int at, float f) {
+    data.put(at, f);
+  }
+
+  /**
+   * Write two floats at an offset
+   *
+   * @param at the offset in floats
+   * @param x  x value
+   * @param y  y value
+   */
+  public void putVec2(int at, float x, float y) {
+    data.put(at, x);
+    data.put(at + 1, y);
+  }
+
+  /**
+   * Write four floats at an offset
+   *
+   * @param at the offset in floats
+   * @param v  the vector
+   */
+  public void putVec4(int at, Vector4f v) {
+    data.put(at, v.x);
+    data.put(at + 1, v.y);
+    data.put(at + 2, v.z);
+    data.put(at + 3, v.w);
+  }
+
+  /**
+   * Write a packed color at an offset
+   *
+   * @param at   the offset in floats
+   * @param abgr the color packed as 0xAABBGGRR
+   * @see #pushPackedColor(int)
+   */
+  public void putPackedColor(int at, int abgr) {
+    // The attribute reads the bytes as r, g, b, a in memory order
+    staging.putInt(at * Float.BYTES, LITTLE_ENDIAN ? abgr : Integer.reverseBytes(abgr));
+  }
+
+  /**
+   * Write two values from 0-1 as normalized shorts at an offset
+   *
+   * @param at the offset in floats
+   * @param x  x value
+   * @param y  y value
+   * @see #pushPackedVec2(float, float)
+   */
+  public void putPackedVec2(int at, float x, float y) {
+    int offset = at * Float.BYTES;
+    staging.putShort(offset, toUnsignedShort(x));
+    staging.putShort(offset + Short.BYTES, toUnsignedShort(y));
+  }
+
+  /**
+   * Write a padded byte at an offset
+   *
+   * @param at the offset in floats
+   * @param b  the value from 0-255
+   * @see #pushPaddedByte(int)
+   */
+  public void putPaddedByte(int at, int b) {
+    assert b >= 0 && b <= 0xFF : "[ERROR] Value does not fit into a byte: " + b;
+    int offset = at * Float.BYTES;
+    staging.putInt(offset, 0);
+    staging.put(offset, (byte) b);
+  }
 }
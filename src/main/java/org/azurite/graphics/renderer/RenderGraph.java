@@ -0,0 +1,485 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.Texture;
+import org.azurite.util.Log;
+import org.azurite.util.specs.FramebufferSpec;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes the rendering of a frame as a list of passes, each declaring the resources it reads and writes.
+ * Passes are executed in the order they are added, so a pass has to be added after the passes producing its inputs.
+ * <p>
+ * Before the first frame, and whenever passes are added, the graph is compiled:
+ * <ul>
+ *     <li>A pass that only copies a transient resource to an imported one, declared with {@link Pass#forwards(Resource, Resource)},
+ *     is removed and the producers of the transient resource render into the imported one directly.</li>
+ *     <li>Passes whose results are never read by a pass that writes an imported resource are culled,
+ *     unless they are marked with {@link Pass#sideEffects()}.</li>
+ *     <li>Transient resources whose lifetimes do not overlap share a framebuffer, so a chain of effects
+ *     needs far fewer full size framebuffers than it has steps.</li>
+ * </ul>
+ * Framebuffers of transient resources are taken from the {@link FramebufferPool} on the first frame that uses them
+ * and given back when the graph changes or is cleaned.
+ */
+public class RenderGraph {
+  private final List<Pass> passes = new ArrayList<>();
+  private final List<Resource> resources = new ArrayList<>();
+  /**
+   * Size and framebuffer of every physical slot transient resources are assigned to
+   */
+  private final List<Size> slotSizes = new ArrayList<>();
+  private final List<Framebuffer> slotFramebuffers = new ArrayList<>();
+  private boolean compiled = false;
+
+  /**
+   * Register a framebuffer owned by someone else, like the default framebuffer. Imported resources are the
+   * outputs of the graph, every pass contributing to them is kept.
+   *
+   * @param name        name of the resource, for debugging
+   * @param framebuffer the framebuffer
+   * @return the resource
+   */
+  public Resource importFramebuffer(String name, Framebuffer framebuffer) {
+    Resource resource = new Resource(name, null, framebuffer);
+    resources.add(resource);
+    compiled = false;
+    return resource;
+  }
+
+  /**
+   * Declare a resource that only lives during the frame. Its framebuffer is provided by the graph and may be
+   * shared with other transient resources of the same size that are not in use at the same time.
+   *
+   * @param name name of the resource, for debugging
+   * @param size size of the framebuffer
+   * @return the resource
+   */
+  public Resource createTransient(String name, Size size) {
+    Resource resource = new Resource(name, size, null);
+    resources.add(resource);
+    compiled = false;
+    return resource;
+  }
+
+  /**
+   * Add a pass after all passes added so far
+   *
+   * @param name name of the pass, for debugging
+   * @return the pass, to declare its resources and what it does
+   */
+  public Pass addPass(String name) {
+    Pass pass = new Pass(name);
+    passes.add(pass);
+    compiled = false;
+    return pass;
+  }
+
+  /**
+   * Let a renderer draw into the framebuffer of a resource. The framebuffer the renderer created for itself is
+   * deleted the first time it is replaced, unless it belongs to the graph.
+   *
+   * @param renderer the renderer
+   * @param target   the resource the renderer draws into
+   */
+  public void target(Renderer renderer, Resource target) {
+    Framebuffer framebuffer = target.getFramebuffer();
+    if (renderer.framebuffer == framebuffer) return;
+    if (renderer.framebuffer != null && !owns(renderer.framebuffer)) renderer.framebuffer.release();
+    renderer.framebuffer = framebuffer;
+  }
+
+  private boolean owns(Framebuffer framebuffer) {
+    if (slotFramebuffers.contains(framebuffer)) return true;
+    for (Resource r : resources)
+      if (r.imported == framebuffer) return true;
+    return false;
+  }
+
+  /**
+   * Remove forwarding passes, cull unused passes and assign the transient resources to framebuffers.
+   * Called by {@link #execute()} if the graph changed.
+   */
+  public void compile() {
+    for (Pass p : passes) p.culled = false;
+    for (Resource r : resources) {
+      r.aliasOf = null;
+      r.slot = -1;
+      r.first = Integer.MAX_VALUE;
+      r.last = -1;
+    }
+
+    validate();
+    removeForwards();
+    cull();
+    assignSlots();
+    compiled = true;
+  }
+
+  /**
+   * Warn about passes reading resources no earlier pass writes
+   */
+  private void validate() {
+    Set<Resource> written = new HashSet<>();
+    for (Pass p : passes) {
+      for (Resource r : p.reads) {
+        if (r.isTransient() && !written.contains(r))
+          Log.logger.warn("render pass " + p.name + " reads " + r.name + " before any pass writes it", 1);
+      }
+      written.addAll(p.writes);
+    }
+  }
+
+  /**
+   * A forward copies a transient resource into an imported one. If nothing else reads the transient resource,
+   * its producers can write to the imported resource directly and the copy is not needed.
+   */
+  private void removeForwards() {
+    for (Pass p : passes) {
+      if (p.forwardFrom == null || !p.forwardFrom.isTransient() || p.forwardTo.isTransient()) continue;
+      boolean otherReaders = false;
+      for (Pass other : passes)
+        if (other != p && other.reads.contains(p.forwardFrom)) otherReaders = true;
+      if (otherReaders) continue;
+
+      p.forwardFrom.aliasOf = p.forwardTo;
+      p.culled = true;
+    }
+  }
+
+  /**
+   * Walk the passes backwards, keeping those whose writes are needed by the outputs or by a kept pass
+   */
+  private void cull() {
+    Set<Resource> needed = new HashSet<>();
+    for (Resource r : resources)
+      if (!r.isTransient()) needed.add(r);
+
+    for (int i = passes.size() - 1; i >= 0; i--) {
+      Pass p = passes.get(i);
+      if (p.culled) continue;
+
+      boolean alive = p.sideEffects;
+      for (Resource r : p.writes)
+        if (needed.contains(r.resolve())) alive = true;
+
+      if (!alive) {
+        p.culled = true;
+        continue;
+      }
+      for (Resource r : p.reads) needed.add(r.resolve());
+    }
+  }
+
+  /**
+   * Give every transient resource a slot, reusing slots of the same size whose resource is no longer in use
+   */
+  private void assignSlots() {
+    List<Resource> used = new ArrayList<>();
+    for (int i = 0; i < passes.size(); i++) {
+      Pass p = passes.get(i);
+      if (p.culled) continue;
+      touch(p.reads, i, used);
+      touch(p.writes, i, used);
+    }
+    // First use decides the order slots are handed out in
+    used.sort((a, b) -> Integer.compare(a.first, b.first));
+
+    List<Size> sizes = new ArrayList<>();
+    List<Integer> busyUntil = new ArrayList<>();
+    for (Resource r : used) {
+      int slot = -1;
+      for (int s = 0; s < sizes.size() && slot == -1; s++)
+        if (sizes.get(s) == r.size && busyUntil.get(s) < r.first) slot = s;
+
+      if (slot == -1) {
+        slot = sizes.size();
+        sizes.add(r.size);
+        busyUntil.add(r.last);
+      } else {
+        busyUntil.set(slot, r.last);
+      }
+      r.slot = slot;
+    }
+
+    // Keep the framebuffers of slots that still have the same size
+    for (int s = 0; s < slotSizes.size(); s++) {
+      if (s >= sizes.size() || sizes.get(s) != slotSizes.get(s)) {
+        if (slotFramebuffers.get(s) != null) slotFramebuffers.get(s).release();
+        slotFramebuffers.set(s, null);
+      }
+    }
+    while (slotFramebuffers.size() > sizes.size()) slotFramebuffers.remove(slotFramebuffers.size() - 1);
+    while (slotFramebuffers.size() < sizes.size()) slotFramebuffers.add(null);
+    slotSizes.clear();
+    slotSizes.addAll(sizes);
+  }
+
+  private static void touch(List<Resource> list, int pass, List<Resource> used) {
+    for (Resource r : list) {
+      r = r.resolve();
+      if (!r.isTransient()) continue;
+      if (r.last == -1) used.add(r);
+      r.first = Math.min(r.first, pass);
+      r.last = Math.max(r.last, pass);
+    }
+  }
+
+  /**
+   * Run all passes that were not culled, compiling the graph first if it changed
+   */
+  public void execute() {
+    if (!compiled) compile();
+    for (Pass p : passes) {
+      if (!p.culled && p.execute != null) p.execute.run();
+    }
+  }
+
+  /**
+   * @return the number of passes that are executed every frame
+   */
+  public int getExecutedPassCount() {
+    if (!compiled) compile();
+    int count = 0;
+    for (Pass p : passes)
+      if (!p.culled) count++;
+    return count;
+  }
+
+  /**
+   * @return the number of framebuffers the transient resources are spread over
+   */
+  public int getFramebufferCount() {
+    if (!compiled) compile();
+    return slotSizes.size();
+  }
+
+  /**
+   * Give the framebuffers of the graph back to the pool
+   */
+  public void clean() {
+    for (Framebuffer f : slotFramebuffers)
+      if (f != null) f.release();
+    slotFramebuffers.replaceAll(f -> null);
+  }
+
+  /**
+   * The size of the framebuffer of a transient resource
+   */
+  public enum Size {
+    SCREEN(1, FramebufferPool.COLOR, false),
+    SCREEN_STENCIL(1, FramebufferPool.COLOR_STENCIL, false),
+    /**
+     * The screen scaled by {@link org.azurite.graphics.DynamicResolution}, for the world
+     */
+    SCENE(1, FramebufferPool.COLOR, true),
+    SCENE_STENCIL(1, FramebufferPool.COLOR_STENCIL, true),
+    HALF_SCREEN(2, FramebufferPool.COLOR, false),
+    QUARTER_SCREEN(4, FramebufferPool.COLOR, false),
+    EIGHTH_SCREEN(8, FramebufferPool.COLOR, false),
+    SIXTEENTH_SCREEN(16, FramebufferPool.COLOR, false),
+    THIRTY_SECOND_SCREEN(32, FramebufferPool.COLOR, false),
+    SIXTY_FOURTH_SCREEN(64, FramebufferPool.COLOR, false);
+
+    /**
+     * Width and height of the screen are divided by this
+     */
+    public final int divisor;
+    /**
+     * Attachments of the framebuffer
+     */
+    public final FramebufferSpec spec;
+    /**
+     * Whether the width and height follow the dynamic resolution scale
+     */
+    public final boolean scaled;
+
+    Size(int divisor, FramebufferSpec spec, boolean scaled) {
+      this.divisor = divisor;
+      this.spec = spec;
+      this.scaled = scaled;
+    }
+
+    /**
+     * Get the size of a color framebuffer that is the screen divided by a power of two
+     *
+     * @param divisor the number the screen size is divided by
+     * @return the size
+     */
+    public static Size scaled(int divisor) {
+      for (Size s : values())
+        if (s.divisor == divisor && s.spec == FramebufferPool.COLOR && !s.scaled) return s;
+      throw new IllegalArgumentException("no framebuffer size for the screen divided by " + divisor);
+    }
+  }
+
+  /**
+   * A framebuffer passes read from or render into
+   */
+  public class Resource {
+    private final String name;
+    /**
+     * Size of a transient resource, null if the resource is imported
+     */
+    private final Size size;
+    private final Framebuffer imported;
+    /**
+     * Resource this one was merged into by removing a forwarding pass
+     */
+    private Resource aliasOf;
+    private int slot = -1;
+    /**
+     * Indices of the first and last pass using the resource
+     */
+    private int first, last;
+
+    private Resource(String name, Size size, Framebuffer imported) {
+      this.name = name;
+      this.size = size;
+      this.imported = imported;
+    }
+
+    private Resource resolve() {
+      return aliasOf == null ? this : aliasOf.resolve();
+    }
+
+    public boolean isTransient() {
+      return size != null;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Get the framebuffer backing this resource this frame. Only valid while the graph is executing.
+     *
+     * @return the framebuffer
+     */
+    public Framebuffer getFramebuffer() {
+      Resource r = resolve();
+      if (!r.isTransient()) return r.imported;
+      if (r.slot == -1) return null;
+
+      Framebuffer framebuffer = slotFramebuffers.get(r.slot);
+      if (framebuffer == null) {
+        framebuffer = FramebufferPool.acquire(r.size.divisor, r.size.spec, r.size.scaled);
+        slotFramebuffers.set(r.slot, framebuffer);
+      } else {
+        FramebufferPool.fit(framebuffer);
+      }
+      return framebuffer;
+    }
+
+    /**
+     * @return the color texture of the framebuffer backing this resource
+     */
+    public Texture getTexture() {
+      return getFramebuffer().getColorAttachment(0);
+    }
+  }
+
+  /**
+   * A step of the frame, e.g. a renderer or a post processing step
+   */
+  public class Pass {
+    private final String name;
+    private final List<Resource> reads = new ArrayList<>();
+    private final List<Resource> writes = new ArrayList<>();
+    private boolean sideEffects = false;
+    private Resource forwardFrom, forwardTo;
+    private Runnable execute;
+    private boolean culled = false;
+
+    private Pass(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @param read resources the pass samples from
+     * @return this pass
+     */
+    public Pass reads(Resource... read) {
+      reads.addAll(List.of(read));
+      compiled = false;
+      return this;
+    }
+
+    /**
+     * @param written resources the pass renders into
+     * @return this pass
+     */
+    public Pass writes(Resource... written) {
+      writes.addAll(List.of(written));
+      compiled = false;
+      return this;
+    }
+
+    /**
+     * Keep the pass even if nothing reads what it writes, e.g. because it renders into framebuffers unknown to the graph
+     *
+     * @return this pass
+     */
+    public Pass sideEffects() {
+      sideEffects = true;
+      compiled = false;
+      return this;
+    }
+
+    /**
+     * Declare that the pass does nothing but copy one resource into another, so the graph may remove it
+     *
+     * @param from the transient resource that is copied
+     * @param to   the resource it is copied into
+     * @return this pass
+     */
+    public Pass forwards(Resource from, Resource to) {
+      reads(from);
+      writes(to);
+      forwardFrom = from;
+      forwardTo = to;
+      return this;
+    }
+
+    /**
+     * @param execute what the pass does every frame
+     * @return this pass
+     */
+    public Pass executes(Runnable execute) {
+      this.execute = execute;
+      return this;
+    }
+
+    /**
+     * Let a renderer draw into a resource
+     *
+     * @param renderer the renderer
+     * @param target   the resource it draws into
+     * @return this pass
+     */
+    public Pass renders(Renderer renderer, Resource target) {
+      writes(target);
+      return executes(() -> {
+        target(renderer, target);
+        renderer.render();
+      });
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return whether the pass is skipped, because nothing needs its result
+     */
+    public boolean isCulled() {
+      if (!compiled) compile();
+      return culled;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.azurite.graphics.renderer;
+
+import java.util.Arrays;
+
+/**
+ * A queue of 64 bit sort keys, one per drawable, that is sorted once per frame and then split into batches linearly.
+ * This replaces searching all batches for a fitting one for every drawable.
+ * <p>
+ * A key holds, from the most to the least significant bits:
+ * <ul>
+ *     <li>16 bits zIndex, so that lower layers are drawn first</li>
+ *     <li>24 bits texture key, so that drawables sharing a texture end up next to each other</li>
+ *     <li>24 bits index of the drawable in the renderer's list, which also keeps the sort stable</li>
+ * </ul>
+ * The keys are sorted with an LSD radix sort, which skips every byte that is the same for all keys.
+ */
+public class RenderQueue {
+  private static final int Z_BITS = 16;
+  private static final int TEXTURE_BITS = 24;
+  private static final int INDEX_BITS = 24;
+
+  private static final int Z_BIAS = 1 << (Z_BITS - 1);
+  /**
+   * Largest index and texture key a key can hold
+   */
+  public static final int MAX_INDEX = (1 << INDEX_BITS) - 1;
+  public static final int MAX_TEXTURE_KEY = (1 << TEXTURE_BITS) - 1;
+
+  private long[] keys;
+  private long[] scratch;
+  private final int[] counts = new int[256];
+  private int size;
+
+  public RenderQueue() {
+    this(1024);
+  }
+
+  /**
+   * @param capacity the initial number of keys the queue can hold without growing
+   */
+  public RenderQueue(int capacity) {
+    keys = new long[capacity];
+    scratch = new long[capacity];
+  }
+
+  /**
+   * Create a sort key. The zIndex is clamped to the range of a short.
+   *
+   * @param zIndex     the zIndex of the drawable
+   * @param textureKey a small number identifying the texture of the drawable, 0 for none
+   * @param index      the index of the drawable
+   * @return the sort key
+   */
+  public static long key(int zIndex, int textureKey, int index) {
+    assert textureKey >= 0 && textureKey <= MAX_TEXTURE_KEY : "[ERROR] Texture key out of range: " + textureKey;
+    assert index >= 0 && index <= MAX_INDEX : "[ERROR] Drawable index out of range: " + index;
+
+    long z = Math.max(0, Math.min(zIndex + Z_BIAS, (1 << Z_BITS) - 1));
+    return z << (TEXTURE_BITS + INDEX_BITS) | (long) textureKey << INDEX_BITS | index;
+  }
+
+  /**
+   * @param key a sort key
+   * @return the zIndex stored in the key
+   */
+  public static int zIndex(long key) {
+    return (int) (key >>> (TEXTURE_BITS + INDEX_BITS)) - Z_BIAS;
+  }
+
+  /**
+   * @param key a sort key
+   * @return the texture key stored in the key
+   */
+  public static int textureKey(long key) {
+    return (int) (key >>> INDEX_BITS) & MAX_TEXTURE_KEY;
+  }
+
+  /**
+   * @param key a sort key
+   * @return the index of the drawable stored in the key
+   */
+  public static int index(long key) {
+    return (int) key & MAX_INDEX;
+  }
+
+  /**
+   * Add a key to the queue
+   *
+   * @param key the key created by {@link #key(int, int, int)}
+   */
+  public void push(long key) {
+    if (size == keys.length) {
+      long[] grown = new long[keys.length * 2];
+      System.arraycopy(keys, 0, grown, 0, size);
+      keys = grown;
+      scratch = new long[grown.length];
+    }
+    keys[size++] = key;
+  }
+
+  /**
+   * Sort the keys in ascending order
+   */
+  public void sort() {
+    long[] from = keys;
+    long[] to = scratch;
+    for (int shift = 0; shift < Long.SIZE; shift += 8) {
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < size; i++)
+        counts[(int) (from[i] >>> shift) & 0xFF]++;
+
+      // Every key has the same byte here, the pass would not change anything
+      if (size == 0 || counts[(int) (from[0] >>> shift) & 0xFF] == size) continue;
+
+      int total = 0;
+      for (int b = 0; b < 256; b++) {
+        int c = counts[b];
+        counts[b] = total;
+        total += c;
+      }
+      for (int i = 0; i < size; i++)
+        to[counts[(int) (from[i] >>> shift) & 0xFF]++] = from[i];
+
+      long[] swap = from;
+      from = to;
+      to = swap;
+    }
+    keys = from;
+    scratch = to;
+  }
+
+  /**
+   * @param i position in the queue
+   * @return the key at that position
+   */
+  public long get(int i) {
+    return keys[i];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Remove all keys, keeping the memory for the next frame
+   */
+  public void clear() {
+    size = 0;
+  }
+}
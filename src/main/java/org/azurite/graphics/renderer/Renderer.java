@@ -1,16 +1,21 @@
 package org.azurite.graphics.renderer;
 
 import org.azurite.ecs.GameObject;
+import org.azurite.graphics.Camera;
+import org.azurite.graphics.CameraBuffer;
 import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.GpuProfiler;
 import org.azurite.graphics.Shader;
 import org.azurite.graphics.Texture;
+import org.azurite.graphics.TextureArray;
+import org.azurite.util.Log;
 import org.azurite.util.OrderPreservingList;
+import org.joml.Vector4f;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
-import static org.lwjgl.opengl.GL11.glDrawElements;
-
 /**
  * 
  * <p>
@@ -61,10 +66,42 @@ public abstract class Renderer {
 	 */
 	public Framebuffer framebuffer;
 	protected boolean noRebuffer = false;
+	/**
+	 * How the batches of this renderer stream their vertices to the GPU
+	 */
+	private BufferStreaming streaming = BufferStreaming.SINGLE;
+	/**
+	 * Batches not used by the current frame of a queued renderer, kept to be reused
+	 */
+	private final List<RenderBatch> batchPool = new ArrayList<>();
+	/**
+	 * Number of frames after which a pooled batch that was not needed is deleted
+	 */
+	private static final int POOL_RELEASE_FRAMES = 120;
+	/**
+	 * Number of draw calls issued in the last frame, by all viewports
+	 */
+	private int drawCalls = 0;
+	/**
+	 * Number of vertices drawn in the last frame
+	 */
+	private int vertices = 0;
+	/**
+	 * Time in nanoseconds the last frame spent filling the batches and uploading them
+	 */
+	private long fillTime = 0, uploadTime = 0;
 	/**
 	 * Shader to be used for rendering
 	 */
 	private Shader shader;
+	/**
+	 * The part of the world visible in the current draw, as (minX, minY, maxX, maxY)
+	 */
+	protected final Vector4f drawBounds = new Vector4f();
+	/**
+	 * Shared vertex buffer the batches are packed into and drawn from with glMultiDrawElementsIndirect, null if off
+	 */
+	private MultiDrawBuffer multiDraw;
 
 	public Renderer() {
 		this.batches = new OrderPreservingList<>();
@@ -116,8 +153,9 @@ public abstract class Renderer {
 	 * Finish Setting data for all batches. Upload to gpu ready for rendering
 	 */
 	private void finish() {
+		if (multiDraw != null) multiDraw.pack(batches);
 		for (RenderBatch batch : batches) {
-			batch.finish();
+			if (batch.packedInto == null) batch.finish();
 		}
 	}
 
@@ -128,17 +166,149 @@ public abstract class Renderer {
 	 * @param texture
 	 */
 	public RenderBatch getAvailableBatch(Texture texture, int reqdZ) {
+		return getAvailableBatch(texture, reqdZ, false);
+	}
+
+	/**
+	 * Get the batch in which the current data can be submitted
+	 * Has to be called PER PRIMITIVE SUBMISSION
+	 *
+	 * @param texture the texture of the primitive, may be null
+	 * @param reqdZ   the zIndex of the primitive
+	 * @param opaque  whether the primitive goes into the opaque batches
+	 * @return a batch that can use the texture
+	 */
+	public RenderBatch getAvailableBatch(Texture texture, int reqdZ, boolean opaque) {
 		for (RenderBatch batch : batches) {
-			if (!batch.isFull && batch.zIndex() == reqdZ)
+			if (!batch.isFull && !batch.isRetained() && batch.isOpaque() == opaque && batch.zIndex() == reqdZ
+					&& batch.canHoldTexture(texture))
 				return batch;
-
-			if (batch.isFull_Textures)
-				if (batch.hasTexture(texture) && batch.zIndex() == reqdZ)
-					return batch;
 		}
 
 		// All batches full
+		return newBatch(reqdZ, false, opaque);
+	}
+
+	/**
+	 * Get the batch in which a primitive using a layer of the texture array can be submitted
+	 * Has to be called PER PRIMITIVE SUBMISSION
+	 *
+	 * @param array  the texture array of the primitive
+	 * @param reqdZ  the zIndex of the primitive
+	 * @param opaque whether the primitive goes into the opaque batches
+	 * @return a batch that can use the texture array
+	 */
+	public RenderBatch getAvailableArrayBatch(TextureArray array, int reqdZ, boolean opaque) {
+		for (RenderBatch batch : batches) {
+			if (!batch.isFull && !batch.isRetained() && batch.isOpaque() == opaque && batch.zIndex() == reqdZ
+					&& batch.canHoldTextureArray(array))
+				return batch;
+		}
+
+		return newBatch(reqdZ, false, opaque);
+	}
+
+	/**
+	 * Get a retained batch that has a free slot for a primitive with the given texture and zIndex.
+	 * Has to be called only when a primitive needs a new slot, not per frame.
+	 *
+	 * @param texture the texture of the primitive, may be null
+	 * @param reqdZ   the zIndex of the primitive
+	 * @param opaque  whether the primitive goes into the opaque batches
+	 * @return a retained batch with at least one free slot
+	 * @see RenderBatch#allocateSlot()
+	 */
+	public RenderBatch getRetainedBatch(Texture texture, int reqdZ, boolean opaque) {
+		for (RenderBatch batch : batches) {
+			if (batch.isRetained() && batch.isOpaque() == opaque && batch.zIndex() == reqdZ && batch.hasFreeSlot()
+					&& batch.canHoldTexture(texture))
+				return batch;
+		}
+
+		return newBatch(reqdZ, true, opaque);
+	}
+
+	/**
+	 * Get a retained batch that has a free slot for a primitive using a layer of the texture array.
+	 *
+	 * @param array  the texture array of the primitive
+	 * @param reqdZ  the zIndex of the primitive
+	 * @param opaque whether the primitive goes into the opaque batches
+	 * @return a retained batch with at least one free slot
+	 */
+	public RenderBatch getRetainedArrayBatch(TextureArray array, int reqdZ, boolean opaque) {
+		for (RenderBatch batch : batches) {
+			if (batch.isRetained() && batch.isOpaque() == opaque && batch.zIndex() == reqdZ && batch.hasFreeSlot()
+					&& batch.canHoldTextureArray(array))
+				return batch;
+		}
+
+		return newBatch(reqdZ, true, opaque);
+	}
+
+	/**
+	 * Start assigning batches for a sorted queue. All batches of the last frame go back into the pool,
+	 * and are handed out again by {@link #acquireBatch(int, boolean)} in the order they are needed.
+	 */
+	protected void beginQueuedFrame() {
+		for (RenderBatch batch : batches) {
+			batch.idleFrames = 0;
+			batchPool.add(batch);
+		}
+		batches.clear();
+	}
+
+	/**
+	 * Get an empty batch for the given zIndex, reusing a pooled batch if there is one.
+	 * Has to be called in ascending zIndex order between {@link #beginQueuedFrame()} and {@link #endQueuedFrame()}.
+	 *
+	 * @param reqdZ  the zIndex of the batch
+	 * @param opaque whether the batch holds opaque primitives
+	 * @return a started batch
+	 */
+	protected RenderBatch acquireBatch(int reqdZ, boolean opaque) {
+		if (batchPool.isEmpty()) return newBatch(reqdZ, false, opaque);
+
+		// Prefer the batch that was used most recently
+		RenderBatch batch = batchPool.remove(batchPool.size() - 1);
+		batch.setZIndex(reqdZ);
+		batch.setOpaque(opaque);
+		batch.start();
+		batches.add(batch);
+		return batch;
+	}
+
+	/**
+	 * Finish assigning batches. Pooled batches that have not been needed for a while are deleted.
+	 */
+	protected void endQueuedFrame() {
+		for (int i = batchPool.size() - 1; i >= 0; i--) {
+			RenderBatch batch = batchPool.get(i);
+			if (++batch.idleFrames > POOL_RELEASE_FRAMES) {
+				batch.delete();
+				batchPool.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of batches kept in the pool without being drawn this frame
+	 */
+	public int getPooledBatchCount() {
+		return batchPool.size();
+	}
+
+	/**
+	 * Create, initialize and add a new batch
+	 */
+	private RenderBatch newBatch(int reqdZ, boolean retained, boolean opaque) {
 		RenderBatch batch = createBatch(reqdZ);
+		batch.setOpaque(opaque);
+		if (retained) {
+			batch.setRetained(true);
+		} else {
+			batch.setStreaming(streaming);
+		}
 		batch.init();
 		batch.start();
 		batches.add(batch);
@@ -169,6 +339,13 @@ public abstract class Renderer {
 		framebuffer = createFramebuffer();
 	}
 
+	/**
+	 * @return the shader the batches are drawn with, null before {@link #init()}
+	 */
+	Shader getShader() {
+		return shader;
+	}
+
 	/**
 	 * Get a color attachment texture from the framebuffer
 	 *
@@ -180,27 +357,50 @@ public abstract class Renderer {
 	}
 
 	/**
-	 * Loop through all render batches and render them
+	 * Fill the batches and draw them
 	 */
 	public void render() {
+		fill();
+		draw();
+	}
+
+	/**
+	 * Rebuffer all the data into the batches and upload them. Called once per frame, before the batches are drawn
+	 * by one or more viewports.
+	 */
+	public void fill() {
+		drawCalls = 0;
+		vertices = 0;
+		if (noRebuffer) return;
+		long time = System.nanoTime();
+		start();
+		rebuffer();
+		long filled = System.nanoTime();
+		finish();
+		fillTime = filled - time;
+		uploadTime = System.nanoTime() - filled;
+	}
+
+	/**
+	 * Draw the batches filled this frame into the framebuffer. Batches outside the view of the camera in the
+	 * {@link org.azurite.graphics.CameraBuffer} are skipped, so every viewport only draws what it can see.
+	 */
+	public void draw() {
+		GpuProfiler.begin(getClass().getSimpleName());
+		FramebufferPool.fit(framebuffer);
 		framebuffer.bind();
 		prepare();
 		shader.attach();
 		uploadUniforms(shader);
 
-		if (!noRebuffer) {
-			start();
-			rebuffer();
-			finish();
-		}
-
-		for (RenderBatch batch : batches) {
-			batch.bind();
-			glDrawElements(batch.primitive.openglPrimitive, batch.getVertexCount(), GL_UNSIGNED_INT, 0);
-			batch.unbind();
-		}
+		Camera camera = CameraBuffer.getCamera();
+		if (camera != null) camera.getViewBounds(drawBounds);
+		else drawBounds.set(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+		drawBatches(shader);
+		afterBatches();
 		shader.detach();
 		Framebuffer.unbind();
+		GpuProfiler.end(drawCalls, vertices);
 	}
 
 	/**
@@ -208,10 +408,172 @@ public abstract class Renderer {
 	 */
 	protected abstract void prepare();
 
+	/**
+	 * Draw all batches in the order of their zIndex. Called by {@link #draw()} with the shader attached
+	 * and its uniforms uploaded.
+	 *
+	 * @param shader the attached shader
+	 */
+	protected void drawBatches(Shader shader) {
+		if (multiDraw != null) {
+			multiDraw.draw(this, batches, drawBounds);
+			return;
+		}
+		for (RenderBatch batch : batches) {
+			drawBatch(batch);
+		}
+	}
+
+	/**
+	 * Draw a single batch, unless it is empty or outside the view
+	 *
+	 * @param batch the batch
+	 */
+	protected final void drawBatch(RenderBatch batch) {
+		if (batch.getVertexCount() == 0 || !batch.overlaps(drawBounds)) return;
+		drawCalls++;
+		vertices += batch.getVertexCount();
+		batch.bind();
+		batch.draw();
+		batch.unbind();
+	}
+
+	/**
+	 * Draw anything that does not fit into the batches. Called after the batches were drawn,
+	 * while the framebuffer and the shader are still bound.
+	 */
+	protected void afterBatches() {
+	}
+
+	/**
+	 * Count a draw call issued outside of the batches for the statistics of this frame
+	 *
+	 * @param vertices the number of vertices drawn
+	 */
+	protected void countDraw(int vertices) {
+		drawCalls++;
+		this.vertices += vertices;
+	}
+
 	/**
 	 * Delete all the Batches.
 	 */
 	public void clean() {
 		batches.forEach(RenderBatch::delete);
+		batchPool.forEach(RenderBatch::delete);
+		if (multiDraw != null) multiDraw.free();
+		multiDraw = null;
+	}
+
+	/**
+	 * Draw the batches from one shared vertex buffer, submitting every run of consecutive batches whose textures
+	 * can be bound together with a single glMultiDrawElementsIndirect call. With a texture array or a
+	 * {@link org.azurite.graphics.TextureAtlas} that is usually one call for all batches of the renderer.
+	 * Retained and instanced batches are still drawn one by one. Requires OpenGL 4.3, on older contexts the
+	 * batches keep being drawn one by one. Off by default.
+	 *
+	 * @param enabled whether the batches should be drawn with glMultiDrawElementsIndirect
+	 */
+	public void setMultiDrawIndirect(boolean enabled) {
+		if (enabled && !MultiDrawBuffer.isSupported()) {
+			Log.logger.warn("multi draw indirect requires OpenGL 4.3, the batches are drawn one by one", 1);
+			return;
+		}
+		if (enabled == (multiDraw != null)) return;
+		if (enabled) {
+			multiDraw = new MultiDrawBuffer();
+			return;
+		}
+		multiDraw.free();
+		multiDraw = null;
+		// The vertices of this frame are still staged, the batches upload them to their own buffers
+		for (RenderBatch batch : batches) {
+			if (batch.packedInto == null) continue;
+			batch.packedInto = null;
+			batch.finish();
+		}
+	}
+
+	/**
+	 * @return whether the batches are drawn with glMultiDrawElementsIndirect
+	 */
+	public boolean usesMultiDrawIndirect() {
+		return multiDraw != null;
+	}
+
+	/**
+	 * Select how the batches of this renderer stream their vertices to the GPU every frame.
+	 * Existing batches are dropped and created again with the new strategy.
+	 *
+	 * @param streaming the streaming strategy
+	 * @see BufferStreaming
+	 */
+	public void setStreaming(BufferStreaming streaming) {
+		if (this.streaming == streaming) return;
+		this.streaming = streaming;
+		resetBatches();
+	}
+
+	public BufferStreaming getStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * @return the number of times a batch of this renderer had to wait for the GPU before it could stream new vertices
+	 */
+	public long getFenceWaits() {
+		long waits = 0;
+		for (RenderBatch batch : batches)
+			waits += batch.getFenceWaits();
+		return waits;
+	}
+
+	/**
+	 * @return the time in nanoseconds the last frame spent writing vertices into the batches
+	 */
+	public long getFillTime() {
+		return fillTime;
+	}
+
+	/**
+	 * @return the time in nanoseconds the last frame spent uploading the batches to the GPU
+	 */
+	public long getUploadTime() {
+		return uploadTime;
+	}
+
+	/**
+	 * @return the number of vertices drawn by this renderer in the last frame
+	 */
+	public int getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * @return the number of draw calls issued by this renderer in the last frame
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * Drop all batches after a change of how they are set up, so that new ones get created on the next frame.
+	 * Subclasses that keep references to batches, like retained slots, forget them here.
+	 */
+	protected void resetBatches() {
+		clearBatches();
+	}
+
+	/**
+	 * Delete all the batches and forget them, so that new ones get created on the next frame.
+	 * Unlike {@link #clean()} this keeps everything else of the renderer, like the textures of subclasses.
+	 */
+	protected void clearBatches() {
+		batches.forEach(RenderBatch::delete);
+		batchPool.forEach(RenderBatch::delete);
+		batches.clear();
+		batchPool.clear();
+		// The shared buffer is set up again for the new batches, multi draw stays on
+		if (multiDraw != null) multiDraw.delete();
 	}
 }
@@ -7,7 +7,6 @@ import org.azurite.graphics.ShaderDatatype;
 import org.azurite.ui.Text;
 import org.azurite.ui.fonts.GlyphRenderer;
 import org.azurite.util.Assets;
-import org.azurite.util.Engine;
 import org.azurite.util.Transform;
 import org.joml.Vector2f;
 
@@ -108,8 +107,6 @@ public class TextRenderer extends Renderer {
   @Override
   protected void uploadUniforms(Shader shader) {
     shader.uploadIntArray("uTextures", textureSlots);
-    shader.uploadMat4f("uProjection", Engine.scenes().currentScene().camera().getProjectionMatrix());
-    shader.uploadMat4f("uView", Engine.scenes().currentScene().camera().getViewMatrix());
   }
 
   /**
@@ -6,7 +6,6 @@ import org.azurite.graphics.Shader;
 import org.azurite.graphics.ShaderDatatype;
 import org.azurite.ui.RenderableElement;
 import org.azurite.util.Assets;
-import org.azurite.util.Engine;
 import org.azurite.util.Log;
 import org.joml.Vector2f;
 
@@ -59,10 +58,6 @@ public class UIRenderer extends Renderer {
   @Override
   protected void uploadUniforms(Shader shader) {
     shader.uploadIntArray("uTextures", textureSlots);
-
-    // This is here so that all renderers can have different cameras OR no cameras at all
-    shader.uploadMat4f("uProjection", Engine.window().currentScene().camera().getProjectionMatrix());
-    shader.uploadMat4f("uView", Engine.window().currentScene().camera().getViewMatrix());
   }
 
   @Override
@@ -2,9 +2,20 @@ package org.azurite.scene;
 
 import org.azurite.ecs.GameObject;
 import org.azurite.graphics.Camera;
+import org.azurite.graphics.CameraBuffer;
+import org.azurite.graphics.Color;
+import org.azurite.graphics.DynamicResolution;
+import org.azurite.graphics.Framebuffer;
+import org.azurite.graphics.FramebufferPool;
+import org.azurite.graphics.GLState;
+import org.azurite.graphics.GpuProfiler;
+import org.azurite.graphics.Graphics;
 import org.azurite.graphics.Texture;
-import org.azurite.graphics.postprocess.ForwardToTexture;
+import org.azurite.graphics.Viewport;
+import org.azurite.graphics.Window;
 import org.azurite.graphics.postprocess.PostProcessStep;
+import org.azurite.graphics.postprocess.PostProcessing;
+import org.azurite.graphics.postprocess.Upscale;
 import org.azurite.graphics.renderer.*;
 import org.azurite.input.Keyboard;
 import org.azurite.physics.collision.Collider;
@@ -13,6 +24,7 @@ import org.azurite.ui.RenderableElement;
 import org.azurite.ui.Text;
 import org.azurite.util.Engine;
 import org.azurite.util.Log;
+import org.joml.Vector4f;
 import org.lwjgl.glfw.GLFW;
 
 import java.util.ArrayList;
@@ -91,9 +103,46 @@ public abstract class Scene {
   public TextRenderer textRenderer = new TextRenderer();
   public UIRenderer uiRenderer = new UIRenderer();
   protected Camera camera;
-  protected ForwardToTexture forwardToScreen;
+  /**
+   * Copies a texture to the screen, enlarging it if the world is rendered at a lower resolution
+   */
+  protected Upscale upscaleToScreen;
+  /**
+   * The passes rendering a frame of this scene
+   */
+  protected RenderGraph renderGraph;
+  /**
+   * Whether dynamic resolution was on when the render graph was built
+   */
+  private boolean graphScaled = false;
+  /**
+   * Whether the sprites were given a depth buffer when the render graph was built
+   */
+  private boolean graphDepth = false;
+  /**
+   * The viewport showing the scene through its camera, followed by the viewports added to the scene
+   */
+  private final Viewport mainViewport = new Viewport(null);
+  private final List<Viewport> viewports = new ArrayList<>(List.of(mainViewport));
+  /**
+   * Whether the render graph was built with passes per viewport, and whether the viewports changed since
+   */
+  private boolean graphViewports = false;
+  private boolean viewportsChanged = false;
+  private final Vector4f viewBounds = new Vector4f();
+  private final Vector4f viewportRect = new Vector4f();
   private List<Renderer> rendererRegistry = new LinkedList<>();
   private boolean debugMode = false;
+  /**
+   * Counts how often every pixel is drawn while the overdraw view is on, null while it is off
+   */
+  private OverdrawView overdrawView;
+  /**
+   * Text showing the GPU profile in debug mode, refreshed every {@link #PROFILE_INTERVAL} frames
+   */
+  private Text profileOverlay;
+  private int profileFrames = 0;
+  private static final int PROFILE_INTERVAL = 30;
   private boolean active = false;
 
   public boolean isActive() {
@@ -132,10 +181,47 @@ public abstract class Scene {
    */
   public void update() {
     if (Keyboard.getKeyDown(GLFW.GLFW_KEY_GRAVE_ACCENT)) {
-      debugMode = !debugMode;
+      if (Keyboard.getKey(GLFW.GLFW_KEY_LEFT_SHIFT) || Keyboard.getKey(GLFW.GLFW_KEY_RIGHT_SHIFT)) {
+        setOverdrawView(overdrawView == null);
+      } else {
+        debugMode = !debugMode;
+        GpuProfiler.setEnabled(debugMode);
+      }
+      if (!debugMode && overdrawView == null && profileOverlay != null) profileOverlay.change("");
+    }
+    if ((debugMode && GpuProfiler.isEnabled() || overdrawView != null) && ++profileFrames >= PROFILE_INTERVAL) {
+      profileFrames = 0;
+      String report = GpuProfiler.report() + DynamicResolution.report() + FramebufferPool.report() + GLState.report()
+          + (overdrawView != null ? overdrawView.report() : "");
+      if (profileOverlay == null) profileOverlay = new Text(report, Color.WHITE, 10, 10);
+      else profileOverlay.change(report);
     }
   }
 
+  /**
+   * Show how often every pixel of the screen is drawn by the sprites, the UI and the text instead of the frame,
+   * see {@link OverdrawView}. The average and maximum overdraw are shown with the profile of the debug mode.
+   * Sprites are counted through the camera of the scene, also when there are several viewports.
+   *
+   * @param enabled whether the overdraw view should be shown
+   */
+  public void setOverdrawView(boolean enabled) {
+    if (enabled == (overdrawView != null)) return;
+    if (enabled) {
+      overdrawView = new OverdrawView();
+    } else {
+      overdrawView.clean();
+      overdrawView = null;
+    }
+  }
+
+  /**
+   * @return the overdraw view, with the overdraw of the last frame, or null if it is off
+   */
+  public OverdrawView getOverdrawView() {
+    return overdrawView;
+  }
+
   /**
    * Apply post processing to a texture
    *
@@ -205,6 +291,74 @@ public abstract class Scene {
     return this.camera;
   }
 
+  /**
+   * Add a viewport showing the scene through another camera, e.g. a minimap. Viewports are drawn in the order
+   * they were added, on top of the main viewport.
+   *
+   * @param viewport the viewport
+   */
+  public void addViewport(Viewport viewport) {
+    if (viewports.contains(viewport)) return;
+    viewports.add(viewport);
+    viewportsChanged = true;
+    // Creating a camera makes it the instance, which is used for drawing to the screen
+    if (camera != null) Camera.instance = camera;
+  }
+
+  /**
+   * Remove a viewport added with {@link #addViewport(Viewport)}
+   *
+   * @param viewport the viewport
+   */
+  public void removeViewport(Viewport viewport) {
+    if (viewport == mainViewport || !viewports.remove(viewport)) return;
+    viewport.releaseTargets();
+    viewportsChanged = true;
+  }
+
+  /**
+   * Get the viewport showing the scene through its camera. It covers the window unless it is given another
+   * rectangle, e.g. the left half for a split screen.
+   *
+   * @return the main viewport
+   */
+  public Viewport getMainViewport() {
+    mainViewport.camera = camera;
+    return mainViewport;
+  }
+
+  /**
+   * @return all viewports of the scene, starting with the main viewport
+   */
+  public List<Viewport> getViewports() {
+    mainViewport.camera = camera;
+    return viewports;
+  }
+
+  /**
+   * Get the rectangle around the views of all viewports, everything that may be drawn this frame
+   *
+   * @param dest vector to store the bounds in, as (minX, minY, maxX, maxY)
+   * @return dest
+   */
+  public Vector4f getViewBounds(Vector4f dest) {
+    List<Viewport> views = getViewports();
+    views.get(0).camera.getViewBounds(dest);
+    for (int i = 1; i < views.size(); i++) {
+      views.get(i).camera.getViewBounds(viewBounds);
+      dest.set(Math.min(dest.x, viewBounds.x), Math.min(dest.y, viewBounds.y),
+          Math.max(dest.z, viewBounds.z), Math.max(dest.w, viewBounds.w));
+    }
+    return dest;
+  }
+
+  /**
+   * @return whether the scene is drawn through more than one viewport, or through a viewport smaller than the window
+   */
+  private boolean hasViewports() {
+    return viewports.size() > 1 || !mainViewport.isFullscreen();
+  }
+
   /**
    * Loops through all the gameObjects in the scene and calls their update methods.
    */
@@ -232,8 +386,8 @@ public abstract class Scene {
    * @param texture input texture
    */
   public void postProcess(Texture texture) {
-    forwardToScreen.setTexture(texture);
-    forwardToScreen.apply();
+    upscaleToScreen.setTexture(texture);
+    upscaleToScreen.apply();
   }
 
   /**
@@ -245,6 +399,23 @@ public abstract class Scene {
     rendererRegistry.add(renderer);
   }
 
+  /**
+   * Replace the renderer that draws the sprites of this scene, e.g. with an {@link InstancedRenderer}.
+   * Preferably called from the constructor of the scene. If the renderers are already initialized,
+   * the new renderer is initialized and takes over all gameObjects of the scene.
+   *
+   * @param renderer the new sprite renderer
+   */
+  public void setRenderer(DefaultRenderer renderer) {
+    DefaultRenderer old = this.renderer;
+    this.renderer = renderer;
+    if (renderGraph == null) return;
+
+    renderer.init();
+    gameObjects.forEach(renderer::add);
+    old.clean();
+  }
+
   /**
    * Initialize all renderers
    */
@@ -252,9 +423,154 @@ public abstract class Scene {
     debugRenderer.init();
     lightmapRenderer.init();
     renderer.init();
-    forwardToScreen = new ForwardToTexture(PostProcessStep.Target.DEFAULT_FRAMEBUFFER);
-    forwardToScreen.init();
+    upscaleToScreen = new Upscale(PostProcessStep.Target.DEFAULT_FRAMEBUFFER);
+    upscaleToScreen.init();
     uiRenderer.init();
+
+    buildRenderGraph();
+  }
+
+  private void buildRenderGraph() {
+    if (renderGraph != null) renderGraph.clean();
+    // The framebuffers of the old graph and of the viewports are back in the pool, the new graph targets the renderers
+    viewports.forEach(Viewport::releaseTargets);
+    releaseTarget(renderer);
+    releaseTarget(lightmapRenderer);
+    renderGraph = new RenderGraph();
+    graphScaled = DynamicResolution.isEnabled();
+    graphDepth = renderer.usesDepthPrePass();
+    graphViewports = hasViewports();
+    viewportsChanged = false;
+    buildRenderGraph(renderGraph);
+    renderGraph.compile();
+  }
+
+  private static void releaseTarget(Renderer renderer) {
+    if (renderer.framebuffer != null) renderer.framebuffer.release();
+    renderer.framebuffer = null;
+  }
+
+  /**
+   * Declare the passes of a frame: registered renderers, the lightmap, the sprites and the post processing.
+   * The lightmap and the sprites are rendered at the resolution chosen by {@link DynamicResolution},
+   * UI, text and debug rendering draw on top of the result at the native resolution outside of the graph.
+   * <p>
+   * With several viewports, see {@link #addViewport(Viewport)}, the batches are filled once, then every viewport
+   * draws the lightmap and the sprites with its own camera and is drawn into its rectangle of the screen.
+   *
+   * @param graph the empty render graph of this scene
+   */
+  protected void buildRenderGraph(RenderGraph graph) {
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", Framebuffer.createDefault());
+    if (hasViewports()) {
+      graph.addPass("registered renderers").sideEffects().executes(() -> rendererRegistry.forEach(Renderer::render));
+      addViewportPasses(graph, screen);
+      return;
+    }
+    RenderGraph.Resource lightmap = graph.createTransient("lightmap", RenderGraph.Size.SCENE_STENCIL);
+    // The depth pre-pass of the sprites needs a depth buffer
+    RenderGraph.Resource sceneColor = graph.createTransient("scene color",
+        renderer.usesDepthPrePass() ? RenderGraph.Size.SCENE_STENCIL : RenderGraph.Size.SCENE);
+
+    graph.addPass("registered renderers").sideEffects().executes(() -> rendererRegistry.forEach(Renderer::render));
+    graph.addPass("lightmap").writes(lightmap).executes(() -> {
+      graph.target(lightmapRenderer, lightmap);
+      lightmapRenderer.render();
+      lightmapRenderer.bindLightmap();
+    });
+    graph.addPass("sprites").reads(lightmap).writes(sceneColor).executes(() -> {
+      graph.target(renderer, sceneColor);
+      renderer.render();
+    });
+    addPostProcessing(graph, sceneColor, screen);
+  }
+
+  /**
+   * Add the passes turning the rendered scene into the final image. By default a single pass calls
+   * {@link #postProcess(Texture)}. If that method is not overridden the pass upscales the scene to the screen.
+   * While dynamic resolution is off that is a plain copy, which the graph removes by letting the sprites render
+   * to the screen directly.
+   * <p>
+   * Effects added as passes here, like a {@link org.azurite.graphics.postprocess.BloomEffect} created for the graph,
+   * share framebuffers with each other.
+   *
+   * @param graph      the render graph of this scene
+   * @param sceneColor resource holding the rendered sprites
+   * @param screen     resource of the default framebuffer
+   */
+  protected void addPostProcessing(RenderGraph graph, RenderGraph.Resource sceneColor, RenderGraph.Resource screen) {
+    RenderGraph.Pass post = graph.addPass("post process").executes(() -> {
+      PostProcessing.prepare();
+      postProcess(sceneColor.getTexture());
+      PostProcessing.finish();
+    });
+    if (overridesPostProcess() || graphScaled) post.reads(sceneColor).writes(screen);
+    else post.forwards(sceneColor, screen);
+  }
+
+  /**
+   * Add the passes drawing every viewport. The post processing of a viewport is its own, see
+   * {@link Viewport#setPostProcess(org.azurite.graphics.postprocess.PostProcessPipeline)}
+   *
+   * @param graph  the render graph of this scene
+   * @param screen resource of the default framebuffer
+   */
+  private void addViewportPasses(RenderGraph graph, RenderGraph.Resource screen) {
+    graph.addPass("fill batches").sideEffects().executes(() -> {
+      // Culling uses the views of all viewports, so their projections have to be up to date first
+      getViewports().forEach(Viewport::updateProjection);
+      lightmapRenderer.fill();
+      renderer.fill();
+    });
+    graph.addPass("clear screen").writes(screen).executes(() -> {
+      Framebuffer.unbind();
+      Graphics.background(Graphics.defaultBackground);
+    });
+    for (int i = 0; i < viewports.size(); i++) {
+      Viewport viewport = viewports.get(i);
+      String name = "viewport " + i;
+      graph.addPass(name).writes(screen).executes(() -> {
+        // Every viewport draws the same renderers, their sections are only timed once per frame and group
+        GpuProfiler.pushGroup(name);
+        renderViewport(viewport);
+        GpuProfiler.popGroup();
+      });
+    }
+  }
+
+  private void renderViewport(Viewport viewport) {
+    CameraBuffer.update(viewport.camera);
+    lightmapRenderer.framebuffer = viewport.getLightmapTarget();
+    lightmapRenderer.draw();
+    lightmapRenderer.bindLightmap();
+    renderer.framebuffer = viewport.getColorTarget(renderer.usesDepthPrePass());
+    renderer.draw();
+
+    PostProcessing.prepare();
+    Texture texture = renderer.framebuffer.getColorAttachment(0);
+    if (viewport.getPostProcess() != null) texture = viewport.getPostProcess().apply(texture);
+    if (texture != null) {
+      upscaleToScreen.setRegion(viewport.getPixelRect(Window.getWidth(), Window.getHeight(), viewportRect));
+      upscaleToScreen.setTexture(texture);
+      upscaleToScreen.apply();
+      upscaleToScreen.setRegion(null);
+    }
+    PostProcessing.finish();
+  }
+
+  private boolean overridesPostProcess() {
+    try {
+      return getClass().getMethod("postProcess", Texture.class).getDeclaringClass() != Scene.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the render graph of this scene, null before the renderers are initialized
+   */
+  public RenderGraph getRenderGraph() {
+    return renderGraph;
   }
 
   public final void startUi() {
@@ -267,11 +583,23 @@ public abstract class Scene {
     }
   }
 
+  /**
+   * Render a frame by executing the render graph
+   */
   public void render() {
-    rendererRegistry.forEach(Renderer::render);
-    lightmapRenderer.render();
-    lightmapRenderer.bindLightmap();
-    renderer.render();
+    // Rendering the sprites straight to the screen only works at the native resolution
+    if (graphScaled != DynamicResolution.isEnabled() || viewportsChanged || graphViewports != hasViewports()
+        || graphDepth != renderer.usesDepthPrePass())
+      buildRenderGraph();
+    CameraBuffer.update(camera);
+    renderGraph.execute();
+    // Viewports leave their cameras in the buffer, debug rendering uses the camera of the scene
+    if (graphViewports) CameraBuffer.update(camera);
+    if (overdrawView != null) {
+      // The batches of the sprites were filled by the graph, they are only drawn again
+      overdrawView.begin();
+      overdrawView.count(renderer, false);
+    }
   }
 
   public void debugRender() {
@@ -279,6 +607,18 @@ public abstract class Scene {
   }
 
   public final void textRender() {
+    if (overdrawView != null) {
+      overdrawView.count(uiRenderer, true);
+      overdrawView.count(textRenderer, true);
+      Texture heatmap = overdrawView.finish();
+      PostProcessing.prepare();
+      upscaleToScreen.setTexture(heatmap);
+      upscaleToScreen.apply();
+      PostProcessing.finish();
+      // The text is drawn again on top, so the profile overlay stays readable
+      textRenderer.render();
+      return;
+    }
     uiRenderer.render();
     textRenderer.render();
   }
@@ -293,6 +633,9 @@ public abstract class Scene {
     this.textRenderer.clean();
     this.uiRenderer.clean();
     rendererRegistry.forEach(Renderer::clean);
+    if (renderGraph != null) renderGraph.clean();
+    viewports.forEach(Viewport::releaseTargets);
+    setOverdrawView(false);
   }
 
   public void addText(Text t) {
@@ -3,10 +3,10 @@ package org.azurite.scenes;
 import org.azurite.ecs.*;
 import org.azurite.graphics.Camera;
 import org.azurite.graphics.Color;
+import org.azurite.graphics.DynamicResolution;
 import org.azurite.graphics.Spritesheet;
-import org.azurite.graphics.Texture;
 import org.azurite.graphics.postprocess.BloomEffect;
-import org.azurite.graphics.postprocess.PostProcessStep;
+import org.azurite.graphics.renderer.RenderGraph;
 import org.azurite.physics.collision.Shapes;
 import org.azurite.scene.Scene;
 import org.azurite.tiles.Tilesystem;
@@ -42,11 +42,15 @@ public class TopDownDemo extends Scene {
   public void awake() {
     camera = new Camera();
     setDefaultBackground(0);
+    DynamicResolution.setBounds(0.5f, 1.0f);
+    DynamicResolution.setEnabled(true);
 
     a = new Spritesheet(Assets.getTexture("images/tileset.png", true), 16, 16, 256, 0);
     b = new Spritesheet(Assets.getTexture("images/walls.png", true), 16, 16, 256, 0);
 
     t = new Tilesystem("tiles/demoSceneMap.tmx", 200, 200, true);
+    // The tiles never change, draw them from cached pages
+    renderer.setLayerCached(0, true);
 
     trRes = new GameObject("", new Vector2f(0, 0), -20); //scale 100 for no image remove
 
@@ -68,7 +72,9 @@ public class TopDownDemo extends Scene {
     //PLAYER
 
     player = new GameObject("Player", new Vector2f(600, 600), 2);
-    player.addComponent(new PointLight(new Color(250, 255, 181), 30));
+    PointLight playerLight = new PointLight(new Color(250, 255, 181), 30);
+    playerLight.castShadows = true;
+    player.addComponent(playerLight);
     PolygonCollider playerBody = new PolygonCollider(Shapes.axisAlignedRectangle(0, 0, 100, 100)).layer(2).mask(2);
     player.addComponent(playerBody);
     player.addComponent(CollisionHandlers.unpassablePolygonCollider(playerBody));
@@ -79,9 +85,9 @@ public class TopDownDemo extends Scene {
 
 
     greenLight = new GameObject("Green light", new Vector2f(3315, 300), 3);
-    greenLight.addComponent(new PointLight(new Color(102, 255, 102), 30));
-
-    bloom = new BloomEffect(PostProcessStep.Target.DEFAULT_FRAMEBUFFER);
+    PointLight green = new PointLight(new Color(102, 255, 102), 30);
+    green.castShadows = true;
+    greenLight.addComponent(green);
   }
 
   public void update() {
@@ -106,7 +112,7 @@ public class TopDownDemo extends Scene {
   }
 
   @Override
-  public void postProcess(Texture texture) {
-    bloom.apply(texture);
+  protected void addPostProcessing(RenderGraph graph, RenderGraph.Resource sceneColor, RenderGraph.Resource screen) {
+    bloom = new BloomEffect(graph, sceneColor, screen, 0.8f);
   }
 }
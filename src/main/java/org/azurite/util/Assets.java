@@ -2,8 +2,10 @@ package org.azurite.util;
 
 import org.azurite.audio.AudioBuffer;
 import org.azurite.graphics.Shader;
+import org.azurite.graphics.Sprite;
 import org.azurite.graphics.Spritesheet;
 import org.azurite.graphics.Texture;
+import org.azurite.graphics.TextureAtlas;
 import org.azurite.io.bin.BinaryIO;
 
 import java.io.File;
@@ -23,6 +25,7 @@ public class Assets {
   private static HashMap<String, Texture> textures = new HashMap<>();
   private static HashMap<String, AudioBuffer> audioBuffers = new HashMap<>();
   private static HashMap<String, Spritesheet> spritesheets = new HashMap<>();
+  private static TextureAtlas atlas = new TextureAtlas();
 
 
   public static Shader getShader(String path, boolean fromResources) {
@@ -85,6 +88,27 @@ public class Assets {
     return texture;
   }
 
+  /**
+   * Loads an image like {@link #getTexture(String, boolean)} and returns a sprite for it from the shared texture atlas.
+   * Sprites of different images from the atlas can be drawn in the same batch.
+   * Images that are too large for the atlas get a regular sprite.
+   *
+   * @param path to Texture resource (usually a .png file)
+   * @return a new sprite showing the whole image
+   */
+  public static Sprite getAtlasSprite(String path, boolean fromResources) {
+    return atlas.getSprite(getTexture(path, fromResources));
+  }
+
+  /**
+   * The atlas shared by {@link #getAtlasSprite(String, boolean)} and atlased spritesheets
+   *
+   * @return the shared texture atlas
+   */
+  public static TextureAtlas getAtlas() {
+    return atlas;
+  }
+
   /**
    * Loads an audio file from the filesystem and returns an AudioBuffer.
    *
@@ -146,6 +170,21 @@ public class Assets {
     return getSpritesheet(path);
   }
 
+  /**
+   * Loads a spritesheet like {@link #loadSpritesheet(String, int, int, int, int)} and packs it into the shared texture atlas.
+   * The sprites of the sheet are remapped into the atlas page.
+   *
+   * @param path         to Texture resource (usually a .png file)
+   * @param spriteWidth  of each sprite
+   * @param spriteHeight of each sprite
+   * @param numSprites   of sprites in the sheet
+   * @param spacing      spacing between sprites (0 if no spacing)
+   * @return returns type Spritesheet
+   */
+  public static Spritesheet loadAtlasSpritesheet(String path, int spriteWidth, int spriteHeight, int numSprites, int spacing) {
+    return atlas.add(loadSpritesheet(path, spriteWidth, spriteHeight, numSprites, spacing));
+  }
+
   public static InputStream getAzuriteLibraryResourceAsStream(String fileName) {
     //TODO: Fix hack for tiles
     InputStream stream = Assets.class.getClassLoader().getResourceAsStream(fileName.replace('\\', '/').replace("tiles/images", "images"));
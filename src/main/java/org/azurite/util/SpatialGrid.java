@@ -0,0 +1,195 @@
+package org.azurite.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sparse, loose grid of axis aligned boxes for finding everything that overlaps a rectangle.
+ * Every item lives in exactly one cell, the one containing the center of its box, so moving an item
+ * within its cell costs nothing and moving it to another cell is a swap-remove and an append.
+ * Queries look at the cells that overlap the rectangle grown by half of the largest box ever inserted,
+ * then test the boxes themselves.
+ * <p>
+ * Only cells that contain items take up memory, so the grid can cover arbitrarily large worlds.
+ *
+ * @param <T> type of the items
+ */
+public class SpatialGrid<T> {
+  private final float cellSize;
+  private final Map<Long, List<Entry<T>>> cells = new HashMap<>();
+  private final Map<T, Entry<T>> entries = new HashMap<>();
+  /**
+   * Half of the largest width and height of any box inserted so far
+   */
+  private float maxHalfWidth = 0, maxHalfHeight = 0;
+
+  /**
+   * @param cellSize width and height of a cell. A few times the size of a typical item works well
+   */
+  public SpatialGrid(float cellSize) {
+    assert cellSize > 0 : "[ERROR] Cell size of a SpatialGrid has to be positive";
+    this.cellSize = cellSize;
+  }
+
+  private static long cellKey(int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+
+  private int cell(float v) {
+    return (int) Math.floor(v / cellSize);
+  }
+
+  /**
+   * Insert an item, or move it if it is already in the grid. Negative sizes are treated as boxes
+   * extending to the left or up from the position.
+   *
+   * @param item the item
+   * @param x    x of the box
+   * @param y    y of the box
+   * @param w    width of the box
+   * @param h    height of the box
+   */
+  public void update(T item, float x, float y, float w, float h) {
+    Entry<T> e = entries.get(item);
+    if (e == null) {
+      e = new Entry<>(item);
+      entries.put(item, e);
+    } else if (e.x == x && e.y == y && e.w == w && e.h == h) {
+      return;
+    }
+    e.x = x;
+    e.y = y;
+    e.w = w;
+    e.h = h;
+    e.minX = Math.min(x, x + w);
+    e.minY = Math.min(y, y + h);
+    e.maxX = Math.max(x, x + w);
+    e.maxY = Math.max(y, y + h);
+    maxHalfWidth = Math.max(maxHalfWidth, (e.maxX - e.minX) / 2);
+    maxHalfHeight = Math.max(maxHalfHeight, (e.maxY - e.minY) / 2);
+
+    long key = cellKey(cell((e.minX + e.maxX) / 2), cell((e.minY + e.maxY) / 2));
+    if (e.cell != null && e.key == key) return;
+
+    if (e.cell != null) removeFromCell(e);
+    List<Entry<T>> cell = cells.computeIfAbsent(key, k -> new ArrayList<>());
+    e.key = key;
+    e.cell = cell;
+    e.slot = cell.size();
+    cell.add(e);
+  }
+
+  /**
+   * Remove an item from the grid
+   *
+   * @param item the item
+   * @return whether the item was in the grid
+   */
+  public boolean remove(T item) {
+    Entry<T> e = entries.remove(item);
+    if (e == null) return false;
+    removeFromCell(e);
+    return true;
+  }
+
+  private void removeFromCell(Entry<T> e) {
+    List<Entry<T>> cell = e.cell;
+    Entry<T> last = cell.remove(cell.size() - 1);
+    if (last != e) {
+      cell.set(e.slot, last);
+      last.slot = e.slot;
+    }
+    if (cell.isEmpty()) cells.remove(e.key);
+    e.cell = null;
+  }
+
+  /**
+   * Find all items whose box overlaps a rectangle
+   *
+   * @param minX left edge of the rectangle
+   * @param minY top edge of the rectangle
+   * @param maxX right edge of the rectangle
+   * @param maxY bottom edge of the rectangle
+   * @param out  list the found items are added to. It is not cleared
+   * @return the number of items found
+   */
+  public int query(float minX, float minY, float maxX, float maxY, List<T> out) {
+    int found = 0;
+    int cx0 = cell(minX - maxHalfWidth), cx1 = cell(maxX + maxHalfWidth);
+    int cy0 = cell(minY - maxHalfHeight), cy1 = cell(maxY + maxHalfHeight);
+
+    // A huge rectangle covers more cells than exist, walking the existing ones is cheaper then
+    if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+      for (List<Entry<T>> cell : cells.values())
+        found += collect(cell, minX, minY, maxX, maxY, out);
+      return found;
+    }
+
+    for (int cy = cy0; cy <= cy1; cy++) {
+      for (int cx = cx0; cx <= cx1; cx++) {
+        List<Entry<T>> cell = cells.get(cellKey(cx, cy));
+        if (cell != null) found += collect(cell, minX, minY, maxX, maxY, out);
+      }
+    }
+    return found;
+  }
+
+  private int collect(List<Entry<T>> cell, float minX, float minY, float maxX, float maxY, List<T> out) {
+    int found = 0;
+    for (int i = 0; i < cell.size(); i++) {
+      Entry<T> e = cell.get(i);
+      if (e.maxX >= minX && e.minX <= maxX && e.maxY >= minY && e.minY <= maxY) {
+        out.add(e.item);
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @param item the item
+   * @return whether the item is in the grid
+   */
+  public boolean contains(T item) {
+    return entries.containsKey(item);
+  }
+
+  /**
+   * @return the number of items in the grid
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the number of cells that contain items
+   */
+  public int getCellCount() {
+    return cells.size();
+  }
+
+  /**
+   * Remove all items
+   */
+  public void clear() {
+    cells.clear();
+    entries.clear();
+    maxHalfWidth = 0;
+    maxHalfHeight = 0;
+  }
+
+  private static class Entry<T> {
+    private final T item;
+    private float x, y, w, h;
+    private float minX, minY, maxX, maxY;
+    private long key;
+    private List<Entry<T>> cell;
+    private int slot;
+
+    private Entry(T item) {
+      this.item = item;
+    }
+  }
+}
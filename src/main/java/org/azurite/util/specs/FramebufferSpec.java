@@ -1,5 +1,7 @@
 package org.azurite.util.specs;
 
+import java.util.Arrays;
+
 /**
  * 
  * Specification for a framebuffer
@@ -15,4 +17,15 @@ public class FramebufferSpec {
     public FramebufferSpec(TextureSpec... textureSpecs) {
         this.attachments = textureSpecs;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        return o instanceof FramebufferSpec other && Arrays.equals(attachments, other.attachments);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(attachments);
+    }
 }
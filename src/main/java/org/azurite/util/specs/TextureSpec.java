@@ -1,5 +1,7 @@
 package org.azurite.util.specs;
 
+import java.util.Objects;
+
 import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.opengl.GL44.GL_MIRROR_CLAMP_TO_EDGE;
 
@@ -42,6 +44,20 @@ public class TextureSpec {
         this.tFilter = tFilter;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TextureSpec other)) return false;
+        return format == other.format && minificationFilter == other.minificationFilter
+                && magnificationFilter == other.magnificationFilter
+                && rFilter == other.rFilter && sFilter == other.sFilter && tFilter == other.tFilter;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(format, minificationFilter, magnificationFilter, rFilter, sFilter, tFilter);
+    }
+
     private static TextureResizeFilterType changeForMagnification(TextureResizeFilterType t) {
         if (t.appliesToMagFilter) return t;
         else return TextureResizeFilterType.LINEAR;
@@ -4,8 +4,11 @@
 layout (location=0) in vec3 aPos;
 layout (location=1) in vec4 aColor;
 
-uniform mat4 uProjection;
-uniform mat4 uView;
+layout (std140) uniform Camera {
+	mat4 uProjection;
+	mat4 uView;
+	vec2 uCameraPosition;
+};
 
 out vec4 fColor;
 
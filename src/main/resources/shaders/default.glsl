@@ -6,8 +6,14 @@ layout (location=1) in vec4 aColor;
 layout (location=2) in vec2 aTexCoords;
 layout (location=3) in float aTexId;
 
-uniform mat4 uProjection;
-uniform mat4 uView;
+layout (std140) uniform Camera {
+    mat4 uProjection;
+    mat4 uView;
+    vec2 uCameraPosition;
+};
+
+// Depth of the batch while opaque sprites are drawn front to back
+uniform float uDepth;
 
 out vec2 fPos;
 out vec4 fColor;
@@ -21,7 +27,7 @@ void main() {
     fTexCoords = aTexCoords;
     fTexId = aTexId;
 
-    gl_Position = pos;
+    gl_Position = vec4(pos.xy, uDepth * pos.w, pos.w);
 }
 
 #type fragment
@@ -34,6 +40,10 @@ in float fTexId;
 
 uniform sampler2D uTextures[8];
 uniform sampler2D uLightmap;
+// Texture ids from 8 on are layers of the batch's texture array
+uniform sampler2DArray uTextureArray;
+// Texels below this alpha are discarded, so opaque sprites do not write depth where they are transparent
+uniform float uAlphaCutoff;
 
 out vec4 color;
 
@@ -41,7 +51,9 @@ void main () {
     vec4 texColor;
 
     // This may look bad, but it is intentional, openGL minimum spec does not require dynamic indexing with variables into texture arrays, so this switch is required on AMD GPUs, and apparently on apple which DOESN'T SUPPORT CASTING!?!?!?!? (Hence the if/else rather than a switch).
-    if (fTexId == 0) {
+    if (fTexId >= 8) {
+        texColor = fColor * texture(uTextureArray, vec3(fTexCoords, fTexId - 8));
+    } else if (fTexId == 0) {
         texColor = fColor;
     } else if (fTexId == 1) {
         texColor = fColor * texture(uTextures[1], fTexCoords);
@@ -59,6 +71,8 @@ void main () {
         texColor = fColor * texture(uTextures[7], fTexCoords);
     }
 
+    if (texColor.a < uAlphaCutoff) discard;
+
     // Sample from lightmap and multiply with current fragment color
     texColor *= texture(uLightmap, (fPos + 1)/2);
     color = texColor;
@@ -0,0 +1,45 @@
+#type vertex
+#version 330 core
+
+layout (location=0) in vec2 aPos;
+layout (location=1) in vec2 aTexCoords;
+
+out vec2 fTexCoords;
+
+void main() {
+	fTexCoords = aTexCoords;
+
+	gl_Position = vec4(aPos, 0.0, 1.0);
+}
+
+#type fragment
+#version 330 core
+
+in vec2 fTexCoords;
+
+uniform sampler2D uTexture;
+// Size of a texel of the texture that is read
+uniform vec2 uTexelSize;
+// Only the part of a color brighter than this is kept. Negative to keep everything
+uniform float uThreshold;
+
+out vec4 color;
+
+vec3 prefilter(vec3 c) {
+	float brightness = max(c.r, max(c.g, c.b));
+	return c * (max(brightness - uThreshold, 0.0) / max(brightness, 0.0001));
+}
+
+void main() {
+	// Dual filter: the center and four diagonal bilinear taps cover a 4x4 texel area of the larger level
+	vec2 offset = uTexelSize;
+	vec3 sum = texture(uTexture, fTexCoords).rgb * 4.0;
+	sum += texture(uTexture, fTexCoords + vec2(-offset.x, -offset.y)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2( offset.x, -offset.y)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2(-offset.x,  offset.y)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2( offset.x,  offset.y)).rgb;
+	sum /= 8.0;
+
+	if (uThreshold >= 0.0) sum = prefilter(sum);
+	color = vec4(sum, 1.0);
+}
@@ -0,0 +1,84 @@
+#type vertex
+#version 330 core
+
+// Corner of the unit quad, shared by all instances
+layout (location=0) in vec2 aCorner;
+// Per instance
+layout (location=1) in vec2 aPos;
+layout (location=2) in vec2 aSize;
+layout (location=3) in vec4 aTexRect;
+layout (location=4) in vec4 aColor;
+layout (location=5) in float aTexId;
+
+layout (std140) uniform Camera {
+    mat4 uProjection;
+    mat4 uView;
+    vec2 uCameraPosition;
+};
+
+// Depth of the batch while opaque sprites are drawn front to back
+uniform float uDepth;
+
+out vec2 fPos;
+out vec4 fColor;
+out vec2 fTexCoords;
+out float fTexId;
+
+void main() {
+    vec4 pos = uProjection * uView * vec4(aPos + aCorner * aSize, 0.0, 1.0);
+    fPos = pos.xy;
+    fColor = aColor;
+    // aTexRect holds the texture coordinates of the corners (0, 0) and (1, 1)
+    fTexCoords = mix(aTexRect.xy, aTexRect.zw, aCorner);
+    fTexId = aTexId;
+
+    gl_Position = vec4(pos.xy, uDepth * pos.w, pos.w);
+}
+
+#type fragment
+#version 330 core
+
+in vec2 fPos;
+in vec4 fColor;
+in vec2 fTexCoords;
+in float fTexId;
+
+uniform sampler2D uTextures[8];
+uniform sampler2D uLightmap;
+// Texture ids from 8 on are layers of the batch's texture array
+uniform sampler2DArray uTextureArray;
+// Texels below this alpha are discarded, so opaque sprites do not write depth where they are transparent
+uniform float uAlphaCutoff;
+
+out vec4 color;
+
+void main () {
+    vec4 texColor;
+
+    // This may look bad, but it is intentional, openGL minimum spec does not require dynamic indexing with variables into texture arrays, so this switch is required on AMD GPUs, and apparently on apple which DOESN'T SUPPORT CASTING!?!?!?!? (Hence the if/else rather than a switch).
+    if (fTexId >= 8) {
+        texColor = fColor * texture(uTextureArray, vec3(fTexCoords, fTexId - 8));
+    } else if (fTexId == 0) {
+        texColor = fColor;
+    } else if (fTexId == 1) {
+        texColor = fColor * texture(uTextures[1], fTexCoords);
+    } else if (fTexId == 2) {
+        texColor = fColor * texture(uTextures[2], fTexCoords);
+    } else if (fTexId == 3) {
+        texColor = fColor * texture(uTextures[3], fTexCoords);
+    } else if (fTexId == 4) {
+        texColor = fColor * texture(uTextures[4], fTexCoords);
+    } else if (fTexId == 5) {
+        texColor = fColor * texture(uTextures[5], fTexCoords);
+    } else if (fTexId == 6) {
+        texColor = fColor * texture(uTextures[6], fTexCoords);
+    } else if (fTexId == 7) {
+        texColor = fColor * texture(uTextures[7], fTexCoords);
+    }
+
+    if (texColor.a < uAlphaCutoff) discard;
+
+    // Sample from lightmap and multiply with current fragment color
+    texColor *= texture(uLightmap, (fPos + 1)/2);
+    color = texColor;
+}
\ No newline at end of file
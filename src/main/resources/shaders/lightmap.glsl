@@ -1,34 +1,46 @@
 #type vertex
 #version 330 core
 
-layout (location=0) in vec2 aPos;
+// Every light is an instance of a quad covering the area it reaches
+layout (location=0) in vec2 aCorner;
+layout (location=1) in vec2 aCenter;
+layout (location=2) in float aRadius;
+layout (location=3) in vec3 aColor;
+layout (location=4) in float aIntensity;
 
-uniform mat4 uProjection;
-uniform vec2 uCameraOffset;
+layout (std140) uniform Camera {
+	mat4 uProjection;
+	mat4 uView;
+	vec2 uCameraPosition;
+};
 
 out vec2 fPos;
+flat out vec2 fCenter;
+flat out vec3 fColor;
+flat out float fIntensity;
 
 void main() {
-	fPos = aPos + uCameraOffset;
+	fPos = aCenter + (aCorner * 2.0 - 1.0) * aRadius;
+	fCenter = aCenter;
+	fColor = aColor;
+	fIntensity = aIntensity;
 
-	gl_Position = uProjection * vec4(aPos, 0.0, 1.0);
+	gl_Position = uProjection * uView * vec4(fPos, 0.0, 1.0);
 }
 
 #type fragment
 #version 330 core
 
 in vec2 fPos;
+flat in vec2 fCenter;
+flat in vec3 fColor;
+flat in float fIntensity;
 
 /**
- * The lighting uniform variables.
- * MAX_LIGHTS can be changed here. If you want more lights make sure to change the RenderBatch::addPointLight fuction as well.
+ * Attenuation at the edge of the quad of a light. Has to match LightmapRenderer.CUTOFF.
+ * The attenuation is shifted down by it, so the light fades out to exactly zero at its radius.
  */
-#define MAX_LIGHTS 10
-uniform vec2 uLightPosition[MAX_LIGHTS];
-uniform vec3 uLightColor[MAX_LIGHTS];
-uniform float uIntensity[MAX_LIGHTS];
-uniform float uMinLighting;
-uniform int uNumLights;
+#define CUTOFF (1.0 / 256.0)
 
 layout (location=0) out vec4 color;
 
@@ -42,21 +54,17 @@ float calculateLighting(float d, float intensity) {
 }
 
 void main () {
-	// Total lighting accumulation variable
-	vec3 totalLighting = vec3(0.0);
-	// Eventhough the arrays are crated with MAX_LIGHTS size, the arrays are iterated over only [uNumLights] times
-	for (int i = 0; i < uNumLights; i++) {
-		// Distance between the current pixel and the light position
-		float dist = distance(uLightPosition[i], fPos);
-		// calculate brightness using the attenuation function
-		float attenuation = calculateLighting(dist, uIntensity[i]);
-		// accumulate the value into total lighting by adding
-		totalLighting += uLightColor[i] * attenuation;
+	// An intensity of zero marks the quad applying the minimum lighting
+	if (fIntensity <= 0.0) {
+		color = vec4(fColor, 1.0);
+		return;
 	}
-	// Take minimum lighting into account
-	totalLighting.x = max(totalLighting.x, uMinLighting);
-	totalLighting.y = max(totalLighting.y, uMinLighting);
-	totalLighting.z = max(totalLighting.z, uMinLighting);
+	// Distance between the current pixel and the light position
+	float dist = distance(fCenter, fPos);
+	// calculate brightness using the attenuation function
+	float attenuation = calculateLighting(dist, fIntensity);
+	attenuation = max(attenuation - CUTOFF, 0.0) / (1.0 - CUTOFF);
 
-	color = vec4(totalLighting, 1.0);
-}
\ No newline at end of file
+	// Lights are accumulated by additive blending
+	color = vec4(fColor * attenuation, 1.0);
+}
@@ -0,0 +1,20 @@
+#type vertex
+#version 330 core
+
+layout (location=0) in vec2 aPos;
+
+void main() {
+	gl_Position = vec4(aPos, 0.0, 1.0);
+}
+
+#type fragment
+#version 330 core
+
+// Color of the overdraw count selected by the stencil test
+uniform vec4 uColor;
+
+out vec4 color;
+
+void main() {
+	color = uColor;
+}
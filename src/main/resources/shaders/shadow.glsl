@@ -0,0 +1,24 @@
+#type vertex
+#version 330 core
+
+// Corners of the quads shadowing a light, only written into the stencil buffer
+layout (location=0) in vec2 aPos;
+
+layout (std140) uniform Camera {
+	mat4 uProjection;
+	mat4 uView;
+	vec2 uCameraPosition;
+};
+
+void main() {
+	gl_Position = uProjection * uView * vec4(aPos, 0.0, 1.0);
+}
+
+#type fragment
+#version 330 core
+
+out vec4 color;
+
+void main () {
+	color = vec4(0.0);
+}
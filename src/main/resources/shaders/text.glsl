@@ -7,8 +7,11 @@ layout (location=2) in vec2 aTexCoords;
 layout (location=3) in float aTexId;
 layout (location=4) in float sticky;
 
-uniform mat4 uProjection;
-uniform mat4 uView;
+layout (std140) uniform Camera {
+    mat4 uProjection;
+    mat4 uView;
+    vec2 uCameraPosition;
+};
 
 out vec4 fColor;
 out vec2 fTexCoords;
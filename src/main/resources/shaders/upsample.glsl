@@ -0,0 +1,38 @@
+#type vertex
+#version 330 core
+
+layout (location=0) in vec2 aPos;
+layout (location=1) in vec2 aTexCoords;
+
+out vec2 fTexCoords;
+
+void main() {
+	fTexCoords = aTexCoords;
+
+	gl_Position = vec4(aPos, 0.0, 1.0);
+}
+
+#type fragment
+#version 330 core
+
+in vec2 fTexCoords;
+
+uniform sampler2D uTexture;
+// Size of a texel of the smaller level that is read
+uniform vec2 uTexelSize;
+
+out vec4 color;
+
+void main() {
+	// Dual filter: a tent of four axis and four diagonal taps, added onto the larger level by blending
+	vec2 h = uTexelSize * 0.5;
+	vec3 sum = texture(uTexture, fTexCoords + vec2(-h.x * 2.0, 0.0)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2( h.x * 2.0, 0.0)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2(0.0, -h.y * 2.0)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2(0.0,  h.y * 2.0)).rgb;
+	sum += texture(uTexture, fTexCoords + vec2(-h.x, -h.y)).rgb * 2.0;
+	sum += texture(uTexture, fTexCoords + vec2( h.x, -h.y)).rgb * 2.0;
+	sum += texture(uTexture, fTexCoords + vec2(-h.x,  h.y)).rgb * 2.0;
+	sum += texture(uTexture, fTexCoords + vec2( h.x,  h.y)).rgb * 2.0;
+	color = vec4(sum / 12.0, 1.0);
+}
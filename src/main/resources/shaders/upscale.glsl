@@ -0,0 +1,42 @@
+#type vertex
+#version 330 core
+
+layout (location=0) in vec2 aPos;
+layout (location=1) in vec2 aTexCoords;
+
+out vec2 fTexCoords;
+
+void main() {
+	fTexCoords = aTexCoords;
+
+	gl_Position = vec4(aPos, 0.0, 1.0);
+}
+
+#type fragment
+#version 330 core
+
+in vec2 fTexCoords;
+
+uniform sampler2D uTexture;
+// Size of a texel of the texture that is read
+uniform vec2 uTexelSize;
+// How much of the detail lost by the bilinear filter is added back, 0 for a plain bilinear upscale
+uniform float uSharpness;
+
+out vec4 color;
+
+void main() {
+	vec4 center = texture(uTexture, fTexCoords);
+	if (uSharpness <= 0.0) {
+		color = center;
+		return;
+	}
+
+	// Unsharp mask: push the center away from the average of its neighbours
+	vec3 neighbours = texture(uTexture, fTexCoords + vec2(-uTexelSize.x, 0.0)).rgb;
+	neighbours += texture(uTexture, fTexCoords + vec2( uTexelSize.x, 0.0)).rgb;
+	neighbours += texture(uTexture, fTexCoords + vec2(0.0, -uTexelSize.y)).rgb;
+	neighbours += texture(uTexture, fTexCoords + vec2(0.0,  uTexelSize.y)).rgb;
+	vec3 sharpened = center.rgb + (center.rgb - neighbours / 4.0) * uSharpness;
+	color = vec4(clamp(sharpened, 0.0, 1.0), center.a);
+}
@@ -0,0 +1,133 @@
+package org.azurite.graphics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class AlphaHullTest {
+
+  private static final int SIZE = 32;
+
+  private static ByteBuffer disc(float radius) {
+    ByteBuffer buffer = ByteBuffer.allocate(SIZE * SIZE * 4);
+    for (int y = 0; y < SIZE; y++) {
+      for (int x = 0; x < SIZE; x++) {
+        float dx = x + 0.5f - SIZE / 2f, dy = y + 0.5f - SIZE / 2f;
+        if (dx * dx + dy * dy <= radius * radius) buffer.put((y * SIZE + x) * 4 + 3, (byte) 255);
+      }
+    }
+    return buffer;
+  }
+
+  private static boolean contains(AlphaHull hull, float x, float y) {
+    int n = hull.getVertexCount();
+    float sign = 0;
+    for (int i = 0; i < n; i++) {
+      int j = (i + 1) % n;
+      float cross = (hull.getX(j) - hull.getX(i)) * (y - hull.getY(i)) - (hull.getY(j) - hull.getY(i)) * (x - hull.getX(i));
+      if (Math.abs(cross) < 1e-6f) continue;
+      if (sign == 0) sign = Math.signum(cross);
+      else if (Math.signum(cross) != sign) return false;
+    }
+    return true;
+  }
+
+  @Test
+  public void nothingToTrim() {
+    ByteBuffer opaque = ByteBuffer.allocate(SIZE * SIZE * 4);
+    for (int i = 0; i < SIZE * SIZE; i++) opaque.put(i * 4 + 3, (byte) 255);
+    Assertions.assertNull(AlphaHull.compute(opaque, 4, SIZE, 0, 0, SIZE, SIZE));
+    Assertions.assertNull(AlphaHull.compute(ByteBuffer.allocate(SIZE * SIZE * 4), 4, SIZE, 0, 0, SIZE, SIZE));
+    Assertions.assertNull(AlphaHull.compute(ByteBuffer.allocate(SIZE * SIZE * 3), 3, SIZE, 0, 0, SIZE, SIZE));
+  }
+
+  @Test
+  public void discIsCoveredByOctagon() {
+    ByteBuffer pixels = disc(12);
+    AlphaHull hull = AlphaHull.compute(pixels, 4, SIZE, 0, 0, SIZE, SIZE);
+    Assertions.assertNotNull(hull);
+    Assertions.assertEquals(8, hull.getVertexCount());
+    Assertions.assertTrue(hull.getArea() < 0.6f);
+
+    for (int y = 0; y < SIZE; y++) {
+      for (int x = 0; x < SIZE; x++) {
+        if (pixels.get((y * SIZE + x) * 4 + 3) == 0) continue;
+        for (int corner = 0; corner < 4; corner++) {
+          float cx = (x + corner % 2) / (float) SIZE, cy = (y + corner / 2) / (float) SIZE;
+          Assertions.assertTrue(contains(hull, cx, cy), "pixel " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  private static float twiceArea(float ax, float ay, float bx, float by, float cx, float cy) {
+    return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+  }
+
+  @Test
+  public void fanCoversHull() {
+    for (float radius : new float[]{6, 9, 12, 15}) {
+      AlphaHull hull = AlphaHull.compute(disc(radius), 4, SIZE, 0, 0, SIZE, SIZE);
+      Assertions.assertNotNull(hull);
+
+      // The triangles the quads of the fan are drawn with
+      int quads = hull.getQuadCount();
+      IntBuffer elements = IntBuffer.allocate(quads * Primitive.QUAD.elementCount);
+      for (int q = 0; q < quads; q++) Primitive.QUAD.elementCreation.accept(elements, q);
+      float[] triangles = new float[elements.capacity() * 2];
+      for (int i = 0; i < elements.capacity(); i++) {
+        int vertex = hull.getQuadCorner(elements.get(i) / 4, elements.get(i) % 4);
+        triangles[i * 2] = hull.getX(vertex);
+        triangles[i * 2 + 1] = hull.getY(vertex);
+      }
+
+      // The triangles do not overlap, so together they are as large as the hull
+      float area = 0;
+      for (int t = 0; t < triangles.length; t += 6)
+        area += Math.abs(twiceArea(triangles[t], triangles[t + 1], triangles[t + 2], triangles[t + 3],
+            triangles[t + 4], triangles[t + 5])) / 2;
+      Assertions.assertEquals(hull.getArea(), area, 1e-5f, "radius " + radius);
+
+      for (int y = 0; y < SIZE * 4; y++) {
+        for (int x = 0; x < SIZE * 4; x++) {
+          float px = (x + 0.5f) / (SIZE * 4), py = (y + 0.5f) / (SIZE * 4);
+          if (!contains(hull, px, py)) continue;
+          boolean covered = false;
+          for (int t = 0; t < triangles.length && !covered; t += 6) {
+            float d0 = twiceArea(triangles[t], triangles[t + 1], triangles[t + 2], triangles[t + 3], px, py);
+            float d1 = twiceArea(triangles[t + 2], triangles[t + 3], triangles[t + 4], triangles[t + 5], px, py);
+            float d2 = twiceArea(triangles[t + 4], triangles[t + 5], triangles[t], triangles[t + 1], px, py);
+            covered = (d0 >= -1e-6f && d1 >= -1e-6f && d2 >= -1e-6f) || (d0 <= 1e-6f && d1 <= 1e-6f && d2 <= 1e-6f);
+          }
+          Assertions.assertTrue(covered, "radius " + radius + " point " + px + ", " + py);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void regionOfSheet() {
+    // Two discs side by side, the hull of the right one is relative to its own region
+    ByteBuffer sheet = ByteBuffer.allocate(SIZE * 2 * SIZE * 4);
+    ByteBuffer pixels = disc(12);
+    for (int y = 0; y < SIZE; y++)
+      for (int x = 0; x < SIZE; x++)
+        sheet.put((y * SIZE * 2 + SIZE + x) * 4 + 3, pixels.get((y * SIZE + x) * 4 + 3));
+
+    AlphaHull left = AlphaHull.compute(sheet, 4, SIZE * 2, 0, 0, SIZE, SIZE);
+    AlphaHull right = AlphaHull.compute(sheet, 4, SIZE * 2, SIZE, 0, SIZE, SIZE);
+    AlphaHull single = AlphaHull.compute(pixels, 4, SIZE, 0, 0, SIZE, SIZE);
+    Assertions.assertNull(left);
+    Assertions.assertEquals(single.getVertexCount(), right.getVertexCount());
+    for (int i = 0; i < single.getVertexCount(); i++) {
+      Assertions.assertEquals(single.getX(i), right.getX(i));
+      Assertions.assertEquals(single.getY(i), right.getY(i));
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.azurite.graphics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class ColorTest {
+
+  @Test
+  public void pack() {
+    Assertions.assertEquals(0xFFFFFFFF, Color.pack(1, 1, 1, 1));
+    Assertions.assertEquals(0xFF0000FF, Color.pack(1, 0, 0, 1));
+    Assertions.assertEquals(0x80FF0000, Color.pack(0, 0, 1, 0.5f));
+    // Out of range components are clamped
+    Assertions.assertEquals(0x000000FF, Color.pack(2, -1, 0, 0));
+  }
+
+}
@@ -0,0 +1,74 @@
+package org.azurite.graphics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class DynamicResolutionTest {
+
+  @BeforeEach
+  public void setUp() {
+    DynamicResolution.setBudget(16);
+    DynamicResolution.setBounds(0.5f, 1.0f);
+    DynamicResolution.setEnabled(true);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    DynamicResolution.setEnabled(false);
+  }
+
+  private static void frames(int count, float cpu, float gpu) {
+    for (int i = 0; i < count; i++) DynamicResolution.update(cpu, gpu);
+  }
+
+  @Test
+  public void dropsWithinBoundsWhenOverBudget() {
+    frames(1, 20, 0);
+    float scale = DynamicResolution.getScale();
+    Assertions.assertTrue(scale < 1.0f);
+    // Dropping by the share of missing pixels, not just by one step
+    Assertions.assertTrue(scale <= 1.0f - 2 * DynamicResolution.STEP);
+
+    frames(1000, 100, 0);
+    Assertions.assertEquals(0.5f, DynamicResolution.getScale(), 1e-4f);
+  }
+
+  @Test
+  public void slowerOfCpuAndGpuDecides() {
+    frames(1, 4, 30);
+    Assertions.assertTrue(DynamicResolution.getScale() < 1.0f);
+  }
+
+  @Test
+  public void risesInStepsWhenUnderBudget() {
+    frames(1000, 100, 0);
+    float scale = DynamicResolution.getScale();
+    for (int i = 0; i < 1000; i++) {
+      frames(1, 5, 5);
+      float next = DynamicResolution.getScale();
+      if (next != scale) Assertions.assertEquals(scale + DynamicResolution.STEP, next, 1e-4f);
+      scale = next;
+    }
+    Assertions.assertEquals(1.0f, scale, 1e-4f);
+  }
+
+  @Test
+  public void holdsWithinHysteresis() {
+    // Between the thresholds nothing changes, so the framebuffers are not reallocated
+    frames(1000, 14, 0);
+    Assertions.assertEquals(1.0f, DynamicResolution.getScale(), 1e-4f);
+  }
+
+  @Test
+  public void nativeWhenDisabled() {
+    frames(1000, 100, 0);
+    DynamicResolution.setEnabled(false);
+    Assertions.assertEquals(1.0f, DynamicResolution.getScale());
+  }
+}
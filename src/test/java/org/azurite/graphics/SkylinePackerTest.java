@@ -0,0 +1,62 @@
+package org.azurite.graphics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class SkylinePackerTest {
+
+  private static boolean overlap(int[] a, int[] b) {
+    return a[0] < b[0] + b[2] && b[0] < a[0] + a[2] && a[1] < b[1] + b[3] && b[1] < a[1] + a[3];
+  }
+
+  @Test
+  public void insert() {
+    SkylinePacker packer = new SkylinePacker(64, 64);
+    Assertions.assertArrayEquals(new int[]{0, 0}, packer.insert(32, 16));
+    Assertions.assertArrayEquals(new int[]{32, 0}, packer.insert(32, 8));
+    // The lowest place is on top of the second rectangle
+    Assertions.assertArrayEquals(new int[]{32, 8}, packer.insert(16, 16));
+    Assertions.assertNull(packer.insert(65, 1));
+    Assertions.assertNull(packer.insert(0, 4));
+  }
+
+  @Test
+  public void noOverlap() {
+    SkylinePacker packer = new SkylinePacker(128, 128);
+    List<int[]> placed = new ArrayList<>();
+    int[] sizes = {7, 13, 24, 5, 31, 18, 9, 16};
+    for (int i = 0; i < 40; i++) {
+      int w = sizes[i % sizes.length];
+      int h = sizes[(i * 3) % sizes.length];
+      int[] p = packer.insert(w, h);
+      if (p == null) continue;
+      int[] rect = {p[0], p[1], w, h};
+      Assertions.assertTrue(rect[0] + w <= 128 && rect[1] + h <= 128);
+      for (int[] other : placed)
+        Assertions.assertFalse(overlap(rect, other));
+      placed.add(rect);
+    }
+    long area = placed.stream().mapToLong(r -> (long) r[2] * r[3]).sum();
+    Assertions.assertEquals(area, packer.getUsedArea());
+    Assertions.assertEquals(area / (128f * 128f), packer.getOccupancy(), 0.0001);
+  }
+
+  @Test
+  public void grow() {
+    SkylinePacker packer = new SkylinePacker(32, 32);
+    Assertions.assertNotNull(packer.insert(32, 32));
+    Assertions.assertNull(packer.insert(8, 8));
+    packer.grow(64, 64);
+    Assertions.assertArrayEquals(new int[]{32, 0}, packer.insert(8, 8));
+    Assertions.assertArrayEquals(new int[]{32, 8}, packer.insert(32, 8));
+    Assertions.assertEquals(64, packer.getWidth());
+  }
+
+}
@@ -0,0 +1,33 @@
+package org.azurite.graphics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class TextureTest {
+
+  private static ByteBuffer pixels(int channels, int... alphas) {
+    ByteBuffer buffer = ByteBuffer.allocate(alphas.length * channels);
+    for (int i = 0; i < alphas.length; i++)
+      buffer.put(i * channels + channels - 1, (byte) alphas[i]);
+    return buffer;
+  }
+
+  @Test
+  public void classifyOpacity() {
+    Assertions.assertEquals(Texture.Opacity.OPAQUE, Texture.classify(pixels(4, 255, 255, 255), 3, 4));
+    Assertions.assertEquals(Texture.Opacity.ALPHA_TESTED, Texture.classify(pixels(4, 255, 0, 255), 3, 4));
+    Assertions.assertEquals(Texture.Opacity.TRANSLUCENT, Texture.classify(pixels(4, 255, 0, 128), 3, 4));
+    Assertions.assertEquals(Texture.Opacity.TRANSLUCENT, Texture.classify(pixels(4, 1), 1, 4));
+  }
+
+  @Test
+  public void imagesWithoutAlphaAreOpaque() {
+    Assertions.assertEquals(Texture.Opacity.OPAQUE, Texture.classify(pixels(3, 0, 0), 2, 3));
+  }
+}
@@ -0,0 +1,33 @@
+package org.azurite.graphics;
+
+import org.joml.Vector4f;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class ViewportTest {
+
+  @Test
+  public void pixelRectStartsAtTheBottom() {
+    Viewport minimap = new Viewport(null, 0.75f, 0, 0.25f, 0.25f);
+    Vector4f rect = minimap.getPixelRect(1280, 720, new Vector4f());
+    // The top right corner of the window, in the coordinates of glViewport
+    Assertions.assertEquals(new Vector4f(960, 540, 320, 180), rect);
+    Assertions.assertFalse(minimap.isFullscreen());
+    Assertions.assertTrue(new Viewport(null).isFullscreen());
+  }
+
+  @Test
+  public void splitScreenHalvesShareTheirEdge() {
+    Viewport left = new Viewport(null, 0, 0, 1 / 3f, 1);
+    Viewport right = new Viewport(null, 1 / 3f, 0, 2 / 3f, 1);
+    Vector4f a = left.getPixelRect(1001, 601, new Vector4f());
+    Vector4f b = right.getPixelRect(1001, 601, new Vector4f());
+    Assertions.assertEquals(a.x + a.z, b.x);
+    Assertions.assertEquals(1001, a.z + b.z);
+    Assertions.assertEquals(601, a.w);
+  }
+}
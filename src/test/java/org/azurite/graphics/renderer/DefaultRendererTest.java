@@ -0,0 +1,66 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.ecs.GameObject;
+import org.azurite.ecs.SpriteRenderer;
+import org.azurite.graphics.Color;
+import org.azurite.graphics.Primitive;
+import org.azurite.graphics.ShaderDatatype;
+import org.azurite.scene.Scene;
+import org.joml.Vector2f;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class DefaultRendererTest {
+
+  /**
+   * A renderer whose batches never touch the GPU
+   */
+  private static class OfflineRenderer extends DefaultRenderer {
+    @Override
+    protected RenderBatch createBatch(int zIndex) {
+      return new RenderBatch(100, zIndex, Primitive.QUAD,
+          ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT4, ShaderDatatype.FLOAT2, ShaderDatatype.FLOAT) {
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void delete() {
+        }
+      };
+    }
+  }
+
+  private static boolean contains(Renderer renderer, RenderBatch batch) {
+    for (RenderBatch b : renderer.batches)
+      if (b == batch) return true;
+    return false;
+  }
+
+  @Test
+  public void streamingSwitchKeepsRetainedSprites() {
+    Scene scene = new Scene() {
+    };
+    GameObject gameObject = new GameObject(scene, "sprite", new Vector2f(), 0);
+    gameObject.addComponent(new SpriteRenderer(Color.WHITE, new Vector2f(10, 10)));
+
+    OfflineRenderer renderer = new OfflineRenderer();
+    renderer.setRetained(true);
+    renderer.add(gameObject);
+    renderer.rebuffer();
+    Assertions.assertEquals(1, renderer.batches.size());
+    RenderBatch first = renderer.batches.get(0);
+
+    renderer.setStreaming(BufferStreaming.ORPHAN);
+    Assertions.assertEquals(0, renderer.batches.size());
+    // The sprite has to get a slot in a new batch instead of writing into the dropped one
+    renderer.rebuffer();
+    Assertions.assertEquals(1, renderer.batches.size());
+    Assertions.assertFalse(contains(renderer, first));
+    Assertions.assertEquals(1, renderer.batches.get(0).getVertexCount() / 4);
+  }
+}
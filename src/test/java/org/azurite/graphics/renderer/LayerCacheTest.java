@@ -0,0 +1,33 @@
+package org.azurite.graphics.renderer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class LayerCacheTest {
+
+  @Test
+  public void pageOfCoordinate() {
+    Assertions.assertEquals(0, LayerCache.page(0, 1024));
+    Assertions.assertEquals(0, LayerCache.page(1023.9f, 1024));
+    Assertions.assertEquals(1, LayerCache.page(1024, 1024));
+    // Pages left of and above the origin are negative, not folded onto page 0
+    Assertions.assertEquals(-1, LayerCache.page(-0.5f, 1024));
+    Assertions.assertEquals(-2, LayerCache.page(-1025, 1024));
+  }
+
+  @Test
+  public void pageKeysAreUnique() {
+    Set<Long> keys = new HashSet<>();
+    for (int y = -3; y <= 3; y++)
+      for (int x = -3; x <= 3; x++)
+        Assertions.assertTrue(keys.add(LayerCache.pageKey(x, y)));
+    Assertions.assertNotEquals(LayerCache.pageKey(-1, 0), LayerCache.pageKey(0, -1));
+  }
+}
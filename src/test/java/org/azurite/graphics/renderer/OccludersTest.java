@@ -0,0 +1,114 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.ecs.PolygonCollider;
+import org.azurite.physics.collision.Shapes;
+import org.azurite.physics.collision.shape.RotationType;
+import org.junit.jupiter.api.Assertions;
+import org.joml.Vector2f;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class OccludersTest {
+
+  private static PolygonCollider tile(float x, float y) {
+    PolygonCollider collider = new PolygonCollider(Shapes.axisAlignedRectangle(0, 0, 10, 10));
+    collider.getShape().setPosition(x, y);
+    return collider;
+  }
+
+  @Test
+  public void dropsSharedEdges() {
+    Occluders occluders = new Occluders();
+    PolygonCollider left = tile(0, 0);
+    PolygonCollider right = tile(10, 0);
+    occluders.add(left, false);
+    Assertions.assertEquals(4, occluders.getStaticEdgeCount());
+
+    occluders.add(right, false);
+    // The edge between the tiles is inside the wall
+    Assertions.assertEquals(6, occluders.getStaticEdgeCount());
+
+    occluders.remove(left);
+    Assertions.assertEquals(4, occluders.getStaticEdgeCount());
+  }
+
+  @Test
+  public void tracksChangesByArea() {
+    Occluders occluders = new Occluders();
+    PolygonCollider wall = tile(0, 0);
+    occluders.add(wall, false);
+    int revision = occluders.getRevision();
+    Assertions.assertFalse(occluders.changedSince(revision, -100, -100, 100, 100));
+
+    wall.getShape().setPosition(500, 500);
+    occluders.update();
+    Assertions.assertTrue(occluders.changedSince(revision, -100, -100, 100, 100));
+    Assertions.assertTrue(occluders.changedSince(revision, 450, 450, 550, 550));
+    Assertions.assertFalse(occluders.changedSince(revision, 1000, 1000, 1100, 1100));
+
+    List<Occluders.Edge> edges = new ArrayList<>();
+    occluders.queryStatic(-100, -100, 100, 100, null, edges);
+    Assertions.assertTrue(edges.isEmpty());
+    occluders.queryStatic(450, 450, 550, 550, null, edges);
+    Assertions.assertEquals(4, edges.size());
+  }
+
+  @Test
+  public void rotationAroundFirstPointRebuilds() {
+    Occluders occluders = new Occluders();
+    PolygonCollider wall = tile(0, 0);
+    occluders.add(wall, false);
+    int revision = occluders.getRevision();
+
+    Vector2f first = new Vector2f(wall.getShape().getAbsolutePoints()[0]);
+    Vector2f pivot = first.sub(wall.getShape().position(), new Vector2f());
+    wall.getShape().rotateShape((float) Math.PI / 4, RotationType.AROUND_POINT, pivot);
+    Assertions.assertEquals(first, wall.getShape().getAbsolutePoints()[0]);
+    occluders.update();
+    Assertions.assertTrue(occluders.changedSince(revision, -100, -100, 100, 100));
+
+    revision = occluders.getRevision();
+    occluders.update();
+    Assertions.assertFalse(occluders.changedSince(revision, -100, -100, 100, 100));
+  }
+
+  @Test
+  public void dynamicCollidersDoNotInvalidate() {
+    Occluders occluders = new Occluders();
+    PolygonCollider body = tile(0, 0);
+    occluders.add(body, true);
+    int revision = occluders.getRevision();
+
+    body.getShape().setPosition(20, 0);
+    occluders.update();
+    Assertions.assertFalse(occluders.changedSince(revision, -100, -100, 100, 100));
+
+    List<Occluders.Edge> edges = new ArrayList<>();
+    occluders.queryDynamic(15, -5, 35, 15, null, edges);
+    Assertions.assertEquals(4, edges.size());
+    Assertions.assertEquals(0, occluders.getStaticEdgeCount());
+  }
+
+  @Test
+  public void shadowLeavesLightRadius() {
+    Occluders occluders = new Occluders();
+    occluders.add(tile(10, -5), false);
+    List<Occluders.Edge> edges = new ArrayList<>();
+    occluders.queryStatic(-50, -50, 50, 50, null, edges);
+
+    float radius = 50;
+    float[] quad = new float[8];
+    for (Occluders.Edge e : edges) {
+      Assertions.assertTrue(Occluders.writeShadow(0, 0, radius, e, quad, 0));
+      // The far side of the quad lies outside of the circle, also at its middle
+      float mx = (quad[4] + quad[6]) / 2, my = (quad[5] + quad[7]) / 2;
+      Assertions.assertTrue(mx * mx + my * my >= radius * radius * 0.999f);
+    }
+  }
+}
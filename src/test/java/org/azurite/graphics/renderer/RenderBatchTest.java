@@ -0,0 +1,50 @@
+package org.azurite.graphics.renderer;
+
+import org.azurite.graphics.Color;
+import org.azurite.graphics.Primitive;
+import org.azurite.graphics.ShaderDatatype;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class RenderBatchTest {
+
+  private static RenderBatch compactBatch() {
+    return new RenderBatch(2, 0, Primitive.QUAD,
+        ShaderDatatype.FLOAT2, ShaderDatatype.UBYTE4_NORM, ShaderDatatype.USHORT2_NORM, ShaderDatatype.UBYTE_PADDED);
+  }
+
+  @Test
+  public void compactVertexSize() {
+    RenderBatch batch = compactBatch();
+    Assertions.assertEquals(20, batch.vertexSize);
+    Assertions.assertEquals(5, batch.vertexCount);
+    Assertions.assertEquals(2 * 4 * 20, batch.staging.capacity());
+  }
+
+  @Test
+  public void compactVertexLayout() {
+    RenderBatch batch = compactBatch();
+    batch.pushVec2(12.5f, -3);
+    batch.pushPackedColor(Color.pack(1, 0.5f, 0, 1));
+    batch.pushPackedVec2(1, 0.25f);
+    batch.pushPaddedByte(200);
+
+    Assertions.assertEquals(12.5f, batch.staging.getFloat(0));
+    Assertions.assertEquals(-3f, batch.staging.getFloat(4));
+    // Color bytes are r, g, b, a in memory
+    Assertions.assertEquals((byte) 255, batch.staging.get(8));
+    Assertions.assertEquals((byte) 128, batch.staging.get(9));
+    Assertions.assertEquals((byte) 0, batch.staging.get(10));
+    Assertions.assertEquals((byte) 255, batch.staging.get(11));
+    Assertions.assertEquals(0xFFFF, batch.staging.getShort(12) & 0xFFFF);
+    Assertions.assertEquals(0x4000, batch.staging.getShort(14) & 0xFFFF);
+    Assertions.assertEquals((byte) 200, batch.staging.get(16));
+    Assertions.assertEquals(0, batch.staging.get(17));
+    Assertions.assertEquals(5, batch.dataOffset);
+  }
+
+}
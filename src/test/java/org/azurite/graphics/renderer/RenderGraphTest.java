@@ -0,0 +1,117 @@
+package org.azurite.graphics.renderer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class RenderGraphTest {
+
+  @Test
+  public void cullsUnusedPasses() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource unused = graph.createTransient("unused", RenderGraph.Size.SCREEN);
+
+    RenderGraph.Pass draw = graph.addPass("draw").writes(color);
+    RenderGraph.Pass orphan = graph.addPass("orphan").writes(unused);
+    RenderGraph.Pass custom = graph.addPass("custom").sideEffects();
+    RenderGraph.Pass post = graph.addPass("post").reads(color).writes(screen);
+
+    Assertions.assertFalse(draw.isCulled());
+    Assertions.assertTrue(orphan.isCulled());
+    Assertions.assertFalse(custom.isCulled());
+    Assertions.assertFalse(post.isCulled());
+    Assertions.assertEquals(3, graph.getExecutedPassCount());
+    Assertions.assertEquals(1, graph.getFramebufferCount());
+  }
+
+  @Test
+  public void removesForward() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+
+    RenderGraph.Pass draw = graph.addPass("draw").writes(color);
+    RenderGraph.Pass forward = graph.addPass("forward").forwards(color, screen);
+
+    Assertions.assertFalse(draw.isCulled());
+    Assertions.assertTrue(forward.isCulled());
+    Assertions.assertEquals(0, graph.getFramebufferCount());
+  }
+
+  @Test
+  public void keepsForwardWithOtherReaders() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource copy = graph.createTransient("copy", RenderGraph.Size.SCREEN);
+
+    graph.addPass("draw").writes(color);
+    graph.addPass("copy").reads(color).writes(copy);
+    RenderGraph.Pass forward = graph.addPass("forward").forwards(color, screen);
+
+    Assertions.assertFalse(forward.isCulled());
+    // Nothing reads the copy, so it is culled and its resource needs no framebuffer
+    Assertions.assertEquals(1, graph.getFramebufferCount());
+  }
+
+  @Test
+  public void aliasesDisjointLifetimes() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource lightmap = graph.createTransient("lightmap", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource brights = graph.createTransient("brights", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource hBlur = graph.createTransient("horizontal blur", RenderGraph.Size.HALF_SCREEN);
+    RenderGraph.Resource vBlur = graph.createTransient("vertical blur", RenderGraph.Size.HALF_SCREEN);
+
+    graph.addPass("lightmap").writes(lightmap);
+    graph.addPass("sprites").reads(lightmap).writes(color);
+    graph.addPass("bright filter").reads(color).writes(brights);
+    graph.addPass("horizontal blur").reads(brights).writes(hBlur);
+    graph.addPass("vertical blur").reads(hBlur).writes(vBlur);
+    graph.addPass("combine").reads(color, vBlur).writes(screen);
+
+    // The brights reuse the lightmap, the blurs overlap in the vertical blur pass
+    Assertions.assertEquals(6, graph.getExecutedPassCount());
+    Assertions.assertEquals(4, graph.getFramebufferCount());
+  }
+
+  @Test
+  public void recompilesOnChange() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+
+    RenderGraph.Pass draw = graph.addPass("draw").writes(color);
+    Assertions.assertTrue(draw.isCulled());
+
+    graph.addPass("post").reads(color).writes(screen);
+    Assertions.assertFalse(draw.isCulled());
+  }
+
+  @Test
+  public void mipChainKeepsOneFramebufferPerLevel() {
+    RenderGraph graph = new RenderGraph();
+    RenderGraph.Resource screen = graph.importFramebuffer("screen", null);
+    RenderGraph.Resource color = graph.createTransient("color", RenderGraph.Size.SCREEN);
+    RenderGraph.Resource[] mips = new RenderGraph.Resource[3];
+    for (int i = 0; i < mips.length; i++)
+      mips[i] = graph.createTransient("mip " + i, RenderGraph.Size.scaled(2 << i));
+
+    graph.addPass("draw").writes(color);
+    for (int i = 0; i < mips.length; i++)
+      graph.addPass("down " + i).reads(i == 0 ? color : mips[i - 1]).writes(mips[i]);
+    for (int i = mips.length - 2; i >= 0; i--)
+      graph.addPass("up " + i).reads(mips[i + 1], mips[i]).writes(mips[i]);
+    graph.addPass("combine").reads(color, mips[0]).writes(screen);
+
+    Assertions.assertEquals(RenderGraph.Size.EIGHTH_SCREEN, RenderGraph.Size.scaled(8));
+    Assertions.assertEquals(1 + 3 + 2 + 1, graph.getExecutedPassCount());
+    Assertions.assertEquals(4, graph.getFramebufferCount());
+  }
+}
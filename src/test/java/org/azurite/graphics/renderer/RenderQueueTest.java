@@ -0,0 +1,69 @@
+package org.azurite.graphics.renderer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class RenderQueueTest {
+
+  @Test
+  public void keyRoundTrip() {
+    long key = RenderQueue.key(-3, 42, 123456);
+    Assertions.assertEquals(-3, RenderQueue.zIndex(key));
+    Assertions.assertEquals(42, RenderQueue.textureKey(key));
+    Assertions.assertEquals(123456, RenderQueue.index(key));
+
+    key = RenderQueue.key(1000, RenderQueue.MAX_TEXTURE_KEY, RenderQueue.MAX_INDEX);
+    Assertions.assertEquals(1000, RenderQueue.zIndex(key));
+    Assertions.assertEquals(RenderQueue.MAX_TEXTURE_KEY, RenderQueue.textureKey(key));
+    Assertions.assertEquals(RenderQueue.MAX_INDEX, RenderQueue.index(key));
+  }
+
+  @Test
+  public void sortOrder() {
+    RenderQueue queue = new RenderQueue(4);
+    Random random = new Random(7);
+    int n = 5000;
+    for (int i = 0; i < n; i++)
+      queue.push(RenderQueue.key(random.nextInt(21) - 10, random.nextInt(9), i));
+    queue.sort();
+
+    Assertions.assertEquals(n, queue.size());
+    for (int i = 1; i < n; i++) {
+      long a = queue.get(i - 1);
+      long b = queue.get(i);
+      int za = RenderQueue.zIndex(a), zb = RenderQueue.zIndex(b);
+      Assertions.assertTrue(za <= zb);
+      if (za == zb) {
+        Assertions.assertTrue(RenderQueue.textureKey(a) <= RenderQueue.textureKey(b));
+        if (RenderQueue.textureKey(a) == RenderQueue.textureKey(b))
+          Assertions.assertTrue(RenderQueue.index(a) < RenderQueue.index(b));
+      }
+    }
+  }
+
+  @Test
+  public void sortMatchesZOrder() {
+    RenderQueue queue = new RenderQueue();
+    int[] z = {5, -2, 0, 5, -2, 3};
+    for (int i = 0; i < z.length; i++)
+      queue.push(RenderQueue.key(z[i], 0, i));
+    queue.sort();
+
+    int[] sorted = z.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < z.length; i++)
+      Assertions.assertEquals(sorted[i], RenderQueue.zIndex(queue.get(i)));
+
+    queue.clear();
+    Assertions.assertEquals(0, queue.size());
+    queue.sort();
+  }
+
+}
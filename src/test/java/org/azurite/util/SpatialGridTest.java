@@ -0,0 +1,77 @@
+package org.azurite.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class SpatialGridTest {
+
+  private static Set<String> query(SpatialGrid<String> grid, float minX, float minY, float maxX, float maxY) {
+    List<String> out = new ArrayList<>();
+    grid.query(minX, minY, maxX, maxY, out);
+    return new HashSet<>(out);
+  }
+
+  @Test
+  public void queryAndMove() {
+    SpatialGrid<String> grid = new SpatialGrid<>(100);
+    grid.update("a", 10, 10, 20, 20);
+    grid.update("b", 500, 500, 20, 20);
+    // Large box whose center is far from the query, but which reaches into it
+    grid.update("c", -400, 0, 450, 20);
+
+    Assertions.assertEquals(Set.of("a", "c"), query(grid, 0, 0, 100, 100));
+    Assertions.assertEquals(Set.of("b"), query(grid, 450, 450, 600, 600));
+
+    grid.update("a", 480, 480, 20, 20);
+    Assertions.assertEquals(Set.of("c"), query(grid, 0, 0, 100, 100));
+    Assertions.assertEquals(Set.of("a", "b"), query(grid, 450, 450, 600, 600));
+
+    Assertions.assertTrue(grid.remove("b"));
+    Assertions.assertFalse(grid.remove("b"));
+    Assertions.assertEquals(Set.of("a"), query(grid, 450, 450, 600, 600));
+    Assertions.assertEquals(2, grid.size());
+  }
+
+  @Test
+  public void negativeSize() {
+    SpatialGrid<String> grid = new SpatialGrid<>(64);
+    grid.update("flipped", 100, 100, -50, -50);
+    Assertions.assertEquals(Set.of("flipped"), query(grid, 60, 60, 70, 70));
+    Assertions.assertTrue(query(grid, 101, 101, 200, 200).isEmpty());
+  }
+
+  @Test
+  public void matchesBruteForce() {
+    SpatialGrid<Integer> grid = new SpatialGrid<>(50);
+    Random random = new Random(3);
+    float[][] boxes = new float[500][];
+    for (int i = 0; i < boxes.length; i++) {
+      boxes[i] = new float[]{random.nextFloat() * 5000 - 2500, random.nextFloat() * 5000 - 2500, 1 + random.nextFloat() * 80, 1 + random.nextFloat() * 80};
+      grid.update(i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+    }
+    for (int q = 0; q < 50; q++) {
+      float x = random.nextFloat() * 5000 - 2500, y = random.nextFloat() * 5000 - 2500;
+      float w = random.nextFloat() * 1500, h = random.nextFloat() * 1500;
+      Set<Integer> expected = new HashSet<>();
+      for (int i = 0; i < boxes.length; i++) {
+        float[] b = boxes[i];
+        if (b[0] + b[2] >= x && b[0] <= x + w && b[1] + b[3] >= y && b[1] <= y + h) expected.add(i);
+      }
+      List<Integer> out = new ArrayList<>();
+      grid.query(x, y, x + w, y + h, out);
+      Assertions.assertEquals(expected, new HashSet<>(out));
+      Assertions.assertEquals(expected.size(), out.size());
+    }
+  }
+
+}
@@ -0,0 +1,30 @@
+package org.azurite.util.specs;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @version 17.10.2026
+ * @since 17.10.2026
+ */
+public class FramebufferSpecTest {
+
+  @Test
+  public void equalAttachmentsAreEqual() {
+    FramebufferSpec a = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8));
+    FramebufferSpec b = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8));
+    Assertions.assertEquals(a, b);
+    Assertions.assertEquals(a.hashCode(), b.hashCode());
+  }
+
+  @Test
+  public void differentAttachmentsDiffer() {
+    FramebufferSpec color = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8));
+    FramebufferSpec stencil = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8),
+        new TextureSpec(TextureSpec.TextureFormat.DEPTH24STENCIL8));
+    FramebufferSpec nearest = new FramebufferSpec(new TextureSpec(TextureSpec.TextureFormat.RGBA8,
+        TextureSpec.TextureResizeFilterType.NEAREST, TextureSpec.TextureResizeFilterType.NEAREST));
+    Assertions.assertNotEquals(color, stencil);
+    Assertions.assertNotEquals(color, nearest);
+  }
+}